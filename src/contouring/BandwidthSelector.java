@@ -0,0 +1,279 @@
+package contouring;
+
+/**
+ * Rule of thumb bandwidths for the kernel density estimators. All rules share
+ * the same sample statistics: the variance is accumulated in the pass that
+ * copies the observations and the quartiles are found by selection on the
+ * copy instead of sorting it, so selecting a bandwidth costs O(n).
+ *
+ * Bandwidths are in the scale of MASS bandwidth.nrd, four times the standard
+ * deviation of the Gaussian kernel, which is what kde2d divides by four.
+ */
+public class BandwidthSelector {
+
+	public enum Rule {
+		// bandwidth.nrd, the kde2d default
+		NRD,
+		// Silverman's rule of thumb, bw.nrd0
+		SILVERMAN,
+		// Scott's rule for a bi-variate product kernel
+		SCOTT
+	}
+
+	private final double lowerQuartile;
+	private final double upperQuartile;
+	private final double variance;
+	private final double count;
+
+	public BandwidthSelector(double[] in) {
+		this(in, null);
+	}
+
+	/**
+	 * @param weights
+	 *            frequency weights of the observations, null for unweighted
+	 *            observations. Quartiles are taken in the sample every weight
+	 *            stands for.
+	 */
+	public BandwidthSelector(double[] in, double[] weights) {
+
+		if (weights != null && weights.length != in.length)
+			throw new RuntimeException("data vectors must be the same length");
+
+		if (in.length == 0)
+			throw new RuntimeException("no observations to select a bandwidth");
+
+		double[] values = new double[in.length];
+		double[] valueWeights = weights == null ? null
+				: new double[in.length];
+
+		// weighted Welford updates
+		double total = 0;
+		double mean = 0;
+		double sumSquares = 0;
+		for (int k = 0; k < in.length; k++) {
+
+			double weight = weights == null ? 1 : weights[k];
+			values[k] = in[k];
+			if (valueWeights != null) {
+				valueWeights[k] = weight;
+			}
+
+			total += weight;
+			double delta = in[k] - mean;
+			mean += delta * weight / total;
+			sumSquares += weight * delta * (in[k] - mean);
+		}
+
+		count = total;
+		variance = sumSquares / (total > 1 ? total - 1 : 1);
+		if (weights == null) {
+			// the upper quartile is selected among the values after the
+			// lower one
+			int lower = (int) (0.25 * (values.length - 1));
+			lowerQuartile = quantile(values, 0, 0.25);
+			upperQuartile = quantile(values, lower, 0.75);
+		} else {
+			lowerQuartile = quantile(values, valueWeights, total, 0.25);
+			upperQuartile = quantile(values, valueWeights, total, 0.75);
+		}
+	}// END: BandwidthSelector()
+
+	public double getBandwidth(Rule rule) {
+
+		double sd = Math.sqrt(variance);
+		double spread = Math.min(sd, (upperQuartile - lowerQuartile) / 1.34);
+
+		switch (rule) {
+		case NRD:
+			return KernelDensityEstimator2D.bandwidthNRD(lowerQuartile,
+					upperQuartile, variance, count);
+		case SILVERMAN:
+			return 4 * 0.9 * spread * Math.pow(count, -0.2);
+		case SCOTT:
+			return 4 * sd * Math.pow(count, -1.0 / 6);
+		default:
+			throw new RuntimeException("unknown bandwidth rule " + rule);
+		}
+	}// END: getBandwidth
+
+	public double getLowerQuartile() {
+		return lowerQuartile;
+	}
+
+	public double getUpperQuartile() {
+		return upperQuartile;
+	}
+
+	public double getVariance() {
+		return variance;
+	}
+
+	public double getCount() {
+		return count;
+	}
+
+	/**
+	 * Interpolates between order statistics like Descriptive.quantile does
+	 *
+	 * @param from
+	 *            values before it are known not to be larger than the
+	 *            quantile
+	 */
+	private static double quantile(double[] values, int from,
+			double probability) {
+
+		double position = probability * (values.length - 1);
+		int lower = (int) position;
+		double delta = position - lower;
+
+		double lowerValue = select(values, from, lower);
+		if (lower == values.length - 1) {
+			return lowerValue;
+		}
+
+		// everything after the selected value is at least as large
+		double upperValue = values[lower + 1];
+		for (int k = lower + 2; k < values.length; k++) {
+			upperValue = Math.min(upperValue, values[k]);
+		}
+
+		return (1 - delta) * lowerValue + delta * upperValue;
+	}// END: quantile
+
+	/**
+	 * Hoare's quickselect on values[from..], moves the k-th smallest value to
+	 * values[k] with smaller or equal values before it and larger or equal
+	 * values after it
+	 */
+	private static double select(double[] values, int from, int k) {
+
+		int to = values.length - 1;
+
+		while (from < to) {
+
+			double pivot = medianOfThree(values[from],
+					values[(from + to) >>> 1], values[to]);
+
+			int i = from;
+			int j = to;
+			while (i <= j) {
+
+				while (values[i] < pivot) {
+					i++;
+				}
+				while (values[j] > pivot) {
+					j--;
+				}
+
+				if (i <= j) {
+					swap(values, null, i++, j--);
+				}
+			}
+
+			if (k <= j) {
+				to = j;
+			} else if (k >= i) {
+				from = i;
+			} else {
+				break;
+			}
+		}
+
+		return values[k];
+	}// END: select
+
+	/**
+	 * Interpolates between order statistics like Descriptive.quantile does,
+	 * positions are counted in the sample the weights stand for
+	 */
+	private static double quantile(double[] values, double[] weights,
+			double total, double probability) {
+
+		double position = probability * (total - 1);
+		double lower = Math.floor(position);
+		double delta = position - lower;
+
+		double lowerValue = select(values, weights, lower);
+		if (lower + 1 >= total) {
+			return lowerValue;
+		}
+
+		return (1 - delta) * lowerValue + delta
+				* select(values, weights, lower + 1);
+	}// END: quantile
+
+	/**
+	 * Three way quickselect, reorders the values and their weights
+	 *
+	 * @param position
+	 *            0-based position in the sorted sample the weights stand for
+	 * @return value at that position
+	 */
+	private static double select(double[] values, double[] weights,
+			double position) {
+
+		int from = 0;
+		int to = values.length;
+
+		while (to - from > 1) {
+
+			double pivot = medianOfThree(values[from],
+					values[(from + to) >>> 1], values[to - 1]);
+
+			// [from, less) < pivot, [less, i) == pivot, (greater, to) > pivot
+			int less = from;
+			int i = from;
+			int greater = to - 1;
+			double lessWeight = 0;
+			double equalWeight = 0;
+
+			while (i <= greater) {
+
+				double value = values[i];
+				double weight = weights == null ? 1 : weights[i];
+
+				if (value < pivot) {
+					lessWeight += weight;
+					swap(values, weights, i++, less++);
+				} else if (value > pivot) {
+					swap(values, weights, i, greater--);
+				} else {
+					equalWeight += weight;
+					i++;
+				}
+			}
+
+			if (position < lessWeight) {
+				to = less;
+			} else if (position < lessWeight + equalWeight
+					|| greater + 1 == to) {
+				// rounding of fractional weights can not run past the end
+				return pivot;
+			} else {
+				position -= lessWeight + equalWeight;
+				from = greater + 1;
+			}
+		}
+
+		return values[from];
+	}// END: select
+
+	private static double medianOfThree(double a, double b, double c) {
+		return Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+	}
+
+	private static void swap(double[] values, double[] weights, int i, int j) {
+
+		double value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+
+		if (weights != null) {
+			double weight = weights[i];
+			weights[i] = weights[j];
+			weights[j] = weight;
+		}
+	}// END: swap
+
+}// END: class
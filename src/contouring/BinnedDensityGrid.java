@@ -0,0 +1,256 @@
+package contouring;
+
+import java.util.List;
+
+import structure.SliceCoordinates;
+
+/**
+ * BinnedDensityGrid accumulates bi-variate observations onto a fixed grid by
+ * linear binning, so that the memory needed does not depend on the number of
+ * observations. The grid limits are fixed when the grid is created and must
+ * contain every observation, an observation outside them is an error.
+ *
+ * Running moments and the binned marginals are kept for bandwidth selection.
+ */
+public class BinnedDensityGrid {
+
+	// extent of a dimension in which the data has no range
+	public static final double MINIMUM_EXTENT = 1.0;
+
+	/*
+	 * @param n grid size
+	 *
+	 * @param dataLims bi-variate min/max of the data
+	 *
+	 * @param margin fraction of the data range added on each side of the grid
+	 */
+	public BinnedDensityGrid(final int n, final double[] dataLims,
+			final double margin) {
+
+		if (n <= 1)
+			throw new RuntimeException(
+					"must have more than one grid point per dimension");
+		this.n = n;
+
+		lims = new double[] { dataLims[0], dataLims[1], dataLims[2],
+				dataLims[3] };
+		widen(lims, 0, margin);
+		widen(lims, 2, margin);
+
+		dx = (lims[1] - lims[0]) / (n - 1);
+		dy = (lims[3] - lims[2]) / (n - 1);
+
+		if (!(dx > 0) || !(dy > 0))
+			throw new RuntimeException("grid limits must span a positive range");
+
+		counts = new double[n][n];
+	}
+
+	/**
+	 * Sums grids with the same size and limits. The parts are added in the
+	 * order of the list, so the same parts always give the same sums.
+	 */
+	public static BinnedDensityGrid merge(final List<BinnedDensityGrid> parts) {
+
+		BinnedDensityGrid merged = new BinnedDensityGrid(parts.get(0));
+
+		for (BinnedDensityGrid part : parts) {
+
+			if (part.n != merged.n || part.lims[0] != merged.lims[0]
+					|| part.lims[1] != merged.lims[1]
+					|| part.lims[2] != merged.lims[2]
+					|| part.lims[3] != merged.lims[3])
+				throw new IllegalArgumentException(
+						"grids must have the same size and limits");
+
+			if (part.count == 0)
+				continue;
+
+			for (int i = 0; i < merged.n; i++) {
+				for (int j = 0; j < merged.n; j++) {
+					merged.counts[i][j] += part.counts[i][j];
+				}
+			}
+
+			// pairwise update of the running moments
+			final long count = merged.count + part.count;
+			final double deltaX = part.meanX - merged.meanX;
+			final double deltaY = part.meanY - merged.meanY;
+			final double weight = (double) merged.count * part.count / count;
+			merged.sumSquaresX += part.sumSquaresX + deltaX * deltaX * weight;
+			merged.sumSquaresY += part.sumSquaresY + deltaY * deltaY * weight;
+			merged.meanX += deltaX * part.count / count;
+			merged.meanY += deltaY * part.count / count;
+			merged.count = count;
+		}
+
+		return merged;
+	}// END: merge
+
+	/**
+	 * Empty grid with the size and limits of the given one
+	 */
+	private BinnedDensityGrid(final BinnedDensityGrid grid) {
+		n = grid.n;
+		lims = grid.lims.clone();
+		dx = grid.dx;
+		dy = grid.dy;
+		counts = new double[n][n];
+	}
+
+	/**
+	 * Adds the margin on both sides of the range starting at lims[from], a
+	 * range of zero is given MINIMUM_EXTENT
+	 */
+	private static void widen(final double[] lims, final int from,
+			final double margin) {
+
+		double delta = (lims[from + 1] - lims[from]) * margin;
+		if (!(lims[from + 1] > lims[from])) {
+			delta = MINIMUM_EXTENT / 2;
+		}
+
+		lims[from] -= delta;
+		lims[from + 1] += delta;
+	}
+
+	public synchronized void add(final double x, final double y) {
+
+		final double tx = (x - lims[0]) / dx;
+		final double ty = (y - lims[2]) / dy;
+
+		if (!(tx >= 0 && tx <= n - 1 && ty >= 0 && ty <= n - 1))
+			throw new RuntimeException("observation (" + x + ", " + y
+					+ ") lies outside the grid limits");
+
+		count++;
+
+		// Welford update of the running moments
+		final double deltaX = x - meanX;
+		final double deltaY = y - meanY;
+		meanX += deltaX / count;
+		meanY += deltaY / count;
+		sumSquaresX += deltaX * (x - meanX);
+		sumSquaresY += deltaY * (y - meanY);
+
+		final int i = Math.min((int) tx, n - 2);
+		final int j = Math.min((int) ty, n - 2);
+		final double fx = tx - i;
+		final double fy = ty - j;
+
+		counts[i][j] += (1 - fx) * (1 - fy);
+		counts[i + 1][j] += fx * (1 - fy);
+		counts[i][j + 1] += (1 - fx) * fy;
+		counts[i + 1][j + 1] += fx * fy;
+	}
+
+	public synchronized void addAll(final double[] x, final double[] y) {
+		for (int i = 0; i < x.length; i++) {
+			add(x[i], y[i]);
+		}
+	}
+
+	/**
+	 * Bins the latitudes (x) and longitudes (y) collected for one slice
+	 */
+	public synchronized void addAll(final SliceCoordinates slices,
+			final int slice) {
+		for (int i = 0; i < slices.getCount(slice); i++) {
+			add(slices.getLatitude(slice, i), slices.getLongitude(slice, i));
+		}
+	}
+
+	public int getN() {
+		return n;
+	}
+
+	public double[] getLims() {
+		return lims;
+	}
+
+	/**
+	 * @return binned weights, counts[i][j] belongs to grid point (x_i, y_j)
+	 */
+	public double[][] getCounts() {
+		return counts;
+	}
+
+	/**
+	 * @return number of binned observations
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public double getVarianceX() {
+		return count > 1 ? sumSquaresX / (count - 1) : 0.0;
+	}
+
+	public double getVarianceY() {
+		return count > 1 ? sumSquaresY / (count - 1) : 0.0;
+	}
+
+	/**
+	 * @return quantile of the x-marginal of the binned observations, accurate
+	 *         to the grid spacing
+	 */
+	public double getQuantileX(final double probability) {
+
+		double[] marginal = new double[n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				marginal[i] += counts[i][j];
+			}
+		}
+
+		return getQuantile(marginal, lims[0], dx, probability);
+	}
+
+	/**
+	 * @return quantile of the y-marginal of the binned observations, accurate
+	 *         to the grid spacing
+	 */
+	public double getQuantileY(final double probability) {
+
+		double[] marginal = new double[n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				marginal[j] += counts[i][j];
+			}
+		}
+
+		return getQuantile(marginal, lims[2], dy, probability);
+	}
+
+	private double getQuantile(final double[] marginal, final double start,
+			final double delta, final double probability) {
+
+		final double target = probability * count;
+
+		double cumulative = 0;
+		for (int i = 0; i < n; i++) {
+
+			if (cumulative + marginal[i] >= target && marginal[i] > 0) {
+				// interpolate within the mass of this grid point
+				double fraction = (target - cumulative) / marginal[i];
+				return start + (i - 0.5 + fraction) * delta;
+			}
+
+			cumulative += marginal[i];
+		}
+
+		return start + (n - 1) * delta;
+	}
+
+	private final int n; // grid size
+	private final double[] lims; // x,y limits
+	private final double dx; // x-grid spacing
+	private final double dy; // y-grid spacing
+	private final double[][] counts; // binned weights
+	private long count; // number of observations
+	private double meanX;
+	private double meanY;
+	private double sumSquaresX;
+	private double sumSquaresY;
+
+}
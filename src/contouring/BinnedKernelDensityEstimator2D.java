@@ -0,0 +1,205 @@
+package contouring;
+
+import java.util.Arrays;
+
+import math.DiscreteStatistics;
+import math.FastFourierTransform;
+import math.NormalDistribution;
+
+/**
+ * BinnedKernelDensityEstimator2D evaluates the bi-variate kernel density of
+ * observations accumulated in a BinnedDensityGrid. The binned weights are
+ * smoothed with the Gaussian kernel on the grid itself by FFT convolution, so
+ * the cost is O(n^2 log n) for an n x n grid and does not depend on the number
+ * of observations beyond binning them.
+ */
+public class BinnedKernelDensityEstimator2D extends ContourWithSynder {
+
+	public BinnedKernelDensityEstimator2D(final BinnedDensityGrid grid) {
+		this(grid, setupH(grid));
+	}
+
+	/*
+	 * Linearly bins the observations onto a grid with the same limits and
+	 * bandwidths as KernelDensityEstimator2D would use for them
+	 *
+	 * @param x x-coordinates of observations
+	 *
+	 * @param y y-coordinates of observations
+	 *
+	 * @param n smoothed grid size, AUTOMATIC_GRID_SIZE to choose it from the
+	 * bandwidths
+	 */
+	public BinnedKernelDensityEstimator2D(final double[] x, final double[] y,
+			final int n) {
+		this(x, y, n, setupH(x, y));
+	}
+
+	private BinnedKernelDensityEstimator2D(final double[] x, final double[] y,
+			final int n, final double[] h) {
+		this(binObservations(x, y, n, h), h);
+	}
+
+	private BinnedKernelDensityEstimator2D(final BinnedDensityGrid grid,
+			final double[] h) {
+		super(h, grid.getN(), grid.getLims());
+		this.grid = grid;
+		doKDE2D();
+	}
+
+	public void doKDE2D() {
+		gx = makeSequence(lims[0], lims[1], n);
+		gy = makeSequence(lims[2], lims[3], n);
+
+		// the kernel only depends on the distance between grid points
+		double[] kx = kernelSpectrum((lims[1] - lims[0]) / (n - 1) / h[0]);
+		double[] ky = kernelSpectrum((lims[3] - lims[2]) / (n - 1) / h[1]);
+
+		double[][] counts = grid.getCounts();
+		double[][] smoothed = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(counts[i], 0, smoothed[i], 0, n);
+		}
+
+		// the Gaussian kernel is separable: smooth along x, then along y
+		convolveColumns(smoothed, kx);
+
+		z = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				z[j][i] = smoothed[i][j];
+			}
+		}
+		convolveColumns(z, ky);
+		transposeInPlace(z);
+
+		double scale = grid.getCount() * h[0] * h[1];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				// rounding in the transforms leaves tiny values in the tails
+				z[i][j] = Math.max(z[i][j], 0) / scale;
+			}
+		}
+	}
+
+	/**
+	 * Replaces every column of A (A[a][b] for a fixed b) by its convolution
+	 * with the kernel, two columns per complex transform
+	 */
+	private void convolveColumns(double[][] A, double[] spectrum) {
+
+		int length = spectrum.length;
+		double[] re = new double[length];
+		double[] im = new double[length];
+
+		for (int b = 0; b < n; b += 2) {
+
+			boolean pair = b + 1 < n;
+
+			Arrays.fill(re, 0);
+			Arrays.fill(im, 0);
+			for (int a = 0; a < n; a++) {
+				re[a] = A[a][b];
+				if (pair) {
+					im[a] = A[a][b + 1];
+				}
+			}
+
+			// the spectrum of a symmetric real kernel is real, so the real
+			// and imaginary parts are convolved independently
+			FastFourierTransform.transform(re, im, false);
+			for (int k = 0; k < length; k++) {
+				re[k] *= spectrum[k];
+				im[k] *= spectrum[k];
+			}
+			FastFourierTransform.transform(re, im, true);
+
+			for (int a = 0; a < n; a++) {
+				A[a][b] = re[a];
+				if (pair) {
+					A[a][b + 1] = im[a];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return transform of the kernel on the grid, wrapped around a period
+	 *         long enough for the convolution not to wrap onto the grid
+	 */
+	private double[] kernelSpectrum(double scaledDelta) {
+
+		int length = FastFourierTransform.getPaddedLength(2 * n - 1);
+		double[] re = new double[length];
+		double[] im = new double[length];
+
+		for (int d = 0; d < n; d++) {
+			double weight = NormalDistribution.pdf(d * scaledDelta, 0, 1);
+			re[d] = weight;
+			if (d > 0) {
+				re[length - d] = weight;
+			}
+		}
+
+		FastFourierTransform.transform(re, im, false);
+		return re;
+	}
+
+	private static void transposeInPlace(double[][] A) {
+		for (int i = 0; i < A.length; i++) {
+			for (int j = i + 1; j < A.length; j++) {
+				double swap = A[i][j];
+				A[i][j] = A[j][i];
+				A[j][i] = swap;
+			}
+		}
+	}
+
+	private static BinnedDensityGrid binObservations(final double[] x,
+			final double[] y, final int n, final double[] h) {
+
+		if (x.length != y.length)
+			throw new RuntimeException("data vectors must be the same length");
+
+		double[] dataLims = { DiscreteStatistics.min(x),
+				DiscreteStatistics.max(x), DiscreteStatistics.min(y),
+				DiscreteStatistics.max(y) };
+
+		int gridSize = n;
+		if (n == AUTOMATIC_GRID_SIZE) {
+			double xDelta = (dataLims[1] - dataLims[0]) * MARGIN;
+			double yDelta = (dataLims[3] - dataLims[2]) * MARGIN;
+			gridSize = getGridSize(h, new double[] { dataLims[0] - xDelta,
+					dataLims[1] + xDelta, dataLims[2] - yDelta,
+					dataLims[3] + yDelta });
+		}
+
+		BinnedDensityGrid grid = new BinnedDensityGrid(gridSize, dataLims,
+				MARGIN);
+		grid.addAll(x, y);
+		return grid;
+	}
+
+	private static double[] setupH(final double[] x, final double[] y) {
+		double[] h = new double[2];
+		h[0] = bandwidthNRD(x) / 4;
+		h[1] = bandwidthNRD(y) / 4;
+		return h;
+	}
+
+	private static double[] setupH(final BinnedDensityGrid grid) {
+
+		if (grid.getCount() == 0)
+			throw new RuntimeException("no observations binned onto the grid");
+
+		double[] h = new double[2];
+		h[0] = bandwidthNRD(grid.getQuantileX(0.25), grid.getQuantileX(0.75),
+				grid.getVarianceX(), grid.getCount()) / 4;
+		h[1] = bandwidthNRD(grid.getQuantileY(0.25), grid.getQuantileY(0.75),
+				grid.getVarianceY(), grid.getCount()) / 4;
+		return h;
+	}
+
+	private final BinnedDensityGrid grid;
+
+}
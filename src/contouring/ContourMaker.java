@@ -8,4 +8,10 @@ public interface ContourMaker {
 
 	ContourPath[] getContourPaths(double level);
 
+	/**
+	 * @return contour paths of every level, in the order of the levels, from
+	 *         a single evaluation of the density
+	 */
+	ContourPath[][] getContourPaths(double[] levels);
+
 }
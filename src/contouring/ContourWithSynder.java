@@ -2,6 +2,7 @@ package contouring;
 
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -23,40 +24,244 @@ public class ContourWithSynder extends KernelDensityEstimator2D {
 		super(x, y, n);
 	}
 
+	/*
+	 * @param truncation number of bandwidths the kernel is truncated at, 0
+	 * for the exact estimate
+	 */
+	public ContourWithSynder(final double[] x, final double[] y, int n,
+			double truncation) {
+		super(x, y, null, n, null, truncation);
+	}
+
+	/*
+	 * @param points weighted observations, such as collapsed duplicates
+	 * 
+	 * @param truncation number of bandwidths the kernel is truncated at, 0
+	 * for the exact estimate
+	 */
+	public ContourWithSynder(final WeightedPoints points, int n,
+			double truncation) {
+		super(points, null, n, null, truncation);
+	}
+
+	/*
+	 * @param tabulatedKernel approximates the kernel from a table, with a
+	 * relative error below 1e-8
+	 */
+	public ContourWithSynder(final WeightedPoints points, int n,
+			double truncation, boolean tabulatedKernel) {
+		super(points, null, n, null, truncation, tabulatedKernel);
+	}
+
+	protected ContourWithSynder(final double[] h, final int n,
+			final double[] lims) {
+		super(h, n, lims);
+	}
+
 	public ContourPath[] getContourPaths(double hpdValue) {
+		return getContourPaths(new double[] { hpdValue })[0];
+	}
 
-		if (contourPaths == null) {
-
-			double thresholdDensity = findLevelCorrespondingToMass(hpdValue);
-
-			SnyderContour contourPlot = new SnyderContour(getXGrid().length,
-					getYGrid().length);
-			contourPlot.setDeltas(getXGrid()[1] - getXGrid()[0], getYGrid()[1]
-					- getYGrid()[0]);
-			contourPlot.setOffsets(getXGrid()[0], getYGrid()[0]);
-
-			List<LinkedList<Point2D>> allPaths = new ArrayList<LinkedList<Point2D>>();
-			contourPlot.ContourKernel(getKDE(), allPaths, thresholdDensity);
-
-			contourPaths = new ContourPath[allPaths.size()];
-			for (int i = 0; i < allPaths.size(); i++) {
-				LinkedList<Point2D> path = allPaths.get(i);
-				int len = path.size();
-				double[] x = new double[len];
-				double[] y = new double[len];
-				for (int j = 0; j < len; j++) {
-					Point2D pt = path.get(j);
-					x[j] = pt.getX();
-					y[j] = pt.getY();
-				}
-				contourPaths[i] = new ContourPath(new ContourAttrib(
-						thresholdDensity), 1, x, y);
+	public ContourPath[][] getContourPaths(double[] hpdValues) {
+
+		if (contourPaths == null || !Arrays.equals(hpdValues, contourHPDValues)) {
+
+			double[] thresholdDensities = findLevelsCorrespondingToMasses(hpdValues);
+
+			double[] gridX = getXGrid();
+			double[] gridY = getYGrid();
+			double[][] density = getKDE();
+			if (gridRefinement > 1 && hasObservations()) {
+				gridX = refineSequence(gridX);
+				gridY = refineSequence(gridY);
+				density = refineNear(thresholdDensities, gridX, gridY);
+			}
+
+			if (marchingSquares || tiledContouring) {
+				contourPaths = MarchingSquares.getContourPaths(density, gridX,
+						gridY, thresholdDensities, tiledContouring);
+			} else {
+				contourPaths = traceContours(density, gridX, gridY,
+						thresholdDensities);
 			}
+			contourHPDValues = hpdValues.clone();
 		}
 
 		return contourPaths;
 	}
 
-	private ContourPath[] contourPaths = null;
+	/**
+	 * Snyder's tracer, all levels are traced in one sweep over the grid
+	 */
+	private ContourPath[][] traceContours(double[][] density, double[] gridX,
+			double[] gridY, double[] thresholdDensities) {
+
+		SnyderContour contourPlot = new SnyderContour(gridX.length,
+				gridY.length);
+		contourPlot.setDeltas(gridX[1] - gridX[0], gridY[1] - gridY[0]);
+		contourPlot.setOffsets(gridX[0], gridY[0]);
+
+		List<LinkedList<Point2D>> allPaths = new ArrayList<LinkedList<Point2D>>();
+		contourPlot.ContourKernel(density, allPaths, thresholdDensities);
+
+		List<List<ContourPath>> levelPaths = new ArrayList<List<ContourPath>>();
+		for (int level = 0; level < thresholdDensities.length; level++) {
+			levelPaths.add(new ArrayList<ContourPath>());
+		}
+
+		for (int i = 0; i < allPaths.size(); i++) {
+			LinkedList<Point2D> path = allPaths.get(i);
+			int level = contourPlot.pathLevels.get(i);
+			int len = path.size();
+			double[] x = new double[len];
+			double[] y = new double[len];
+			// walk the linked list instead of indexing into it
+			int j = 0;
+			for (Point2D pt : path) {
+				x[j] = pt.getX();
+				y[j] = pt.getY();
+				j++;
+			}
+			levelPaths.get(level).add(
+					new ContourPath(new ContourAttrib(
+							thresholdDensities[level]), 1, x, y));
+		}
+
+		ContourPath[][] paths = new ContourPath[thresholdDensities.length][];
+		for (int level = 0; level < thresholdDensities.length; level++) {
+			paths[level] = levelPaths.get(level).toArray(
+					new ContourPath[levelPaths.get(level).size()]);
+		}
+
+		return paths;
+	}// END: traceContours
+
+	/**
+	 * @param marchingSquaresBoolean
+	 *            traces closed rings with MarchingSquares instead of Snyder's
+	 *            tracer
+	 */
+	public void setMarchingSquares(boolean marchingSquaresBoolean) {
+		marchingSquares = marchingSquaresBoolean;
+		contourPaths = null;
+	}
+
+	/**
+	 * @param tiledContouringBoolean
+	 *            traces the contours with MarchingSquares, linking the grid
+	 *            in tiles on the fork-join pool, for large grids
+	 */
+	public void setTiledContouring(boolean tiledContouringBoolean) {
+		tiledContouring = tiledContouringBoolean;
+		contourPaths = null;
+	}
+
+	/**
+	 * Contours are traced on a grid with every cell divided into factor x
+	 * factor cells. The HPD levels still come from the density on the
+	 * original grid, only the cells near a level are evaluated again, the
+	 * others are interpolated. Estimates without observations are contoured
+	 * on the original grid.
+	 * 
+	 * @param factor
+	 *            1 to contour the original grid
+	 */
+	public void setGridRefinement(int factor) {
+
+		if (factor < 1)
+			throw new RuntimeException("refinement factor must be positive");
+
+		gridRefinement = factor;
+		contourPaths = null;
+	}
+
+	private double[] refineSequence(double[] coarse) {
+		return makeSequence(coarse[0], coarse[coarse.length - 1],
+				(coarse.length - 1) * gridRefinement + 1);
+	}
+
+	/**
+	 * Cells which a level crosses at their corners, and their neighbours, are
+	 * evaluated exactly. Elsewhere the density is interpolated bilinearly
+	 * from the corners, which can not cross a level the corners do not.
+	 */
+	private double[][] refineNear(double[] levels, double[] fineX,
+			double[] fineY) {
+
+		double[][] coarse = getKDE();
+		int cells = coarse.length - 1;
+		int factor = gridRefinement;
+
+		boolean[][] crossed = new boolean[cells][cells];
+		for (int i = 0; i < cells; i++) {
+			for (int j = 0; j < cells; j++) {
+
+				double min = Math.min(Math.min(coarse[i][j], coarse[i + 1][j]),
+						Math.min(coarse[i][j + 1], coarse[i + 1][j + 1]));
+				double max = Math.max(Math.max(coarse[i][j], coarse[i + 1][j]),
+						Math.max(coarse[i][j + 1], coarse[i + 1][j + 1]));
+
+				for (double level : levels) {
+					if (min <= level && level <= max) {
+						crossed[i][j] = true;
+					}
+				}
+			}
+		}
+
+		boolean[][] near = new boolean[cells][cells];
+		for (int i = 0; i < cells; i++) {
+			for (int j = 0; j < cells; j++) {
+				if (crossed[i][j]) {
+					for (int a = Math.max(i - 1, 0); a <= Math.min(i + 1,
+							cells - 1); a++) {
+						for (int b = Math.max(j - 1, 0); b <= Math.min(j + 1,
+								cells - 1); b++) {
+							near[a][b] = true;
+						}
+					}
+				}
+			}
+		}
+
+		int m = fineX.length;
+		double[][] fine = new double[m][m];
+		boolean[] evaluate = new boolean[m];
+		for (int a = 0; a < m; a++) {
+
+			int i = Math.min(a / factor, cells - 1);
+			double fa = (a - i * factor) / (double) factor;
+
+			boolean evaluateRow = false;
+			for (int b = 0; b < m; b++) {
+
+				int j = Math.min(b / factor, cells - 1);
+				double fb = (b - j * factor) / (double) factor;
+
+				// points of the original grid keep their density
+				evaluate[b] = near[i][j]
+						&& (a % factor != 0 || b % factor != 0);
+				evaluateRow |= evaluate[b];
+
+				if (!evaluate[b]) {
+					fine[a][b] = (1 - fa) * (1 - fb) * coarse[i][j] + fa
+							* (1 - fb) * coarse[i + 1][j] + (1 - fa) * fb
+							* coarse[i][j + 1] + fa * fb * coarse[i + 1][j + 1];
+				}
+			}
+
+			if (evaluateRow) {
+				getDensities(fineX[a], fineY, evaluate, fine[a]);
+			}
+		}
+
+		return fine;
+	}// END: refineNear
+
+	private int gridRefinement = 1;
+	private boolean marchingSquares = false;
+	private boolean tiledContouring = false;
+	private ContourPath[][] contourPaths = null;
+	private double[] contourHPDValues = null;
 
 }
@@ -1,13 +1,18 @@
 package contouring;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import math.DiscreteStatistics;
 import math.Matrix;
-import math.NormalDistribution;
+import math.GaussianKernel;
 import math.Vector;
-import cern.colt.list.DoubleArrayList;
-import cern.jet.stat.Descriptive;
 
 /**
  * KernelDensityEstimator2D creates a bi-variate kernel density smoother for
@@ -19,6 +24,33 @@ import cern.jet.stat.Descriptive;
 
 public class KernelDensityEstimator2D implements ContourMaker {
 
+	// grid size chosen from the bandwidths and the extent of the grid
+	public static final int AUTOMATIC_GRID_SIZE = 0;
+	// grid points per bandwidth of an automatic grid
+	private static final double POINTS_PER_BANDWIDTH = 4;
+	private static final int MIN_GRID_SIZE = 32;
+	private static final int MAX_GRID_SIZE = 400;
+
+	// observations per block of kernel values
+	private static final int BLOCK_SIZE = 256;
+	// density histogram size for finding HPD levels
+	private static final int HISTOGRAM_BINS = 1 << 12;
+	// grid size squared times observations below which one thread is used
+	private static final double PARALLEL_THRESHOLD = 1 << 22;
+
+	private static final int NTHREDS = Runtime.getRuntime()
+			.availableProcessors();
+	// shared by all estimators, its daemon threads do not keep the
+	// application alive
+	private static final ExecutorService EXECUTOR = Executors
+			.newFixedThreadPool(NTHREDS, new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
 	// kde2d =
 	// function (x, y, h, n = 25, lims = c(range(x), range(y)))
 	// {
@@ -48,12 +80,68 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	 * 
 	 * @param h bi-variate smoothing bandwidths
 	 * 
-	 * @param n smoothed grid size
+	 * @param n smoothed grid size, AUTOMATIC_GRID_SIZE to choose it from the
+	 * bandwidths
 	 * 
 	 * @param lims bi-variate min/max for grid
 	 */
 	public KernelDensityEstimator2D(final double[] x, final double[] y,
 			final double[] h, final int n, final double[] lims) {
+		this(x, y, h, n, lims, 0);
+	}
+
+	/*
+	 * Truncates the Gaussian kernel at the given number of bandwidths in each
+	 * direction, every observation then only contributes to the grid points
+	 * inside its window. The kernel beyond c bandwidths is at most exp(-c^2/2)
+	 * times its peak, so every grid value is underestimated by at most
+	 * exp(-c^2/2) times the peak density of one kernel carrying all of the
+	 * observations, 1/(2 pi h[0] h[1]), and the total mass lost is at most
+	 * 1-(1-2 Phi(-c))^2. Four bandwidths lose at most 3.4e-4 of the peak and
+	 * 1.3e-4 of the mass.
+	 * 
+	 * @param truncation number of bandwidths, 0 for the exact estimate
+	 */
+	public KernelDensityEstimator2D(final double[] x, final double[] y,
+			final double[] h, final int n, final double[] lims,
+			final double truncation) {
+		this(x, y, null, h, n, lims, truncation, false);
+	}
+
+	/*
+	 * Every point contributes its kernel times its weight, so that collapsed
+	 * duplicates give the density of the observations they stand for
+	 * 
+	 * @param points weighted observations
+	 * 
+	 * @param truncation number of bandwidths, 0 for the exact estimate
+	 */
+	public KernelDensityEstimator2D(final WeightedPoints points,
+			final double[] h, final int n, final double[] lims,
+			final double truncation) {
+		this(points, h, n, lims, truncation, false);
+	}
+
+	/*
+	 * @param tabulatedKernel looks the kernel up in GaussianKernel's table
+	 * instead of evaluating exp, with a relative error below 1e-8
+	 */
+	public KernelDensityEstimator2D(final WeightedPoints points,
+			final double[] h, final int n, final double[] lims,
+			final double truncation, final boolean tabulatedKernel) {
+		this(points.getX(), points.getY(), points.getWeights(), h, n, lims,
+				truncation, tabulatedKernel);
+	}
+
+	private KernelDensityEstimator2D(final double[] x, final double[] y,
+			final double[] w, final double[] h, final int n,
+			final double[] lims, final double truncation,
+			final boolean tabulatedKernel) {
+		if (truncation < 0)
+			throw new RuntimeException("truncation can not be negative");
+		this.truncation = truncation;
+		this.tabulatedKernel = tabulatedKernel;
+
 		this.x = x;
 		this.y = y;
 		if (x.length != y.length)
@@ -61,10 +149,19 @@ public class KernelDensityEstimator2D implements ContourMaker {
 
 		this.nx = x.length;
 
-		if (n <= 0)
+		this.w = w;
+		if (w != null) {
+			double total = 0;
+			for (double weight : w)
+				total += weight;
+			this.totalWeight = total;
+		} else {
+			this.totalWeight = nx;
+		}
+
+		if (n < 0)
 			throw new RuntimeException(
 					"must have a positive number of grid points");
-		this.n = n;
 
 		if (lims != null)
 			this.lims = lims;
@@ -76,6 +173,8 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		else
 			setupH();
 
+		this.n = n == AUTOMATIC_GRID_SIZE ? getGridSize(this.h, this.lims) : n;
+
 		doKDE2D();
 	}
 
@@ -83,6 +182,34 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		this(x, y, null, 50, null);
 	}
 
+	/*
+	 * For subclasses estimating the density from something other than the raw
+	 * observations, they are responsible for calling doKDE2D()
+	 * 
+	 * @param h bi-variate smoothing bandwidths
+	 * 
+	 * @param n smoothed grid size
+	 * 
+	 * @param lims bi-variate min/max for grid
+	 */
+	protected KernelDensityEstimator2D(final double[] h, final int n,
+			final double[] lims) {
+		this.x = null;
+		this.y = null;
+		this.nx = 0;
+		this.w = null;
+		this.totalWeight = 0;
+		this.truncation = 0;
+		this.tabulatedKernel = false;
+
+		if (n <= 0)
+			throw new RuntimeException(
+					"must have a positive number of grid points");
+		this.n = n;
+		this.lims = lims;
+		this.h = h;
+	}
+
 	public KernelDensityEstimator2D(final double[] x, final double[] y,
 			final int n) {
 		this(x, y, null, n, null);
@@ -91,49 +218,358 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	public void doKDE2D() {
 		gx = makeSequence(lims[0], lims[1], n);
 		gy = makeSequence(lims[2], lims[3], n);
-		double[][] ax = outerMinusScaled(gx, x, h[0]);
-		double[][] ay = outerMinusScaled(gy, y, h[1]);
-		normalize(ax);
-		normalize(ay);
 		z = new double[n][n];
-		double scale = nx * h[0] * h[1];
+
+		// z = dnorm(ax) %*% t(dnorm(ay)), with the rows of z split across
+		// threads and the observations in blocks, so that the kernel values
+		// of one block of observations stay in cache and are never stored
+		// for all of the observations
+		double work = (double) n * n * nx;
+		if (truncation > 0) {
+			work = nx * Math.min(n, 2 * truncation * h[0] / (gx[1] - gx[0]) + 2)
+					* Math.min(n, 2 * truncation * h[1] / (gy[1] - gy[0]) + 2);
+		}
+
+		int nTasks = work < PARALLEL_THRESHOLD ? 1 : Math.min(NTHREDS, n);
+		if (nTasks == 1) {
+
+			getKernelRows(0, n).run();
+
+		} else {
+
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int task = 0; task < nTasks; task++) {
+				futures.add(EXECUTOR.submit(getKernelRows(task * n / nTasks,
+						(task + 1) * n / nTasks)));
+			}
+
+			try {
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				// the rows still running on the shared executor are given up
+				// and the caller finds its thread interrupted again
+				cancelAll(futures);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				cancelAll(futures);
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		double scale = totalWeight * h[0] * h[1];
 		for (int i = 0; i < n; i++) {
 			for (int j = 0; j < n; j++) {
-				double value = 0;
-				for (int k = 0; k < nx; k++) {
-					value += ax[i][k] * ay[j][k];
-				}
-				z[i][j] = value / scale;
+				z[i][j] /= scale;
 			}
 		}
 	}
 
+	private static void cancelAll(List<Future<?>> futures) {
+		for (Future<?> future : futures) {
+			future.cancel(true);
+		}
+	}
+
+	private Runnable getKernelRows(int from, int to) {
+		if (truncation > 0) {
+			return new TruncatedKernelRows(from, to);
+		} else {
+			return new KernelRows(from, to);
+		}
+	}
+
+	/**
+	 * Accumulates the rows from..to-1 of z, block by block of observations.
+	 * Every z[i][j] adds its terms in the order of the observations, so the
+	 * result does not depend on the blocking nor on the number of threads.
+	 */
+	private class KernelRows implements Runnable {
+
+		private final int from;
+		private final int to;
+
+		public KernelRows(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public void run() {
+
+			int rows = to - from;
+			double[] axBlock = new double[rows * BLOCK_SIZE];
+			double[] ayBlock = new double[n * BLOCK_SIZE];
+
+			for (int k0 = 0; k0 < nx; k0 += BLOCK_SIZE) {
+
+				int size = Math.min(BLOCK_SIZE, nx - k0);
+
+				// kernel weights straight from the distances, the matrix of
+				// scaled distances is never stored
+				for (int i = 0; i < rows; i++) {
+					GaussianKernel.densities(gx[from + i], x, k0, size, h[0],
+							tabulatedKernel, axBlock, i * size);
+				}
+
+				if (w != null) {
+					for (int i = 0; i < rows; i++) {
+						for (int k = 0; k < size; k++) {
+							axBlock[i * size + k] *= w[k0 + k];
+						}
+					}
+				}
+
+				for (int j = 0; j < n; j++) {
+					GaussianKernel.densities(gy[j], y, k0, size, h[1],
+							tabulatedKernel, ayBlock, j * size);
+				}
+
+				for (int i = 0; i < rows; i++) {
+
+					double[] zi = z[from + i];
+					int ai = i * size;
+
+					// four columns at a time share the loads of the ax row
+					int j = 0;
+					for (; j + 4 <= n; j += 4) {
+
+						double v0 = zi[j];
+						double v1 = zi[j + 1];
+						double v2 = zi[j + 2];
+						double v3 = zi[j + 3];
+						int b0 = j * size;
+						int b1 = b0 + size;
+						int b2 = b1 + size;
+						int b3 = b2 + size;
+
+						for (int k = 0; k < size; k++) {
+							double a = axBlock[ai + k];
+							v0 += a * ayBlock[b0 + k];
+							v1 += a * ayBlock[b1 + k];
+							v2 += a * ayBlock[b2 + k];
+							v3 += a * ayBlock[b3 + k];
+						}
+
+						zi[j] = v0;
+						zi[j + 1] = v1;
+						zi[j + 2] = v2;
+						zi[j + 3] = v3;
+					}
+
+					for (; j < n; j++) {
+
+						double v = zi[j];
+						int b = j * size;
+						for (int k = 0; k < size; k++) {
+							v += axBlock[ai + k] * ayBlock[b + k];
+						}
+						zi[j] = v;
+					}
+				}
+			}
+		}// END: run
+	}// END: KernelRows class
+
+	/**
+	 * Accumulates the rows from..to-1 of z, adding every observation to the
+	 * grid points inside its truncated kernel window only. Grid values still
+	 * add their terms in the order of the observations.
+	 */
+	private class TruncatedKernelRows implements Runnable {
+
+		private final int from;
+		private final int to;
+
+		public TruncatedKernelRows(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public void run() {
+
+			double dx = gx[1] - gx[0];
+			double dy = gy[1] - gy[0];
+			double[] wy = new double[n];
+
+			for (int k = 0; k < nx; k++) {
+
+				// window bounds are widened by one grid point against the
+				// rounding of the grid, the distance test is exact
+				int iFrom = Math.max(from, (int) Math.floor((x[k] - truncation
+						* h[0] - gx[0])
+						/ dx));
+				int iTo = Math.min(to - 1, (int) Math.ceil((x[k] + truncation
+						* h[0] - gx[0])
+						/ dx));
+				if (iFrom > iTo) {
+					continue;
+				}
+
+				int jFrom = Math.max(0, (int) Math.floor((y[k] - truncation
+						* h[1] - gy[0])
+						/ dy));
+				int jTo = Math.min(n - 1, (int) Math.ceil((y[k] + truncation
+						* h[1] - gy[0])
+						/ dy));
+				if (jFrom > jTo) {
+					continue;
+				}
+
+				for (int j = jFrom; j <= jTo; j++) {
+					double u = (gy[j] - y[k]) / h[1];
+					wy[j] = Math.abs(u) <= truncation ? kernel(u) : 0;
+				}
+
+				for (int i = iFrom; i <= iTo; i++) {
+
+					double u = (gx[i] - x[k]) / h[0];
+					if (Math.abs(u) > truncation) {
+						continue;
+					}
+
+					double a = kernel(u);
+					if (w != null) {
+						a *= w[k];
+					}
+					double[] zi = z[i];
+					for (int j = jFrom; j <= jTo; j++) {
+						zi[j] += a * wy[j];
+					}
+				}
+			}
+		}// END: run
+	}// END: TruncatedKernelRows class
+
 	public double findLevelCorrespondingToMass(double probabilityMass) {
-		double level = 0;
-		double[] sz = new double[n * n];
-		double[] c1 = new double[n * n];
-		for (int i = 0; i < n; i++)
-			System.arraycopy(z[i], 0, sz, i * n, n);
-		Arrays.sort(sz);
+		double[] probabilityMasses = { probabilityMass };
+		return findLevelsCorrespondingToMasses(probabilityMasses)[0];
+	}
+
+	/**
+	 * Finds the density levels above which the grid holds the given
+	 * probability masses. The densities are not sorted: a histogram of the
+	 * densities locates the bin holding each level, and only the densities
+	 * in those bins are sorted to interpolate the level, as the full sort
+	 * did, on the density as a function of the cumulative mass.
+	 * 
+	 * @return level for every probability mass
+	 */
+	public double[] findLevelsCorrespondingToMasses(double[] probabilityMasses) {
 		final double dx = gx[1] - gx[0];
 		final double dy = gy[1] - gy[0];
 		final double dxdy = dx * dy;
-		c1[0] = sz[0] * dxdy;
-		final double criticalValue = 1.0 - probabilityMass;
-		if (criticalValue < c1[0] || criticalValue >= 1.0)
-			throw new RuntimeException();
-		// do linearInterpolation on density (y) as function of cumulative sum
-		// (x)
-		for (int i = 1; i < n * n; i++) {
-			c1[i] = sz[i] * dxdy + c1[i - 1];
-			if (c1[i] > criticalValue) { // first largest point
-				final double diffC1 = c1[i] - c1[i - 1];
-				final double diffSz = sz[i] - sz[i - 1];
-				level = sz[i] - (c1[i] - criticalValue) / diffC1 * diffSz;
-				break;
+
+		double min = Double.MAX_VALUE;
+		double max = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				min = Math.min(min, z[i][j]);
+				max = Math.max(max, z[i][j]);
+			}
+		}
+
+		// densities per bin, cumulative mass of the bins below and the
+		// largest density of every bin
+		final int bins = Math.min(HISTOGRAM_BINS, n * n);
+		final double binScale = max > 0 ? (bins - 1) / max : 0;
+		int[] binCounts = new int[bins];
+		double[] binMasses = new double[bins];
+		double[] binMax = new double[bins];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				int bin = getBin(z[i][j], binScale, bins);
+				binCounts[bin]++;
+				binMasses[bin] += z[i][j] * dxdy;
+				binMax[bin] = Math.max(binMax[bin], z[i][j]);
+			}
+		}
+
+		// bin holding every level, -1 if the grid holds less mass
+		int[] levelBins = new int[probabilityMasses.length];
+		double[] massesBelow = new double[probabilityMasses.length];
+		for (int level = 0; level < probabilityMasses.length; level++) {
+
+			final double criticalValue = 1.0 - probabilityMasses[level];
+			if (criticalValue < min * dxdy || criticalValue >= 1.0)
+				throw new RuntimeException();
+
+			levelBins[level] = -1;
+			double cumulative = 0;
+			for (int bin = 0; bin < bins; bin++) {
+				if (cumulative + binMasses[bin] > criticalValue) {
+					levelBins[level] = bin;
+					massesBelow[level] = cumulative;
+					break;
+				}
+				cumulative += binMasses[bin];
+			}
+		}
+
+		// one more pass collects the densities of the level bins
+		double[][] binValues = new double[bins][];
+		for (int bin : levelBins) {
+			if (bin >= 0 && binValues[bin] == null) {
+				binValues[bin] = new double[binCounts[bin]];
 			}
 		}
-		return level;
+		int[] filled = new int[bins];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				int bin = getBin(z[i][j], binScale, bins);
+				if (binValues[bin] != null) {
+					binValues[bin][filled[bin]++] = z[i][j];
+				}
+			}
+		}
+		for (double[] values : binValues) {
+			if (values != null) {
+				Arrays.sort(values);
+			}
+		}
+
+		double[] levels = new double[probabilityMasses.length];
+		for (int level = 0; level < probabilityMasses.length; level++) {
+
+			int levelBin = levelBins[level];
+			if (levelBin < 0) {
+				continue;
+			}
+
+			final double criticalValue = 1.0 - probabilityMasses[level];
+
+			// largest density below the bin
+			double previous = min;
+			for (int bin = levelBin - 1; bin >= 0; bin--) {
+				if (binCounts[bin] > 0) {
+					previous = binMax[bin];
+					break;
+				}
+			}
+
+			// do linearInterpolation on density (y) as function of
+			// cumulative sum (x)
+			double cumulative = massesBelow[level];
+			for (double value : binValues[levelBin]) {
+				final double previousCumulative = cumulative;
+				cumulative += value * dxdy;
+				if (cumulative > criticalValue) { // first largest point
+					final double diffC1 = cumulative - previousCumulative;
+					final double diffSz = value - previous;
+					levels[level] = value - (cumulative - criticalValue)
+							/ diffC1 * diffSz;
+					break;
+				}
+				previous = value;
+			}
+		}
+
+		return levels;
+	}
+
+	private static int getBin(double value, double binScale, int bins) {
+		return Math.min(Math.max((int) (value * binScale), 0), bins - 1);
 	}
 
 	public ContourPath[] getContourPaths(double hpdValue) {
@@ -152,6 +588,91 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		return paths;
 	}
 
+	public ContourPath[][] getContourPaths(double[] hpdValues) {
+
+		double[] thresholdDensities = findLevelsCorrespondingToMasses(hpdValues);
+		ContourAttrib[] attributes = new ContourAttrib[hpdValues.length];
+		for (int level = 0; level < hpdValues.length; level++) {
+			attributes[level] = new ContourAttrib(thresholdDensities[level]);
+		}
+
+		ContourGenerator contour = new ContourGenerator(getXGrid(), getYGrid(),
+				getKDE(), attributes);
+
+		List<List<ContourPath>> levelPaths = new ArrayList<List<ContourPath>>();
+		for (int level = 0; level < hpdValues.length; level++) {
+			levelPaths.add(new ArrayList<ContourPath>());
+		}
+
+		try {
+			for (ContourPath path : contour.getContours()) {
+				levelPaths.get(path.getLevelIndex()).add(path);
+			}
+		} catch (InterruptedException e) {
+			// the caller is being cancelled, it gets no paths and finds its
+			// thread interrupted again
+			Thread.currentThread().interrupt();
+			for (List<ContourPath> paths : levelPaths) {
+				paths.clear();
+			}
+		}
+
+		ContourPath[][] paths = new ContourPath[hpdValues.length][];
+		for (int level = 0; level < hpdValues.length; level++) {
+			paths[level] = levelPaths.get(level).toArray(
+					new ContourPath[levelPaths.get(level).size()]);
+		}
+		return paths;
+	}
+
+	/**
+	 * @return whether the estimate was computed from observations, which
+	 *         getDensities can then evaluate anywhere
+	 */
+	protected boolean hasObservations() {
+		return x != null;
+	}
+
+	/**
+	 * Evaluates the estimate at the points (u, v[j]) for which evaluate[j] is
+	 * set, with the kernel, weights and truncation of the grid estimate
+	 * 
+	 * @param densities
+	 *            receives the density of every evaluated point
+	 */
+	protected void getDensities(double u, double[] v, boolean[] evaluate,
+			double[] densities) {
+
+		double scale = totalWeight * h[0] * h[1];
+		double[] ax = new double[nx];
+		for (int k = 0; k < nx; k++) {
+			double t = (u - x[k]) / h[0];
+			ax[k] = truncation > 0 && Math.abs(t) > truncation ? 0
+					: kernel(t);
+			if (w != null) {
+				ax[k] *= w[k];
+			}
+		}
+
+		for (int j = 0; j < v.length; j++) {
+
+			if (!evaluate[j]) {
+				continue;
+			}
+
+			double density = 0;
+			for (int k = 0; k < nx; k++) {
+				if (ax[k] != 0) {
+					double t = (v[j] - y[k]) / h[1];
+					if (!(truncation > 0 && Math.abs(t) > truncation)) {
+						density += ax[k] * kernel(t);
+					}
+				}
+			}
+			densities[j] = density / scale;
+		}
+	}// END: getDensities
+
 	public double[][] getKDE() {
 		return z;
 	}
@@ -164,20 +685,9 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		return gy;
 	}
 
-	public void normalize(double[][] X) {
-		for (int i = 0; i < X.length; i++) {
-			for (int j = 0; j < X[0].length; j++)
-				X[i][j] = NormalDistribution.pdf(X[i][j], 0, 1);
-		}
-	}
-
-	public double[][] outerMinusScaled(double[] X, double[] Y, double scale) {
-		double[][] A = new double[X.length][Y.length];
-		for (int indexX = 0; indexX < X.length; indexX++) {
-			for (int indexY = 0; indexY < Y.length; indexY++)
-				A[indexX][indexY] = (X[indexX] - Y[indexY]) / scale;
-		}
-		return A;
+	private double kernel(double u) {
+		return tabulatedKernel ? GaussianKernel.tabulatedDensity(u)
+				: GaussianKernel.density(u);
 	}
 
 	public double[] makeSequence(double start, double end, int length) {
@@ -190,7 +700,29 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		return seq;
 	}
 
-	private double margin = 0.1;
+	/**
+	 * @return smallest grid size spacing the grid points at most a quarter of
+	 *         a bandwidth apart in both directions, within MIN_GRID_SIZE and
+	 *         MAX_GRID_SIZE. Slices whose points are spread thinly over a
+	 *         wide extent get the largest grids.
+	 */
+	public static int getGridSize(double[] h, double[] lims) {
+
+		double bandwidths = Math.max((lims[1] - lims[0]) / h[0],
+				(lims[3] - lims[2]) / h[1]);
+
+		// NaN and infinite ratios of degenerate bandwidths get the largest
+		// grid
+		if (!(bandwidths < MAX_GRID_SIZE)) {
+			return MAX_GRID_SIZE;
+		}
+
+		int n = (int) Math.ceil(bandwidths * POINTS_PER_BANDWIDTH) + 1;
+		return Math.min(Math.max(n, MIN_GRID_SIZE), MAX_GRID_SIZE);
+	}
+
+	// fraction of the data range added on each side of the grid
+	protected static final double MARGIN = 0.1;
 
 	private void setupLims() {
 		lims = new double[4];
@@ -199,8 +731,8 @@ public class KernelDensityEstimator2D implements ContourMaker {
 		lims[2] = DiscreteStatistics.min(y);
 		lims[3] = DiscreteStatistics.max(y);
 
-		double xDelta = (lims[1] - lims[0]) * margin;
-		double yDelta = (lims[3] - lims[2]) * margin;
+		double xDelta = (lims[1] - lims[0]) * MARGIN;
+		double yDelta = (lims[3] - lims[2]) * MARGIN;
 		lims[0] -= xDelta;
 		lims[1] += xDelta;
 		lims[2] -= yDelta;
@@ -209,8 +741,13 @@ public class KernelDensityEstimator2D implements ContourMaker {
 
 	private void setupH() {
 		h = new double[2];
-		h[0] = bandwidthNRD(x) / 4;
-		h[1] = bandwidthNRD(y) / 4;
+		if (w != null) {
+			h[0] = bandwidthNRD(x, w) / 4;
+			h[1] = bandwidthNRD(y, w) / 4;
+		} else {
+			h[0] = bandwidthNRD(x) / 4;
+			h[1] = bandwidthNRD(y) / 4;
+		}
 	}
 
 	// bandwidth.nrd =
@@ -221,19 +758,27 @@ public class KernelDensityEstimator2D implements ContourMaker {
 	// 4 * 1.06 * min(sqrt(var(x)), h) * length(x)^(-1/5)
 
 	// }
-	public double bandwidthNRD(double[] in) {
+	public static double bandwidthNRD(double[] in) {
+		return new BandwidthSelector(in)
+				.getBandwidth(BandwidthSelector.Rule.NRD);
+	}
+
+	/**
+	 * bandwidth.nrd of observations with frequency weights, for whole weights
+	 * it equals bandwidth.nrd of the observations repeated that many times
+	 */
+	public static double bandwidthNRD(double[] in, double[] weights) {
+		return new BandwidthSelector(in, weights)
+				.getBandwidth(BandwidthSelector.Rule.NRD);
+	}
 
-		DoubleArrayList inList = new DoubleArrayList(in.length);
-		for (double d : in)
-			inList.add(d);
-		inList.sort();
+	public static double bandwidthNRD(double lowerQuartile,
+			double upperQuartile, double variance, double length) {
 
-		final double h = (Descriptive.quantile(inList, 0.75) - Descriptive
-				.quantile(inList, 0.25)) / 1.34;
+		final double h = (upperQuartile - lowerQuartile) / 1.34;
 
-		return 4 * 1.06
-				* Math.min(Math.sqrt(DiscreteStatistics.variance(in)), h)
-				* Math.pow(in.length, -0.2);
+		return 4 * 1.06 * Math.min(Math.sqrt(variance), h)
+				* Math.pow(length, -0.2);
 	}
 
 	public static void main(String[] arg) {
@@ -256,12 +801,16 @@ public class KernelDensityEstimator2D implements ContourMaker {
 
 	private final double[] x; // x coordinates
 	private final double[] y; // y coordinates
-	private double[] h; // h[0] x-bandwidth, h[1] y-bandwidth
-	private final int n; // grid size
-	private double[] lims; // x,y limits
+	protected double[] h; // h[0] x-bandwidth, h[1] y-bandwidth
+	protected final int n; // grid size
+	protected double[] lims; // x,y limits
 	private int nx; // length of vectors
-	private double[] gx; // x-grid points
-	private double[] gy; // y-grid points
-	private double[][] z; // KDE estimate;
+	private final double[] w; // weights, null for unweighted observations
+	private final double totalWeight; // sum of the weights
+	private final double truncation; // kernel truncation in bandwidths
+	private final boolean tabulatedKernel; // approximate kernel from a table
+	protected double[] gx; // x-grid points
+	protected double[] gy; // y-grid points
+	protected double[][] z; // KDE estimate;
 
 }
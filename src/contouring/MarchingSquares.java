@@ -0,0 +1,333 @@
+package contouring;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Marching squares contouring of a density grid into closed rings. The grid
+ * is surrounded by a border of points below every level, so contours leaving
+ * the grid are closed along its edge, and every ring repeats its first vertex
+ * at the end as KML expects.
+ *
+ * Rings are traced with the region above the level on their left, through a
+ * table linking every crossed grid edge to the edge its segment leads to.
+ * Vertices go straight into primitive buffers and all state is local to a
+ * call, so slices can be contoured concurrently.
+ *
+ * Large grids can be linked tile by tile on the fork-join pool. Every cell
+ * only links the edges its own segments start from and neighbouring tiles
+ * share the edges on their seams, so the rings are stitched across the seams
+ * by the shared table and traced exactly as on the whole grid.
+ */
+public class MarchingSquares {
+
+	// no segment leaves this edge, or it has already been traced
+	private static final int NONE = -1;
+	// cells per side of the tiles linked as one task
+	private static final int TILE_SIZE = 128;
+
+	/**
+	 * @param z
+	 *            density at (gx[i], gy[j]) in z[i][j]
+	 * @return closed rings of every level, in the order of the levels
+	 */
+	public static ContourPath[][] getContourPaths(double[][] z, double[] gx,
+			double[] gy, double[] levels) {
+		return getContourPaths(z, gx, gy, levels, false);
+	}
+
+	/**
+	 * @param tiled
+	 *            links the cells of the grid in tiles contoured concurrently
+	 *            on the fork-join pool
+	 */
+	public static ContourPath[][] getContourPaths(double[][] z, double[] gx,
+			double[] gy, double[] levels, boolean tiled) {
+
+		int n = gx.length;
+		int m = gy.length;
+
+		// vertices of the bordered grid are (a, b) = (i + 1, j + 1)
+		int rows = n + 2;
+		int columns = m + 2;
+		int aEdges = (rows - 1) * columns;
+		int[] next = new int[aEdges + rows * (columns - 1)];
+
+		double[] bufferX = new double[64];
+		double[] bufferY = new double[64];
+
+		ContourPath[][] paths = new ContourPath[levels.length][];
+		for (int level = 0; level < levels.length; level++) {
+
+			double threshold = levels[level];
+			Arrays.fill(next, NONE);
+
+			if (tiled) {
+				ForkJoinPool.commonPool().invoke(
+						new LinkTile(z, n, m, threshold, 0, rows - 1, 0,
+								columns - 1, columns, aEdges, next));
+			} else {
+				linkCells(z, n, m, threshold, 0, rows - 1, 0, columns - 1,
+						columns, aEdges, next);
+			}
+
+			List<ContourPath> levelPaths = new ArrayList<ContourPath>();
+			ContourAttrib attributes = new ContourAttrib(threshold);
+
+			for (int start = 0; start < next.length; start++) {
+
+				if (next[start] == NONE) {
+					continue;
+				}
+
+				int count = 0;
+				int edge = start;
+				do {
+
+					if (count + 1 >= bufferX.length) {
+						bufferX = Arrays.copyOf(bufferX, 2 * bufferX.length);
+						bufferY = Arrays.copyOf(bufferY, 2 * bufferY.length);
+					}
+
+					setCrossing(z, gx, gy, edge, threshold, columns, aEdges,
+							bufferX, bufferY, count);
+					count++;
+
+					int following = next[edge];
+					next[edge] = NONE;
+					edge = following;
+
+				} while (edge != start);
+
+				// close the ring
+				bufferX[count] = bufferX[0];
+				bufferY[count] = bufferY[0];
+				count++;
+
+				levelPaths.add(new ContourPath(attributes, level, Arrays
+						.copyOf(bufferX, count), Arrays.copyOf(bufferY, count)));
+			}
+
+			paths[level] = levelPaths.toArray(new ContourPath[levelPaths
+					.size()]);
+		}
+
+		return paths;
+	}// END: getContourPaths
+
+	/**
+	 * Links the cells (a, b) for a in aFrom..aTo-1 and b in bFrom..bTo-1
+	 */
+	private static void linkCells(double[][] z, int n, int m, double level,
+			int aFrom, int aTo, int bFrom, int bTo, int columns, int aEdges,
+			int[] next) {
+
+		for (int a = aFrom; a < aTo; a++) {
+			for (int b = bFrom; b < bTo; b++) {
+				linkCell(z, n, m, a, b, level, columns, aEdges, next);
+			}
+		}
+	}// END: linkCells
+
+	/**
+	 * Splits a block of cells in halves along its longer side until it fits
+	 * in a tile, then links the tile
+	 */
+	@SuppressWarnings("serial")
+	private static class LinkTile extends RecursiveAction {
+
+		private final double[][] z;
+		private final int n;
+		private final int m;
+		private final double level;
+		private final int aFrom;
+		private final int aTo;
+		private final int bFrom;
+		private final int bTo;
+		private final int columns;
+		private final int aEdges;
+		private final int[] next;
+
+		public LinkTile(double[][] z, int n, int m, double level, int aFrom,
+				int aTo, int bFrom, int bTo, int columns, int aEdges,
+				int[] next) {
+			this.z = z;
+			this.n = n;
+			this.m = m;
+			this.level = level;
+			this.aFrom = aFrom;
+			this.aTo = aTo;
+			this.bFrom = bFrom;
+			this.bTo = bTo;
+			this.columns = columns;
+			this.aEdges = aEdges;
+			this.next = next;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (aTo - aFrom <= TILE_SIZE && bTo - bFrom <= TILE_SIZE) {
+
+				linkCells(z, n, m, level, aFrom, aTo, bFrom, bTo, columns,
+						aEdges, next);
+
+			} else if (aTo - aFrom >= bTo - bFrom) {
+
+				int middle = (aFrom + aTo) >>> 1;
+				invokeAll(new LinkTile(z, n, m, level, aFrom, middle, bFrom,
+						bTo, columns, aEdges, next), new LinkTile(z, n, m,
+						level, middle, aTo, bFrom, bTo, columns, aEdges, next));
+
+			} else {
+
+				int middle = (bFrom + bTo) >>> 1;
+				invokeAll(new LinkTile(z, n, m, level, aFrom, aTo, bFrom,
+						middle, columns, aEdges, next), new LinkTile(z, n, m,
+						level, aFrom, aTo, middle, bTo, columns, aEdges, next));
+			}
+		}// END: compute
+	}// END: LinkTile class
+
+	/**
+	 * Links the edges of the cell with corners (a, b) and (a + 1, b + 1)
+	 * which the level crosses. Corners are numbered counterclockwise from
+	 * (a, b), edge k joins corner k to the next one.
+	 */
+	private static void linkCell(double[][] z, int n, int m, int a, int b,
+			double level, int columns, int aEdges, int[] next) {
+
+		int corners = (isAbove(z, n, m, a, b, level) ? 1 : 0)
+				| (isAbove(z, n, m, a + 1, b, level) ? 2 : 0)
+				| (isAbove(z, n, m, a + 1, b + 1, level) ? 4 : 0)
+				| (isAbove(z, n, m, a, b + 1, level) ? 8 : 0);
+
+		if (corners == 0 || corners == 15) {
+			return;
+		}
+
+		int e0 = a * columns + b;
+		int e1 = aEdges + (a + 1) * (columns - 1) + b;
+		int e2 = a * columns + b + 1;
+		int e3 = aEdges + a * (columns - 1) + b;
+
+		switch (corners) {
+		case 1:
+			next[e0] = e3;
+			break;
+		case 2:
+			next[e1] = e0;
+			break;
+		case 3:
+			next[e1] = e3;
+			break;
+		case 4:
+			next[e2] = e1;
+			break;
+		case 6:
+			next[e2] = e0;
+			break;
+		case 7:
+			next[e2] = e3;
+			break;
+		case 8:
+			next[e3] = e2;
+			break;
+		case 9:
+			next[e0] = e2;
+			break;
+		case 11:
+			next[e1] = e2;
+			break;
+		case 12:
+			next[e3] = e1;
+			break;
+		case 13:
+			next[e0] = e1;
+			break;
+		case 14:
+			next[e3] = e0;
+			break;
+		case 5:
+		case 10:
+			// saddles only occur inside the grid, the mean of the corners
+			// decides whether the above corners are joined
+			double center = (z[a - 1][b - 1] + z[a][b - 1] + z[a][b]
+					+ z[a - 1][b]) / 4;
+			boolean joined = center >= level;
+			if (corners == 5) {
+				if (joined) {
+					next[e0] = e1;
+					next[e2] = e3;
+				} else {
+					next[e0] = e3;
+					next[e2] = e1;
+				}
+			} else {
+				if (joined) {
+					next[e3] = e0;
+					next[e1] = e2;
+				} else {
+					next[e1] = e0;
+					next[e3] = e2;
+				}
+			}
+			break;
+		}
+	}// END: linkCell
+
+	private static boolean isAbove(double[][] z, int n, int m, int a, int b,
+			double level) {
+
+		if (a == 0 || b == 0 || a == n + 1 || b == m + 1) {
+			return false;
+		}
+
+		return z[a - 1][b - 1] >= level;
+	}
+
+	/**
+	 * Interpolates where the level crosses the edge. Edges to the border
+	 * are crossed at their grid point.
+	 */
+	private static void setCrossing(double[][] z, double[] gx, double[] gy,
+			int edge, double level, int columns, int aEdges, double[] bufferX,
+			double[] bufferY, int index) {
+
+		int a0, b0, a1, b1;
+		if (edge < aEdges) {
+			a0 = edge / columns;
+			b0 = edge % columns;
+			a1 = a0 + 1;
+			b1 = b0;
+		} else {
+			a0 = (edge - aEdges) / (columns - 1);
+			b0 = (edge - aEdges) % (columns - 1);
+			a1 = a0;
+			b1 = b0 + 1;
+		}
+
+		int n = gx.length;
+		int m = gy.length;
+		boolean inside0 = a0 > 0 && b0 > 0 && a0 <= n && b0 <= m;
+		boolean inside1 = a1 > 0 && b1 > 0 && a1 <= n && b1 <= m;
+
+		if (!inside0) {
+			bufferX[index] = gx[a1 - 1];
+			bufferY[index] = gy[b1 - 1];
+		} else if (!inside1) {
+			bufferX[index] = gx[a0 - 1];
+			bufferY[index] = gy[b0 - 1];
+		} else {
+			double z0 = z[a0 - 1][b0 - 1];
+			double z1 = z[a1 - 1][b1 - 1];
+			double t = (level - z0) / (z1 - z0);
+			bufferX[index] = gx[a0 - 1] + t * (gx[a1 - 1] - gx[a0 - 1]);
+			bufferY[index] = gy[b0 - 1] + t * (gy[b1 - 1] - gy[b0 - 1]);
+		}
+	}// END: setCrossing
+
+}// END: class
@@ -0,0 +1,169 @@
+package contouring;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import structure.SliceCoordinates;
+
+/**
+ * One BinnedDensityGrid per time slice, for estimating the slice densities
+ * without keeping the coordinates of all trees in memory.
+ *
+ * The grids are filled in two passes over the same trees. The first pass
+ * only collects the limits of the coordinates of every slice, the second one
+ * bins the coordinates onto grids with these limits plus KDE margin, so no
+ * coordinate ever falls outside its grid. Parallel workers each fill their
+ * own SliceDensityGrids which are merged in worker order.
+ */
+public class SliceDensityGrids {
+
+	// grid size when it is left to the estimator
+	public static final int DEFAULT_GRID_SIZE = 200;
+
+	/**
+	 * Starts the first pass, which collects the limits of the coordinates of
+	 * every slice
+	 */
+	public SliceDensityGrids(final int sliceCount) {
+
+		lims = new double[sliceCount][];
+		for (int slice = 0; slice < sliceCount; slice++) {
+			lims[slice] = new double[] { Double.POSITIVE_INFINITY,
+					Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY,
+					Double.NEGATIVE_INFINITY };
+		}
+		grids = null;
+	}
+
+	/**
+	 * Starts the second pass, which bins the coordinates onto grids with the
+	 * limits the first pass collected. Slices without coordinates get no
+	 * grid.
+	 *
+	 * @param gridSize
+	 *            KernelDensityEstimator2D.AUTOMATIC_GRID_SIZE for
+	 *            DEFAULT_GRID_SIZE
+	 */
+	public SliceDensityGrids(final SliceDensityGrids limits, int gridSize) {
+
+		if (limits.grids != null)
+			throw new IllegalArgumentException(
+					"limits must come from a first pass");
+
+		if (gridSize == KernelDensityEstimator2D.AUTOMATIC_GRID_SIZE) {
+			gridSize = DEFAULT_GRID_SIZE;
+		}
+
+		lims = limits.lims;
+		grids = new BinnedDensityGrid[lims.length];
+		for (int slice = 0; slice < lims.length; slice++) {
+			if (lims[slice][0] <= lims[slice][1]) {
+				grids[slice] = new BinnedDensityGrid(gridSize, lims[slice],
+						KernelDensityEstimator2D.MARGIN);
+			}
+		}
+	}
+
+	private SliceDensityGrids(final double[][] lims,
+			final BinnedDensityGrid[] grids) {
+		this.lims = lims;
+		this.grids = grids;
+	}
+
+	/**
+	 * Merges the parts of the same pass, in the order of the list
+	 */
+	public static SliceDensityGrids merge(final List<SliceDensityGrids> parts) {
+
+		SliceDensityGrids first = parts.get(0);
+		int sliceCount = first.getSliceCount();
+
+		if (first.grids == null) {
+
+			SliceDensityGrids merged = new SliceDensityGrids(sliceCount);
+			for (SliceDensityGrids part : parts) {
+				for (int slice = 0; slice < sliceCount; slice++) {
+					merged.extend(slice, part.lims[slice][0],
+							part.lims[slice][2]);
+					merged.extend(slice, part.lims[slice][1],
+							part.lims[slice][3]);
+				}
+			}
+
+			return merged;
+		}
+
+		BinnedDensityGrid[] grids = new BinnedDensityGrid[sliceCount];
+		for (int slice = 0; slice < sliceCount; slice++) {
+
+			if (first.grids[slice] != null) {
+
+				List<BinnedDensityGrid> sliceGrids = new ArrayList<BinnedDensityGrid>();
+				for (SliceDensityGrids part : parts) {
+					sliceGrids.add(part.grids[slice]);
+				}
+
+				grids[slice] = BinnedDensityGrid.merge(sliceGrids);
+			}
+		}
+
+		return new SliceDensityGrids(first.lims, grids);
+	}// END: merge
+
+	/**
+	 * Takes the latitudes (x) and longitudes (y) collected for every slice,
+	 * into the limits in the first pass and onto the grids in the second one
+	 */
+	public void addAll(final SliceCoordinates slices) {
+
+		for (int slice = 0; slice < slices.getSliceCount(); slice++) {
+
+			if (grids == null) {
+
+				for (int i = 0; i < slices.getCount(slice); i++) {
+					extend(slice, slices.getLatitude(slice, i), slices
+							.getLongitude(slice, i));
+				}
+
+			} else if (slices.getCount(slice) > 0) {
+
+				if (grids[slice] == null)
+					throw new RuntimeException("slice " + slice
+							+ " had no coordinates in the first pass");
+
+				grids[slice].addAll(slices, slice);
+			}
+		}
+	}// END: addAll
+
+	private void extend(final int slice, final double x, final double y) {
+		double[] sliceLims = lims[slice];
+		sliceLims[0] = Math.min(sliceLims[0], x);
+		sliceLims[1] = Math.max(sliceLims[1], x);
+		sliceLims[2] = Math.min(sliceLims[2], y);
+		sliceLims[3] = Math.max(sliceLims[3], y);
+	}
+
+	public int getSliceCount() {
+		return lims.length;
+	}
+
+	/**
+	 * @return number of coordinates binned for the slice
+	 */
+	public long getCount(final int slice) {
+		return grids == null || grids[slice] == null ? 0 : grids[slice]
+				.getCount();
+	}
+
+	/**
+	 * @return grid of the slice, null if the slice has no coordinates
+	 */
+	public BinnedDensityGrid getGrid(final int slice) {
+		return grids[slice];
+	}
+
+	private final double[][] lims; // per slice x,y min/max of the coordinates
+	private final BinnedDensityGrid[] grids; // null in the first pass
+
+}
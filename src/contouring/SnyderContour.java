@@ -2,6 +2,7 @@ package contouring;
 
 import java.awt.Dimension;
 import java.awt.geom.Point2D;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -50,6 +51,8 @@ public class SnyderContour {
 	double xy[] = new double[2];
 	double prevXY[] = new double[2];
 	float cv[] = new float[ncv];
+	// contour index of every path, in the order the paths were started
+	List<Integer> pathLevels = new ArrayList<Integer>();
 	boolean jump;
 
 	// -------------------------------------------------------
@@ -136,6 +139,7 @@ public class SnyderContour {
 			LinkedList<Point2D> path = new LinkedList<Point2D>();
 			path.add(new Point2D.Double(u, v));
 			allPaths.add(path);
+			pathLevels.add(cntrIndex);
 		}
 		prevXY[0] = xy[0];
 		prevXY[1] = xy[1];
@@ -402,9 +406,22 @@ public class SnyderContour {
 
 	void ContourKernel(double[][] data, List<LinkedList<Point2D>> allPaths,
 			double level) {
+		ContourKernel(data, allPaths, new double[] { level });
+	}
+
+	// -------------------------------------------------------
+	// Traces the contours of all levels in one sweep over
+	// the grid, "pathLevels" holds the index of the level
+	// every path in "allPaths" belongs to.
+	// -------------------------------------------------------
+	void ContourKernel(double[][] data, List<LinkedList<Point2D>> allPaths,
+			double[] levels) {
 
-		ncv = 1;
-		cv[0] = (float) level;
+		ncv = levels.length;
+		cv = new float[ncv];
+		for (int i = 0; i < ncv; i++)
+			cv[i] = (float) levels[i];
+		pathLevels.clear();
 
 		int workLength = 2 * xSteps * ySteps * ncv;
 		boolean workSpace[]; // Allocate below if data valid
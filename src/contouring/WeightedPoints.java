@@ -0,0 +1,143 @@
+package contouring;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bi-variate observations with weights. Posterior samples of locations repeat
+ * a lot, collapsing the repeats into one weighted point makes the kernel
+ * density cost grow with the number of distinct locations instead of the
+ * number of samples.
+ */
+public class WeightedPoints {
+
+	private final double[] x;
+	private final double[] y;
+	private final double[] weights;
+	private final double totalWeight;
+
+	public WeightedPoints(double[] x, double[] y, double[] weights) {
+
+		if (x.length != y.length || x.length != weights.length)
+			throw new RuntimeException("data vectors must be the same length");
+
+		double total = 0;
+		for (double weight : weights) {
+
+			if (!(weight > 0))
+				throw new RuntimeException("weights must be positive");
+
+			total += weight;
+		}
+
+		this.x = x;
+		this.y = y;
+		this.weights = weights;
+		this.totalWeight = total;
+	}
+
+	/**
+	 * Collapses the observations falling in the same cell of a grid with the
+	 * given resolution into one point of weight equal to their number, placed
+	 * at the first of them. With a resolution of 0 only identical
+	 * observations are collapsed and the density is unchanged. Points keep the
+	 * order in which they first occur.
+	 *
+	 * @param resolution
+	 *            cell size in both directions, 0 for exact duplicates only
+	 */
+	public static WeightedPoints collapse(double[] x, double[] y,
+			double resolution) {
+
+		if (x.length != y.length)
+			throw new RuntimeException("data vectors must be the same length");
+
+		if (resolution < 0)
+			throw new RuntimeException("resolution can not be negative");
+
+		Map<Cell, Integer> index = new HashMap<Cell, Integer>();
+		int[] point = new int[x.length];
+		int count = 0;
+
+		for (int k = 0; k < x.length; k++) {
+
+			Cell cell = resolution > 0 ? new Cell(
+					Double.doubleToLongBits(Math.floor(x[k] / resolution)),
+					Double.doubleToLongBits(Math.floor(y[k] / resolution)))
+					: new Cell(Double.doubleToLongBits(x[k] + 0.0), Double
+							.doubleToLongBits(y[k] + 0.0));
+
+			Integer i = index.get(cell);
+			if (i == null) {
+				i = count++;
+				index.put(cell, i);
+			}
+			point[k] = i;
+		}
+
+		double[] collapsedX = new double[count];
+		double[] collapsedY = new double[count];
+		double[] weights = new double[count];
+		for (int k = 0; k < x.length; k++) {
+
+			int i = point[k];
+			if (weights[i] == 0) {
+				collapsedX[i] = x[k];
+				collapsedY[i] = y[k];
+			}
+			weights[i]++;
+		}
+
+		return new WeightedPoints(collapsedX, collapsedY, weights);
+	}// END: collapse
+
+	public int size() {
+		return x.length;
+	}
+
+	public double[] getX() {
+		return x;
+	}
+
+	public double[] getY() {
+		return y;
+	}
+
+	public double[] getWeights() {
+		return weights;
+	}
+
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	// grid cell or exact coordinates of an observation
+	private static final class Cell {
+
+		private final long x;
+		private final long y;
+
+		public Cell(long x, long y) {
+			this.x = x;
+			this.y = y;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+
+			if (!(other instanceof Cell)) {
+				return false;
+			}
+
+			Cell cell = (Cell) other;
+			return x == cell.x && y == cell.y;
+		}
+
+		@Override
+		public int hashCode() {
+			long bits = x * 31 + y;
+			return (int) (bits ^ (bits >>> 32));
+		}
+	}// END: Cell class
+
+}// END: class
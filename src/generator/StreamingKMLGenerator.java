@@ -0,0 +1,390 @@
+package generator;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import structure.Container;
+import structure.Coordinates;
+import structure.Item;
+import structure.Layer;
+import structure.Line;
+import structure.Place;
+import structure.Polygon;
+import structure.Style;
+import structure.TimeLine;
+import utils.GeoIntermediate;
+import utils.Utils;
+
+/**
+ * Writes the same features as KMLGenerator straight to the output, element
+ * by element, instead of building the kmlframework object model of the whole
+ * document and serializing it at the end. Layers can be written one at a
+ * time as they are produced, so only the layer being written has to be held
+ * in memory.
+ *
+ * The styles used by the items of a layer are written inside the folder of
+ * the layer, after its name and description and before its items, as the
+ * KML 2.2 schema orders the children of a Folder. Every style is written once
+ * per folder, a folder never refers to a style of another folder.
+ */
+public class StreamingKMLGenerator implements Generator {
+
+	// 01-01-01 in millis before 1970-01-01
+	private static final double YearZeroinMillis = -62135773200000.0;
+
+	private SimpleDateFormat formatter = new SimpleDateFormat("yyyy-MM-dd",
+			Locale.US);
+	private Set<String> writtenStyles = new HashSet<String>();
+	private PrintWriter writer;
+	private TimeLine timeLine;
+	private int indent;
+
+	public StreamingKMLGenerator() {
+	}
+
+	public void generate(PrintWriter writer, final TimeLine timeLine,
+			final Collection<Layer> layers) throws IOException {
+
+		open(writer, timeLine);
+
+		for (Layer layer : layers) {
+			writeLayer(layer);
+		}
+
+		close();
+	}
+
+	/**
+	 * Starts the document, layers are written to it with writeLayer
+	 */
+	public void open(PrintWriter writer, final TimeLine timeLine) {
+
+		this.writer = writer;
+		this.timeLine = timeLine;
+		indent = 0;
+
+		println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		open("<kml xmlns=\"http://www.opengis.net/kml/2.2\">");
+		open("<Document>");
+	}
+
+	public void writeLayer(final Layer layer) {
+
+		open("<Folder>");
+		printElement("name", layer.getName());
+		printElement("description", layer.getDescription());
+
+		writtenStyles.clear();
+		writeStyles(layer);
+
+		for (Item item : layer.getItems()) {
+			writeItem(item);
+		}
+
+		close("</Folder>");
+	}
+
+	/**
+	 * Ends the document and closes the writer
+	 *
+	 * @throws IOException
+	 *             if anything could not be written
+	 */
+	public void close() throws IOException {
+
+		close("</Document>");
+		close("</kml>");
+
+		writer.close();
+		if (writer.checkError()) {
+			throw new IOException("could not write the KML output");
+		}
+	}
+
+	private void writeStyles(final Container container) {
+
+		for (Item item : container.getItems()) {
+
+			if (item instanceof Polygon) {
+
+				Style style = ((Polygon) item).getPolyStyle();
+				writeStyle(style.getId(), "<PolyStyle>", "<color>"
+						+ Utils.getKMLColor(style.getStrokeColor())
+						+ "</color>", "<outline>0</outline>", "</PolyStyle>");
+
+			} else if (item instanceof Line && hasSegments((Line) item)) {
+
+				Style style = ((Line) item).getStartStyle();
+				writeStyle(style.getId(), "<LineStyle>", "<color>"
+						+ Utils.getKMLColor(style.getStrokeColor())
+						+ "</color>",
+						"<width>" + style.getStrokeWidth() + "</width>",
+						"</LineStyle>");
+			}
+		}
+	}// END: writeStyles
+
+	/**
+	 * Writes the style unless the same one has already been written to the
+	 * current folder
+	 */
+	private void writeStyle(String id, String open, String color,
+			String property, String close) {
+
+		String key = id + open + color + property;
+		if (!writtenStyles.add(key)) {
+			return;
+		}
+
+		open(id == null ? "<Style>" : "<Style id=\"" + escape(id) + "\">");
+		open(open);
+		println(color);
+		println(property);
+		close(close);
+		close("</Style>");
+	}// END: writeStyle
+
+	private void writeItem(final Item item) {
+		if (item instanceof Line) {
+			writeLine((Line) item);
+		} else if (item instanceof Polygon) {
+			writePolygon((Polygon) item);
+		} else if (item instanceof Place) {
+			writePlacemark((Place) item);
+		} else {
+			throw new IllegalArgumentException("unknown item type");
+		}
+	}
+
+	private void writePolygon(final Polygon polygon) {
+
+		open("<Placemark>");
+		printElement("name", polygon.getName());
+		writeTimeSpan(polygon.getStartTime(), polygon.getDuration());
+		printElement("styleUrl", polygon.getPolyStyle().getId());
+
+		open("<Polygon>");
+		println("<tessellate>1</tessellate>");
+		open("<outerBoundaryIs>");
+		open("<LinearRing>");
+
+		// altitudes of the outer boundary are 0 and it ends with its first
+		// vertex again, as kmlframework writes it
+		printIndent();
+		writer.print("<coordinates>");
+		List<Coordinates> coordinates = polygon.getPolyCoordinates();
+		for (int i = 0; !coordinates.isEmpty() && i <= coordinates.size(); i++) {
+
+			if (i > 0) {
+				writer.print(' ');
+			}
+
+			Coordinates vertex = coordinates.get(i % coordinates.size());
+			printCoordinates(vertex.getLongitude(), vertex.getLatitude(), 0.0);
+		}
+		writer.println("</coordinates>");
+
+		close("</LinearRing>");
+		close("</outerBoundaryIs>");
+		close("</Polygon>");
+		close("</Placemark>");
+	}// END: writePolygon
+
+	/**
+	 * @return true if the line is drawn, KMLGenerator leaves lines changing
+	 *         style on the way empty
+	 */
+	private boolean hasSegments(final Line line) {
+		return line.getEndStyle() == null
+				|| line.getStartStyle().equals(line.getEndStyle());
+	}
+
+	private void writeLine(final Line line) {
+
+		if (!hasSegments(line)) {
+			open("<Folder>");
+			printElement("name", line.getName());
+			close("</Folder>");
+			return;
+		}
+
+		double startTime = line.getStartTime();
+		double endTime = line.getEndTime();
+		double duration = line.getDuration();
+		double maxAltitude = line.getMaxAltitude();
+
+		double timeRange = endTime - startTime;
+		if (timeLine.isInstantaneous() || timeRange == 0.0) {
+
+			writeLineSegment(line.getName(), line.getStartLocation(), line
+					.getEndLocation(), startTime, duration, line
+					.getStartStyle());
+			return;
+		}
+
+		open("<Folder>");
+		printElement("name", line.getName());
+
+		// Parse start and end point coordinates
+		double startLon = line.getStartLocation().getLongitude();
+		double startLat = line.getStartLocation().getLatitude();
+		double endLon = line.getEndLocation().getLongitude();
+		double endLat = line.getEndLocation().getLatitude();
+
+		int sliceCount = timeLine.getSliceCount();
+
+		GeoIntermediate rhumbIntermediate = new GeoIntermediate(startLon,
+				startLat, endLon, endLat, sliceCount);
+		double coords[][] = rhumbIntermediate.getCoords();
+
+		double lineSpan = timeLine.getEndTime() - startTime;
+
+		// Controls how fast the lines should get to their end point (to be in
+		// sync with each other)
+		double speed = 0.1;
+		int j = sliceCount;
+
+		double a = -2 * maxAltitude / (Math.pow(sliceCount, 2) - sliceCount);
+		double b = 2 * maxAltitude / (sliceCount - 1);
+
+		for (int i = 0; i < sliceCount; i++, j--) {
+
+			double startAltitude = a * Math.pow((double) i, 2) + b
+					* (double) i;
+			double endAltitude = a * Math.pow((double) (i + 1), 2) + b
+					* (double) (i + 1);
+
+			double segmentStartTime = startTime - (lineSpan / sliceCount)
+					* ((double) j * speed);
+
+			writeLineSegment(null, new Coordinates(coords[i][0],
+					coords[i][1], startAltitude),// startCoordinates
+					new Coordinates(coords[i + 1][0], coords[i + 1][1],
+							endAltitude),// endCoordinates
+					segmentStartTime,// startTime
+					duration,// duration
+					line.getStartStyle()// Style
+			);
+		}
+
+		close("</Folder>");
+	}// END: writeLine
+
+	private void writeLineSegment(String name, Coordinates startCoordinates,
+			Coordinates endCoordinates, double startTime, double duration,
+			Style style) {
+
+		open("<Placemark>");
+		printElement("name", name);
+
+		if (!Double.isNaN(duration)) {
+			writeTimeSpan(startTime, duration);
+		}
+
+		printElement("styleUrl", style.getId());
+
+		open("<LineString>");
+		println("<tessellate>1</tessellate>");
+		println("<altitudeMode>relativeToGround</altitudeMode>");
+
+		printIndent();
+		writer.print("<coordinates>");
+		printCoordinates(startCoordinates.getLongitude(), startCoordinates
+				.getLatitude(), startCoordinates.getAltitude());
+		writer.print(' ');
+		printCoordinates(endCoordinates.getLongitude(), endCoordinates
+				.getLatitude(), endCoordinates.getAltitude());
+		writer.println("</coordinates>");
+
+		close("</LineString>");
+		close("</Placemark>");
+	}// END: writeLineSegment
+
+	private void writePlacemark(final Place place) {
+
+		Coordinates coordinates = place.getCoordinates();
+
+		open("<Placemark>");
+		printElement("name", place.getName());
+		open("<Point>");
+		println("<altitudeMode>relativeToGround</altitudeMode>");
+
+		printIndent();
+		writer.print("<coordinates>");
+		printCoordinates(coordinates.getLongitude(),
+				coordinates.getLatitude(), coordinates.getAltitude());
+		writer.println("</coordinates>");
+
+		close("</Point>");
+		close("</Placemark>");
+	}// END: writePlacemark
+
+	private void writeTimeSpan(double startTime, double duration) {
+
+		open("<TimeSpan>");
+		// Parse minus if date is BC
+		printElement("begin", formatDate(startTime));
+		printElement("end", duration > 0.0 ? formatDate(startTime + duration)
+				: "");
+		close("</TimeSpan>");
+	}
+
+	private String formatDate(double time) {
+		return time < YearZeroinMillis ? "-" + formatter.format(time)
+				: formatter.format(time);
+	}
+
+	private void printCoordinates(double longitude, double latitude,
+			double altitude) {
+		writer.print(longitude);
+		writer.print(',');
+		writer.print(latitude);
+		writer.print(',');
+		writer.print(altitude);
+	}
+
+	// elements without a value are left out
+	private void printElement(String element, String value) {
+		if (value != null) {
+			println("<" + element + ">" + escape(value) + "</" + element + ">");
+		}
+	}
+
+	private void open(String tag) {
+		println(tag);
+		indent++;
+	}
+
+	private void close(String tag) {
+		indent--;
+		println(tag);
+	}
+
+	private void println(String line) {
+		printIndent();
+		writer.println(line);
+	}
+
+	private void printIndent() {
+		for (int i = 0; i < indent; i++) {
+			writer.print('\t');
+		}
+	}
+
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	@Override
+	public String toString() {
+		return "KML";
+	}
+
+}// END: class
@@ -27,6 +27,7 @@ import javax.swing.border.TitledBorder;
 
 import templates.ContinuousTreeToKML;
 import templates.ContinuousTreeToProcessing;
+import utils.PolygonSimplifier;
 import utils.Utils;
 import checks.ContinuousSanityCheck;
 
@@ -66,6 +67,7 @@ public class ContinuousModelTab extends JPanel {
 	private JTextField numberOfIntervalsParser;
 	private JTextField maxAltMappingParser;
 	private JTextField kmlPathParser;
+	private JTextField simplificationToleranceParser;
 
 	// Spinners
 	private DateSpinner dateSpinner;
@@ -85,6 +87,8 @@ public class ContinuousModelTab extends JPanel {
 
 	// Combo boxes
 	private JComboBox eraParser;
+	private JComboBox simplificationParser;
+	private JComboBox toleranceUnitParser;
 
 	// Left tools pane
 	private JPanel leftPanel;
@@ -120,6 +124,7 @@ public class ContinuousModelTab extends JPanel {
 		numberOfIntervalsParser = new JTextField("100", 10);
 		maxAltMappingParser = new JTextField("5000000", 10);
 		kmlPathParser = new JTextField("output.kml", 10);
+		simplificationToleranceParser = new JTextField("1", 5);
 
 		// Setup buttons
 		generateKml = new JButton("Generate", nuclearIcon);
@@ -205,6 +210,20 @@ public class ContinuousModelTab extends JPanel {
 		tmpLabel.setLabelFor(tmpPanel);
 		leftPanel.add(tmpPanel);
 
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Simplify polygons (tolerance):"));
+		String simplification[] = { "None", "Douglas-Peucker",
+				"Visvalingam-Whyatt" };
+		simplificationParser = new JComboBox(simplification);
+		tmpPanel.add(simplificationParser);
+		tmpPanel.add(simplificationToleranceParser);
+		String toleranceUnit[] = { "km", "degrees" };
+		toleranceUnitParser = new JComboBox(toleranceUnit);
+		tmpPanel.add(toleranceUnitParser);
+		leftPanel.add(tmpPanel);
+
 		tmpPanel = new JPanel();
 		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
 		tmpPanel.setBackground(backgroundColor);
@@ -497,6 +516,9 @@ public class ContinuousModelTab extends JPanel {
 									.setBranchWidth(branchesWidthParser
 											.getValue());
 
+							continuousTreeToKML
+									.setPolygonSimplifier(createPolygonSimplifier());
+
 							continuousTreeToKML.setMrsdString(dateSpinner
 									.getValue()
 									+ " "
@@ -648,6 +670,9 @@ public class ContinuousModelTab extends JPanel {
 									.setBranchWidth(branchesWidthParser
 											.getValue() / 2);
 
+							continuousTreeToProcessing
+									.setPolygonSimplifier(createPolygonSimplifier());
+
 							continuousTreeToProcessing.init();
 
 							System.out.println("Finished. \n");
@@ -705,6 +730,34 @@ public class ContinuousModelTab extends JPanel {
 		}// END: actionPerformed
 	}// END: class
 
+	private PolygonSimplifier createPolygonSimplifier() {
+
+		switch (simplificationParser.getSelectedIndex()) {
+		case 1:
+			return new PolygonSimplifier(
+					PolygonSimplifier.Method.DOUGLAS_PEUCKER,
+					getSimplificationTolerance(), getToleranceUnit());
+		case 2:
+			return new PolygonSimplifier(
+					PolygonSimplifier.Method.VISVALINGAM_WHYATT,
+					getSimplificationTolerance(), getToleranceUnit());
+		default:
+			return null;
+		}
+	}// END: createPolygonSimplifier
+
+	private double getSimplificationTolerance() {
+		return Double.valueOf(simplificationToleranceParser.getText());
+	}
+
+	private PolygonSimplifier.Unit getToleranceUnit() {
+		if (toleranceUnitParser.getSelectedIndex() == 0) {
+			return PolygonSimplifier.Unit.KILOMETERS;
+		} else {
+			return PolygonSimplifier.Unit.DEGREES;
+		}
+	}
+
 	private ImageIcon CreateImageIcon(String path) {
 		java.net.URL imgURL = this.getClass().getResource(path);
 		if (imgURL != null) {
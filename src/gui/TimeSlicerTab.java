@@ -27,6 +27,7 @@ import javax.swing.border.TitledBorder;
 
 import templates.TimeSlicerToKML;
 import templates.TimeSlicerToProcessing;
+import utils.PolygonSimplifier;
 import utils.Utils;
 import checks.TimeSlicerSanityCheck;
 
@@ -61,6 +62,13 @@ public class TimeSlicerTab extends JPanel {
 
 	// Text fields
 	private JTextField burnInParser;
+	private JTextField thinningParser;
+	private JTextField sampleSizeParser;
+	private JTextField truncationParser;
+	private JTextField hpdLevelsParser;
+	private JTextField gridSizeParser;
+	private JTextField gridRefinementParser;
+	private JTextField simplificationToleranceParser;
 	private JTextField coordinatesNameParser;
 	private JTextField rateAttNameParser;
 	private JTextField precisionAttNameParser;
@@ -87,10 +95,18 @@ public class TimeSlicerTab extends JPanel {
 
 	// Combo boxes
 	private JComboBox eraParser;
+	private JComboBox simplificationParser;
+	private JComboBox toleranceUnitParser;
 
 	// checkboxes
 	private JCheckBox trueNoiseParser;
 	private JCheckBox imputeParser;
+	private JCheckBox streamingParser;
+	private JCheckBox binnedParser;
+	private JCheckBox tabulatedKernelParser;
+	private JCheckBox marchingSquaresParser;
+	private JCheckBox tiledContouringParser;
+	private JCheckBox treesCacheParser;
 
 	// left tools pane
 	private JPanel leftPanel;
@@ -123,6 +139,13 @@ public class TimeSlicerTab extends JPanel {
 
 		// Setup text fields
 		burnInParser = new JTextField("500", 10);
+		thinningParser = new JTextField("1", 5);
+		sampleSizeParser = new JTextField("0", 5);
+		truncationParser = new JTextField("0", 5);
+		hpdLevelsParser = new JTextField("80", 10);
+		gridSizeParser = new JTextField("0", 5);
+		gridRefinementParser = new JTextField("1", 5);
+		simplificationToleranceParser = new JTextField("1", 5);
 		coordinatesNameParser = new JTextField("location", 10);
 		rateAttNameParser = new JTextField("rate", 10);
 		precisionAttNameParser = new JTextField("precision", 10);
@@ -152,6 +175,12 @@ public class TimeSlicerTab extends JPanel {
 		progressBar = new JProgressBar();
 		trueNoiseParser = new JCheckBox();
 		imputeParser = new JCheckBox();
+		streamingParser = new JCheckBox();
+		binnedParser = new JCheckBox();
+		tabulatedKernelParser = new JCheckBox();
+		marchingSquaresParser = new JCheckBox();
+		tiledContouringParser = new JCheckBox();
+		treesCacheParser = new JCheckBox();
 
 		/**
 		 * left tools pane
@@ -218,6 +247,92 @@ public class TimeSlicerTab extends JPanel {
 		trueNoiseParser.setEnabled(false);
 		leftPanel.add(tmpPanel);
 
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Stream density (bounded memory):"));
+		tmpPanel.add(streamingParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Binned density (FFT):"));
+		tmpPanel.add(binnedParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder(
+				"Truncate kernel at bandwidths (0 = exact):"));
+		tmpPanel.add(truncationParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Tabulated kernel (approximate):"));
+		tmpPanel.add(tabulatedKernelParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Marching squares contours:"));
+		tmpPanel.add(marchingSquaresParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Contour grid tiles in parallel:"));
+		tmpPanel.add(tiledContouringParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("HPD levels (%, comma separated):"));
+		tmpPanel.add(hpdLevelsParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Density grid size (0 = automatic):"));
+		tmpPanel.add(gridSizeParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder(
+				"Refine grid near contours (1 = off):"));
+		tmpPanel.add(gridRefinementParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Simplify polygons (tolerance):"));
+		String simplification[] = { "None", "Douglas-Peucker",
+				"Visvalingam-Whyatt" };
+		simplificationParser = new JComboBox(simplification);
+		tmpPanel.add(simplificationParser);
+		tmpPanel.add(simplificationToleranceParser);
+		String toleranceUnit[] = { "km", "degrees" };
+		toleranceUnitParser = new JComboBox(toleranceUnit);
+		tmpPanel.add(toleranceUnitParser);
+		leftPanel.add(tmpPanel);
+
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Cache parsed trees:"));
+		tmpPanel.add(treesCacheParser);
+		leftPanel.add(tmpPanel);
+
 		tmpPanel = new JPanel();
 		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
 		tmpPanel.setBackground(backgroundColor);
@@ -242,6 +357,14 @@ public class TimeSlicerTab extends JPanel {
 		tmpPanel.add(burnInParser);
 		leftPanel.add(tmpPanel);
 
+		tmpPanel = new JPanel();
+		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
+		tmpPanel.setBackground(backgroundColor);
+		tmpPanel.setBorder(new TitledBorder("Thinning / Sample size (0 = all):"));
+		tmpPanel.add(thinningParser);
+		tmpPanel.add(sampleSizeParser);
+		leftPanel.add(tmpPanel);
+
 		tmpPanel = new JPanel();
 		tmpPanel.setMaximumSize(new Dimension(leftPanelWidth + 60, 100));
 		tmpPanel.setBackground(backgroundColor);
@@ -514,6 +637,12 @@ public class TimeSlicerTab extends JPanel {
 							timeSlicerToKML.setBurnIn(Integer
 									.valueOf(burnInParser.getText()));
 
+							timeSlicerToKML.setThinning(Integer
+									.valueOf(thinningParser.getText()));
+
+							timeSlicerToKML.setSampleSize(Integer
+									.valueOf(sampleSizeParser.getText()));
+
 							timeSlicerToKML
 									.setLocationAttName(coordinatesNameParser
 											.getText());
@@ -531,6 +660,41 @@ public class TimeSlicerTab extends JPanel {
 							timeSlicerToKML
 									.setImpute(imputeParser.isSelected());
 
+							timeSlicerToKML.setStreamingDensity(streamingParser
+									.isSelected());
+
+							timeSlicerToKML.setBinnedDensity(binnedParser
+									.isSelected());
+
+							timeSlicerToKML.setKernelTruncation(Double
+									.valueOf(truncationParser.getText()));
+
+							timeSlicerToKML
+									.setTabulatedKernel(tabulatedKernelParser
+											.isSelected());
+
+							timeSlicerToKML
+									.setMarchingSquares(marchingSquaresParser
+											.isSelected());
+
+							timeSlicerToKML
+									.setTiledContouring(tiledContouringParser
+											.isSelected());
+
+							timeSlicerToKML.setHPDLevels(parseHPDLevels());
+
+							timeSlicerToKML.setGridSize(Integer
+									.valueOf(gridSizeParser.getText()));
+
+							timeSlicerToKML.setGridRefinement(Integer
+									.valueOf(gridRefinementParser.getText()));
+
+							timeSlicerToKML
+									.setPolygonSimplifier(createPolygonSimplifier());
+
+							timeSlicerToKML.setUseTreesCache(treesCacheParser
+									.isSelected());
+
 							timeSlicerToKML.setMrsdString(dateSpinner
 									.getValue()
 									+ " "
@@ -683,6 +847,12 @@ public class TimeSlicerTab extends JPanel {
 							timeSlicerToProcessing.setBurnIn(Integer
 									.valueOf(burnInParser.getText()));
 
+							timeSlicerToProcessing.setThinning(Integer
+									.valueOf(thinningParser.getText()));
+
+							timeSlicerToProcessing.setSampleSize(Integer
+									.valueOf(sampleSizeParser.getText()));
+
 							timeSlicerToProcessing
 									.setCoordinatesName(coordinatesNameParser
 											.getText());
@@ -700,6 +870,45 @@ public class TimeSlicerTab extends JPanel {
 							timeSlicerToProcessing.setImpute(imputeParser
 									.isSelected());
 
+							timeSlicerToProcessing
+									.setStreamingDensity(streamingParser
+											.isSelected());
+
+							timeSlicerToProcessing
+									.setBinnedDensity(binnedParser
+											.isSelected());
+
+							timeSlicerToProcessing.setKernelTruncation(Double
+									.valueOf(truncationParser.getText()));
+
+							timeSlicerToProcessing
+									.setTabulatedKernel(tabulatedKernelParser
+											.isSelected());
+
+							timeSlicerToProcessing
+									.setMarchingSquares(marchingSquaresParser
+											.isSelected());
+
+							timeSlicerToProcessing
+									.setTiledContouring(tiledContouringParser
+											.isSelected());
+
+							timeSlicerToProcessing
+									.setHPDLevels(parseHPDLevels());
+
+							timeSlicerToProcessing.setGridSize(Integer
+									.valueOf(gridSizeParser.getText()));
+
+							timeSlicerToProcessing.setGridRefinement(Integer
+									.valueOf(gridRefinementParser.getText()));
+
+							timeSlicerToProcessing
+									.setPolygonSimplifier(createPolygonSimplifier());
+
+							timeSlicerToProcessing
+									.setUseTreesCache(treesCacheParser
+											.isSelected());
+
 							timeSlicerToProcessing.setMrsdString(dateSpinner
 									.getValue()
 									+ " "
@@ -838,6 +1047,50 @@ public class TimeSlicerTab extends JPanel {
 		}// END: actionPerformed
 	}// END: class
 
+	private double[] parseHPDLevels() {
+
+		String[] percents = hpdLevelsParser.getText().split(",");
+		double[] levels = new double[percents.length];
+		for (int i = 0; i < percents.length; i++) {
+
+			levels[i] = Double.valueOf(percents[i].trim()) / 100;
+			if (levels[i] <= 0 || levels[i] >= 1) {
+				throw new RuntimeException(
+						"HPD levels must be between 0 and 100 %");
+			}
+		}
+
+		return levels;
+	}// END: parseHPDLevels
+
+	private PolygonSimplifier createPolygonSimplifier() {
+
+		switch (simplificationParser.getSelectedIndex()) {
+		case 1:
+			return new PolygonSimplifier(
+					PolygonSimplifier.Method.DOUGLAS_PEUCKER,
+					getSimplificationTolerance(), getToleranceUnit());
+		case 2:
+			return new PolygonSimplifier(
+					PolygonSimplifier.Method.VISVALINGAM_WHYATT,
+					getSimplificationTolerance(), getToleranceUnit());
+		default:
+			return null;
+		}
+	}// END: createPolygonSimplifier
+
+	private double getSimplificationTolerance() {
+		return Double.valueOf(simplificationToleranceParser.getText());
+	}
+
+	private PolygonSimplifier.Unit getToleranceUnit() {
+		if (toleranceUnitParser.getSelectedIndex() == 0) {
+			return PolygonSimplifier.Unit.KILOMETERS;
+		} else {
+			return PolygonSimplifier.Unit.DEGREES;
+		}
+	}
+
 	private ImageIcon CreateImageIcon(String path) {
 		java.net.URL imgURL = this.getClass().getResource(path);
 		if (imgURL != null) {
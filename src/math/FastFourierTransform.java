@@ -0,0 +1,86 @@
+package math;
+
+/**
+ * In-place radix-2 fast Fourier transform of complex sequences held as
+ * separate real and imaginary arrays, whose length must be a power of two.
+ */
+public class FastFourierTransform {
+
+	/**
+	 * @param inverse
+	 *            computes the inverse transform, including the 1/length
+	 *            scaling
+	 */
+	public static void transform(double[] re, double[] im, boolean inverse) {
+
+		int length = re.length;
+		if (Integer.bitCount(length) != 1 || im.length != length) {
+			throw new RuntimeException("length must be a power of two");
+		}
+
+		// bit reversal permutation
+		for (int i = 1, j = 0; i < length; i++) {
+
+			int bit = length >> 1;
+			for (; (j & bit) != 0; bit >>= 1) {
+				j ^= bit;
+			}
+			j ^= bit;
+
+			if (i < j) {
+				double swap = re[i];
+				re[i] = re[j];
+				re[j] = swap;
+				swap = im[i];
+				im[i] = im[j];
+				im[j] = swap;
+			}
+		}
+
+		// butterflies
+		for (int size = 2; size <= length; size <<= 1) {
+
+			double angle = (inverse ? 2 : -2) * Math.PI / size;
+			double stepRe = Math.cos(angle);
+			double stepIm = Math.sin(angle);
+			int half = size >> 1;
+
+			for (int start = 0; start < length; start += size) {
+
+				double wRe = 1;
+				double wIm = 0;
+				for (int k = 0; k < half; k++) {
+
+					int even = start + k;
+					int odd = even + half;
+					double oddRe = re[odd] * wRe - im[odd] * wIm;
+					double oddIm = re[odd] * wIm + im[odd] * wRe;
+
+					re[odd] = re[even] - oddRe;
+					im[odd] = im[even] - oddIm;
+					re[even] += oddRe;
+					im[even] += oddIm;
+
+					double nextRe = wRe * stepRe - wIm * stepIm;
+					wIm = wRe * stepIm + wIm * stepRe;
+					wRe = nextRe;
+				}
+			}
+		}
+
+		if (inverse) {
+			for (int i = 0; i < length; i++) {
+				re[i] /= length;
+				im[i] /= length;
+			}
+		}
+	}// END: transform
+
+	/**
+	 * @return smallest power of two not less than length
+	 */
+	public static int getPaddedLength(int length) {
+		return length <= 1 ? 1 : Integer.highestOneBit(length - 1) << 1;
+	}
+
+}// END: class
@@ -71,10 +71,11 @@ import java.io.Serializable;
  * <p/>
  * - added gamma RV method (Marc Suchard)
  * <p/>
- * This is now package private - it should be accessed using the instance in
- * Random
+ * Instances are not synchronized and must not be shared between threads.
+ * Parallel workers each take their own stream from RandomStreams, which
+ * seeds every stream from one master seed.
  */
-class MersenneTwisterFast implements Serializable {
+public class MersenneTwisterFast implements Serializable {
 	/**
 	 *
 	 */
@@ -135,7 +136,7 @@ class MersenneTwisterFast implements Serializable {
 	 * @param seed
 	 *            generator starting number, often the time of day.
 	 */
-	private MersenneTwisterFast(long seed) {
+	public MersenneTwisterFast(long seed) {
 		if (seed == 0) {
 			setSeed(GOOD_SEED);
 		} else {
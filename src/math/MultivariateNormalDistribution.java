@@ -153,6 +153,14 @@ public class MultivariateNormalDistribution implements MultivariateDistribution
 		return cholesky;
 	}
 
+	/**
+	 * @return lower triangular Cholesky factor of the variance matrix, the
+	 *         inverse of given precision matrix
+	 */
+	public static double[][] getVarianceCholesky(double[][] precision) {
+		return getCholeskyDecomposition(getInverse(precision));
+	}
+
 	public static double[] nextMultivariateNormalPrecision(double[] mean,
 			double[][] precision) {
 		return nextMultivariateNormalVariance(mean, getInverse(precision));
@@ -184,15 +192,46 @@ public class MultivariateNormalDistribution implements MultivariateDistribution
 
 	public static void nextMultivariateNormalCholesky(double[] mean,
 			double[][] cholesky, double sqrtScale, double[] result) {
+		nextMultivariateNormalCholesky(mean, cholesky, sqrtScale, result,
+				new double[mean.length]);
+	}
+
+	/**
+	 * Allocation free draw, result and epsilon are caller provided buffers of
+	 * mean.length elements. Result may be the same array as mean.
+	 */
+	public static void nextMultivariateNormalCholesky(double[] mean,
+			double[][] cholesky, double sqrtScale, double[] result,
+			double[] epsilon) {
+
+		for (int i = 0; i < mean.length; i++)
+			epsilon[i] = MathUtils.nextGaussian() * sqrtScale;
+
+		addCholeskyProduct(mean, cholesky, result, epsilon);
+	}
+
+	/**
+	 * Allocation free draw using given generator instead of the shared,
+	 * synchronized MathUtils one. The generator must not be used by other
+	 * threads.
+	 */
+	public static void nextMultivariateNormalCholesky(double[] mean,
+			double[][] cholesky, double sqrtScale, double[] result,
+			double[] epsilon, MersenneTwisterFast random) {
+
+		for (int i = 0; i < mean.length; i++)
+			epsilon[i] = random.nextGaussian() * sqrtScale;
+
+		addCholeskyProduct(mean, cholesky, result, epsilon);
+	}
+
+	private static void addCholeskyProduct(double[] mean, double[][] cholesky,
+			double[] result, double[] epsilon) {
 
 		final int dim = mean.length;
 
 		System.arraycopy(mean, 0, result, 0, dim);
 
-		double[] epsilon = new double[dim];
-		for (int i = 0; i < dim; i++)
-			epsilon[i] = MathUtils.nextGaussian() * sqrtScale;
-
 		for (int i = 0; i < dim; i++) {
 			for (int j = 0; j <= i; j++) {
 				result[i] += cholesky[i][j] * epsilon[j];
@@ -0,0 +1,53 @@
+package math;
+
+/**
+ * Independent random number streams derived from one master seed. Every
+ * stream is a separate, unsynchronized MersenneTwisterFast meant to be used
+ * by a single thread, so parallel workers neither contend for a lock nor
+ * depend on each other's scheduling: the same master seed always gives the
+ * same stream for the same index.
+ */
+public class RandomStreams {
+
+	private final long masterSeed;
+
+	public RandomStreams(long masterSeed) {
+		this.masterSeed = masterSeed;
+	}
+
+	public long getMasterSeed() {
+		return masterSeed;
+	}
+
+	/**
+	 * @return a new generator for stream index, seeded from the master seed
+	 */
+	public MersenneTwisterFast getStream(int index) {
+		return new MersenneTwisterFast(getStreamSeed(index));
+	}
+
+	/**
+	 * @return a new generator for choices made once per run, like which trees
+	 *         are sampled, independent of the indexed streams
+	 */
+	public MersenneTwisterFast getMasterStream() {
+		return new MersenneTwisterFast(getStreamSeed(-1));
+	}
+
+	/**
+	 * Mixes the master seed and stream index (SplitMix64 finalizer) into an
+	 * int sized, non zero seed, so that neighbouring indices do not give
+	 * correlated initial states.
+	 */
+	private long getStreamSeed(int index) {
+
+		long z = masterSeed + (index + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		z = z ^ (z >>> 31);
+
+		int seed = (int) (z ^ (z >>> 32));
+		return seed == 0 ? 1 : seed;
+	}
+
+}// END: class
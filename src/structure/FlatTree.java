@@ -0,0 +1,199 @@
+package structure;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact rooted tree with nodes numbered 0..getNodeCount()-1 in pre-order, so
+ * that the root is node 0 and every parent comes before its children. Only
+ * the requested node attributes are kept, as primitive columns indexed by
+ * node, missing values are NaN. Text node attributes, such as discrete
+ * states, are kept as label columns, missing labels are null.
+ */
+public class FlatTree {
+
+	public static final int NO_PARENT = -1;
+
+	private final int nodeCount;
+	private final int[] parents;
+	private final double[] lengths;
+	private final double[] heights;
+	private final String[] taxa;
+	private final String[] nodeAttributeNames;
+	// [attribute][component][node]
+	private final double[][][] nodeAttributes;
+	private final Map<String, double[]> treeAttributes;
+	private final Map<String, String[]> nodeLabels;
+
+	/**
+	 * @param parents
+	 *            parent of every node, NO_PARENT for the root
+	 * @param lengths
+	 *            branch lengths, heights are computed from them the same way
+	 *            jebl does: the deepest tip has height 0
+	 * @param taxa
+	 *            taxon name of every external node, null for internal nodes
+	 */
+	public FlatTree(int nodeCount, int[] parents, double[] lengths,
+			String[] taxa, String[] nodeAttributeNames,
+			double[][][] nodeAttributes, Map<String, double[]> treeAttributes) {
+
+		this(nodeCount, parents, lengths, taxa, nodeAttributeNames,
+				nodeAttributes, treeAttributes, new HashMap<String, String[]>());
+	}// END: FlatTree()
+
+	/**
+	 * @param nodeLabels
+	 *            text attributes by name, every column is indexed by node
+	 */
+	public FlatTree(int nodeCount, int[] parents, double[] lengths,
+			String[] taxa, String[] nodeAttributeNames,
+			double[][][] nodeAttributes, Map<String, double[]> treeAttributes,
+			Map<String, String[]> nodeLabels) {
+
+		this.nodeCount = nodeCount;
+		this.parents = parents;
+		this.lengths = lengths;
+		this.taxa = taxa;
+		this.nodeAttributeNames = nodeAttributeNames;
+		this.nodeAttributes = nodeAttributes;
+		this.treeAttributes = treeAttributes;
+		this.nodeLabels = nodeLabels;
+
+		heights = new double[nodeCount];
+		double rootHeight = 0.0;
+		for (int node = 1; node < nodeCount; node++) {
+
+			// depth from the root, parents were visited first
+			heights[node] = heights[parents[node]] + lengths[node];
+
+			if (taxa[node] != null) {
+				rootHeight = Math.max(rootHeight, heights[node]);
+			}
+		}
+
+		for (int node = 0; node < nodeCount; node++) {
+			heights[node] = rootHeight - heights[node];
+		}
+
+	}// END: FlatTree()
+
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	public int getRoot() {
+		return 0;
+	}
+
+	public boolean isRoot(int node) {
+		return parents[node] == NO_PARENT;
+	}
+
+	public boolean isExternal(int node) {
+		return taxa[node] != null;
+	}
+
+	public int getParent(int node) {
+		return parents[node];
+	}
+
+	public double getLength(int node) {
+		return lengths[node];
+	}
+
+	public double getHeight(int node) {
+		return heights[node];
+	}
+
+	public double getRootHeight() {
+		return heights[0];
+	}
+
+	public String getTaxon(int node) {
+		return taxa[node];
+	}
+
+	public boolean hasNodeAttribute(String name) {
+		int index = getAttributeIndex(name);
+		return index >= 0 && nodeAttributes[index].length > 0;
+	}
+
+	/**
+	 * @return number of components of the attribute, 1 for scalar attributes
+	 */
+	public int getNodeAttributeDimension(String name) {
+		return getNodeAttributeColumns(name).length;
+	}
+
+	public double getNodeAttribute(String name, int node) {
+		return getNodeAttribute(name, 0, node);
+	}
+
+	public double getNodeAttribute(String name, int component, int node) {
+		return getNodeAttributeColumn(name, component)[node];
+	}
+
+	/**
+	 * @return values of one component of the attribute for all nodes, backed
+	 *         by this tree
+	 */
+	public double[] getNodeAttributeColumn(String name, int component) {
+
+		double[][] columns = getNodeAttributeColumns(name);
+
+		if (component >= columns.length) {
+			throw new RuntimeException("Attribute " + name + " has no component "
+					+ component + ". \n");
+		}
+
+		return columns[component];
+	}
+
+	public boolean hasNodeLabel(String name) {
+		return nodeLabels.containsKey(name);
+	}
+
+	public String getNodeLabel(String name, int node) {
+
+		String[] column = nodeLabels.get(name);
+
+		if (column == null) {
+			throw new RuntimeException("Attribute " + name
+					+ " missing from the node. \n");
+		}
+
+		return column[node];
+	}// END: getNodeLabel
+
+	/**
+	 * @return values of the tree attribute, null if the tree does not have it
+	 */
+	public double[] getTreeAttribute(String name) {
+		return treeAttributes.get(name);
+	}
+
+	private double[][] getNodeAttributeColumns(String name) {
+
+		int index = getAttributeIndex(name);
+
+		if (index < 0 || nodeAttributes[index].length == 0) {
+			throw new RuntimeException("Attribute " + name
+					+ " missing from the node. \n");
+		}
+
+		return nodeAttributes[index];
+	}
+
+	private int getAttributeIndex(String name) {
+
+		for (int i = 0; i < nodeAttributeNames.length; i++) {
+			if (nodeAttributeNames[i].equals(name)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+}// END: class
@@ -0,0 +1,152 @@
+package structure;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coordinates collected per time slice, kept in growable primitive arrays
+ * indexed by slice.
+ */
+public class SliceCoordinates {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	public SliceCoordinates(final int sliceCount) {
+		latitudes = new double[sliceCount][];
+		longitudes = new double[sliceCount][];
+		counts = new int[sliceCount];
+	}
+
+	/**
+	 * Merges the given stores into a new one whose arrays are sized exactly to
+	 * the merged number of coordinates. Coordinates keep the order of the
+	 * stores in the list.
+	 */
+	public static SliceCoordinates merge(final List<SliceCoordinates> parts) {
+
+		SliceCoordinates merged = new SliceCoordinates(parts.get(0)
+				.getSliceCount());
+
+		for (int slice = 0; slice < merged.getSliceCount(); slice++) {
+
+			int total = 0;
+			for (SliceCoordinates part : parts) {
+				total += part.getCount(slice);
+			}
+
+			merged.ensureCapacity(slice, total);
+		}
+
+		for (SliceCoordinates part : parts) {
+			merged.addAll(part);
+		}
+
+		return merged;
+	}
+
+	public int getSliceCount() {
+		return counts.length;
+	}
+
+	public int getCount(final int slice) {
+		return counts[slice];
+	}
+
+	public void add(final int slice, final double longitude,
+			final double latitude) {
+
+		int count = counts[slice];
+		ensureCapacity(slice, count + 1);
+
+		latitudes[slice][count] = latitude;
+		longitudes[slice][count] = longitude;
+		counts[slice] = count + 1;
+	}
+
+	public void addAll(final SliceCoordinates other) {
+
+		if (other.getSliceCount() != getSliceCount())
+			throw new IllegalArgumentException(
+					"slice counts must be the same");
+
+		for (int slice = 0; slice < counts.length; slice++) {
+
+			int otherCount = other.counts[slice];
+			if (otherCount == 0)
+				continue;
+
+			int count = counts[slice];
+			ensureCapacity(slice, count + otherCount);
+
+			System.arraycopy(other.latitudes[slice], 0, latitudes[slice],
+					count, otherCount);
+			System.arraycopy(other.longitudes[slice], 0, longitudes[slice],
+					count, otherCount);
+			counts[slice] = count + otherCount;
+		}
+	}
+
+	public void ensureCapacity(final int slice, final int capacity) {
+
+		int oldCapacity = latitudes[slice] == null ? 0
+				: latitudes[slice].length;
+
+		if (capacity > oldCapacity) {
+
+			int newCapacity = oldCapacity == 0 ? Math.max(capacity,
+					INITIAL_CAPACITY) : Math.max(capacity, 2 * oldCapacity);
+
+			latitudes[slice] = latitudes[slice] == null ? new double[newCapacity]
+					: Arrays.copyOf(latitudes[slice], newCapacity);
+			longitudes[slice] = longitudes[slice] == null ? new double[newCapacity]
+					: Arrays.copyOf(longitudes[slice], newCapacity);
+		}
+	}
+
+	public double getLatitude(final int slice, final int index) {
+		return latitudes[slice][index];
+	}
+
+	public double getLongitude(final int slice, final int index) {
+		return longitudes[slice][index];
+	}
+
+	/**
+	 * @return latitudes of the slice in an array of exactly getCount(slice)
+	 *         elements, backed by this store
+	 */
+	public double[] getLatitudes(final int slice) {
+		trimToSize(slice);
+		return latitudes[slice];
+	}
+
+	/**
+	 * @return longitudes of the slice in an array of exactly getCount(slice)
+	 *         elements, backed by this store
+	 */
+	public double[] getLongitudes(final int slice) {
+		trimToSize(slice);
+		return longitudes[slice];
+	}
+
+	public void clear() {
+		Arrays.fill(counts, 0);
+	}
+
+	private void trimToSize(final int slice) {
+
+		int count = counts[slice];
+
+		if (latitudes[slice] == null) {
+			latitudes[slice] = new double[0];
+			longitudes[slice] = new double[0];
+		} else if (latitudes[slice].length != count) {
+			latitudes[slice] = Arrays.copyOf(latitudes[slice], count);
+			longitudes[slice] = Arrays.copyOf(longitudes[slice], count);
+		}
+	}
+
+	private final double[][] latitudes;
+	private final double[][] longitudes;
+	private final int[] counts;
+}
@@ -1,6 +1,6 @@
 package templates;
 
-import generator.KMLGenerator;
+import generator.StreamingKMLGenerator;
 
 import java.awt.Color;
 import java.io.FileNotFoundException;
@@ -10,8 +10,10 @@ import java.io.PrintWriter;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
@@ -19,11 +21,14 @@ import jebl.evolution.io.NexusImporter;
 import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
 import structure.Coordinates;
+import structure.FlatTree;
 import structure.Layer;
 import structure.Line;
 import structure.Polygon;
 import structure.Style;
 import structure.TimeLine;
+import utils.FlatTreeBuilder;
+import utils.PolygonSimplifier;
 import utils.SpreadDate;
 import utils.Utils;
 
@@ -36,14 +41,15 @@ public class ContinuousTreeToKML {
 	// Earths radius in km
 	private static final double EarthRadius = 6371;
 
-	private RootedTree tree;
+	private FlatTree tree;
+	// jebl nodes in the order of the flat tree, for the HPD arrays
+	private Node[] nodes;
 	private String coordinatesName;
 	private String HPD;
 	private String mrsdString;
 	private int numberOfIntervals;
 	private double timescaler;
 	private double rootHeight;
-	private List<Layer> layers;
 	private double maxAltMapping;
 
 	private double minPolygonRedMapping;
@@ -73,6 +79,7 @@ public class ContinuousTreeToKML {
 	private double treeHeightMax;
 	private TreeImporter importer;
 	private PrintWriter writer;
+	private PolygonSimplifier polygonSimplifier;
 
 	private enum branchesMappingEnum {
 		TIME, DISTANCE, DEFAULT, USER
@@ -205,8 +212,17 @@ public class ContinuousTreeToKML {
 		branchWidth = width;
 	}
 
+	/**
+	 * @param simplifier
+	 *            simplifies the HPD polygons of every node before they are
+	 *            drawn, null to keep every vertex
+	 */
+	public void setPolygonSimplifier(PolygonSimplifier simplifier) {
+		polygonSimplifier = simplifier;
+	}
+
 	public void GenerateKML() throws IOException, ImportException,
-			ParseException {
+			ParseException, InterruptedException {
 
 		// start timing
 		time = -System.currentTimeMillis();
@@ -224,15 +240,18 @@ public class ContinuousTreeToKML {
 			break;
 		}
 
-		tree = (RootedTree) importer.importNextTree();
-
-		// this is for time calculations
-		rootHeight = tree.getHeight(tree.getRootNode());
-
 		// this is for coordinate attribute names
 		longitudeName = (coordinatesName + 2);
 		latitudeName = (coordinatesName + 1);
 
+		RootedTree rootedTree = (RootedTree) importer.importNextTree();
+		tree = FlatTreeBuilder.build(rootedTree, getNodeAttributeNames(),
+				new String[0]);
+		nodes = FlatTreeBuilder.getNodes(rootedTree);
+
+		// this is for time calculations
+		rootHeight = tree.getRootHeight();
+
 		// this is for mappings
 		treeHeightMax = Utils.getTreeHeightMax(tree);
 
@@ -242,332 +261,368 @@ public class ContinuousTreeToKML {
 				- (rootHeight * DayInMillis * timescaler), mrsd.getTime(),
 				numberOfIntervals);
 
-		// this is to generate kml output
-		KMLGenerator kmloutput = new KMLGenerator();
-		layers = new ArrayList<Layer>();
-
 		// Execute threads
 		final int NTHREDS = Runtime.getRuntime().availableProcessors();
 		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
 
-		executor.submit(new Branches());
-		executor.submit(new Polygons());
-		executor.shutdown();
-		// Wait until all threads are finished
-		while (!executor.isTerminated()) {
-		}
+		// layers are written in the order of the tasks, every one as soon as
+		// it is ready
+		List<Future<Layer>> futures = new ArrayList<Future<Layer>>();
+		try {
 
-		kmloutput.generate(writer, timeLine, layers);
+			futures.add(executor.submit(new Branches()));
+			futures.add(executor.submit(new Polygons()));
+
+			// this is to generate kml output
+			StreamingKMLGenerator kmloutput = new StreamingKMLGenerator();
+			kmloutput.open(writer, timeLine);
+			for (int i = 0; i < futures.size(); i++) {
+				kmloutput.writeLayer(Utils.waitFor(futures.get(i)));
+				futures.set(i, null);
+			}
+			kmloutput.close();
+
+		} finally {
+			executor.shutdownNow();
+		}
 
 		// stop timing
 		time += System.currentTimeMillis();
 
 	}// END: GenerateKML() method
 
+	private String[] getNodeAttributeNames() {
+
+		String modalityName = coordinatesName + "_" + HPD + "HPD_modality";
+
+		if (userAttribute == null) {
+			return new String[] { longitudeName, latitudeName, modalityName };
+		} else {
+			return new String[] { longitudeName, latitudeName, modalityName,
+					userAttribute };
+		}
+	}// END: getNodeAttributeNames
+
+	/**
+	 * @return the HPD polygons of every mode of the node, simplified together
+	 *         when a simplifier is set
+	 */
+	private List<List<Coordinates>> getHPDRings(int node, int modality) {
+
+		List<List<Coordinates>> rings = new ArrayList<List<Coordinates>>();
+		for (int i = 1; i <= modality; i++) {
+
+			Object[] longitudeHPD = Utils.getArrayNodeAttribute(nodes[node],
+					longitudeName + "_" + HPD + "HPD_" + i);
+			Object[] latitudeHPD = Utils.getArrayNodeAttribute(nodes[node],
+					latitudeName + "_" + HPD + "HPD_" + i);
+
+			rings.add(Utils.ParsePolygons(longitudeHPD, latitudeHPD));
+		}
+
+		if (polygonSimplifier != null) {
+			rings = polygonSimplifier.simplifyCoordinates(rings);
+		}
+
+		return rings;
+	}// END: getHPDRings
+
+	/**
+	 * @return value of the user attribute at the node, which must have it
+	 */
+	private double getUserAttribute(double[] userValues, int node) {
+
+		if (userValues == null || Double.isNaN(userValues[node])) {
+			throw new RuntimeException("Attribute " + userAttribute
+					+ " missing from the node. \n");
+		}
+
+		return userValues[node];
+	}// END: getUserAttribute
+
 	// ////////////////
 	// ---BRANCHES---//
 	// ////////////////
-	private class Branches implements Runnable {
-
-		public void run() {
-
-			try {
-
-				// this is for Branches folder:
-				String branchesDescription = null;
-				Layer branchesLayer = new Layer("Branches", branchesDescription);
-
-				int branchStyleId = 1;
-				for (Node node : tree.getNodes()) {
-
-					if (!tree.isRoot(node)) {
-
-						double longitude = Utils.getDoubleNodeAttribute(node,
-								longitudeName);
-						double latitude = Utils.getDoubleNodeAttribute(node,
-								latitudeName);
-
-						Node parentNode = tree.getParent(node);
-						double parentLongitude = (Double) parentNode
-								.getAttribute(longitudeName);
-						double parentLatitude = (Double) parentNode
-								.getAttribute(latitudeName);
-
-						double nodeHeight = tree.getHeight(node);
-
-						/**
-						 * altitude mapping
-						 * */
-						double maxAltitude = Double.NaN;
-						switch (branchesAltitudeMapping) {
-						case TIME:
-							maxAltitude = Utils.map(nodeHeight, 0,
-									treeHeightMax, 0, maxAltMapping);
-							break;
-						case USER:
-							maxAltitude = Utils.map(
-									Utils.getDoubleNodeAttribute(node,
-											userAttribute), 0, treeHeightMax,
-									0, maxAltMapping);
-							break;
-						case DISTANCE:
-							maxAltitude = Utils
-									.map(Utils
-											.RhumbDistance(parentLongitude,
-													parentLatitude, longitude,
-													latitude), 0, EarthRadius,
-											0, maxAltMapping);
-							break;
-						case DEFAULT:
-							maxAltitude = 0;
-							break;
-						}
-
-						/**
-						 * Color mapping
-						 * */
-						int red = (int) Double.NaN;
-						int green = (int) Double.NaN;
-						int blue = (int) Double.NaN;
-						switch (branchesColorMapping) {
-						case TIME:
-							red = (int) Utils.map(nodeHeight, 0, treeHeightMax,
-									minBranchRedMapping, maxBranchRedMapping);
-
-							green = (int) Utils.map(nodeHeight, 0,
-									treeHeightMax, minBranchGreenMapping,
-									maxBranchGreenMapping);
-
-							blue = (int) Utils.map(nodeHeight, 0,
-									treeHeightMax, minBranchBlueMapping,
-									maxBranchBlueMapping);
-
-							break;
-						case USER:
-							red = (int) Utils.map(Utils.getDoubleNodeAttribute(
-									node, userAttribute), 0, treeHeightMax,
-									minBranchRedMapping, maxBranchRedMapping);
-
-							green = (int) Utils.map(
-									Utils.getDoubleNodeAttribute(node,
-											userAttribute), 0, treeHeightMax,
-									minBranchGreenMapping,
-									maxBranchGreenMapping);
-
-							blue = (int) Utils.map(
-									Utils.getDoubleNodeAttribute(node,
-											userAttribute), 0, treeHeightMax,
-									minBranchBlueMapping, maxBranchBlueMapping);
-
-							break;
-						}
-
-						/**
-						 * opacity mapping
-						 * */
-						int alpha = (int) Double.NaN;
-						switch (branchesOpacityMapping) {
-						case TIME:
-							alpha = (int) Utils.map(nodeHeight, 0,
-									treeHeightMax, maxBranchOpacityMapping,
-									minBranchOpacityMapping);
-							break;
-						case USER:
-							alpha = (int) Utils.map(
-									Utils.getDoubleNodeAttribute(node,
-											userAttribute), 0, treeHeightMax,
-									maxBranchOpacityMapping,
-									minBranchOpacityMapping);
-							break;
-						case DEFAULT:
-							alpha = 255;
-							break;
-						}
-
-						Color col = new Color(red, green, blue, alpha);
-
-						Style linesStyle = new Style(col, branchWidth);
-						linesStyle.setId("branch_style" + branchStyleId);
-						branchStyleId++;
-
-						SpreadDate mrsd = new SpreadDate(mrsdString);
-						int days = (int) (nodeHeight * timescaler);
-						double startTime = mrsd.minus(days);
-
-						branchesLayer
-								.addItem(new Line((parentLongitude + ","
-										+ parentLatitude + ":" + longitude
-										+ "," + latitude), // name
-										new Coordinates(parentLongitude,
-												parentLatitude), // startCoords
-										startTime, // double startime
-										linesStyle, // style startstyle
-										new Coordinates(longitude, latitude), // endCoords
-										0.0, // double endtime
-										linesStyle, // style endstyle
-										maxAltitude, // double maxAltitude
-										0.0) // double duration
-								);
-
+	private class Branches implements Callable<Layer> {
+
+		public Layer call() throws ParseException {
+
+			// this is for Branches folder:
+			String branchesDescription = null;
+			Layer branchesLayer = new Layer("Branches", branchesDescription);
+
+			// values of the user attribute, resolved once
+			double[] userValues = userAttribute == null ? null : tree
+					.getNodeAttributeColumn(userAttribute, 0);
+
+			double[] longitudes = tree.getNodeAttributeColumn(
+					longitudeName, 0);
+			double[] latitudes = tree.getNodeAttributeColumn(latitudeName,
+					0);
+
+			int branchStyleId = 1;
+			for (int node = 0; node < tree.getNodeCount(); node++) {
+
+				if (!tree.isRoot(node)) {
+
+					double longitude = longitudes[node];
+					double latitude = latitudes[node];
+
+					int parentNode = tree.getParent(node);
+					double parentLongitude = longitudes[parentNode];
+					double parentLatitude = latitudes[parentNode];
+
+					double nodeHeight = tree.getHeight(node);
+
+					/**
+					 * altitude mapping
+					 * */
+					double maxAltitude = Double.NaN;
+					switch (branchesAltitudeMapping) {
+					case TIME:
+						maxAltitude = Utils.map(nodeHeight, 0,
+								treeHeightMax, 0, maxAltMapping);
+						break;
+					case USER:
+						maxAltitude = Utils.map(
+								getUserAttribute(userValues, node), 0,
+								treeHeightMax,
+								0, maxAltMapping);
+						break;
+					case DISTANCE:
+						maxAltitude = Utils
+								.map(Utils
+										.RhumbDistance(parentLongitude,
+												parentLatitude, longitude,
+												latitude), 0, EarthRadius,
+										0, maxAltMapping);
+						break;
+					case DEFAULT:
+						maxAltitude = 0;
+						break;
 					}
-				}// END: node loop
-
-				layers.add(branchesLayer);
 
-			} catch (ParseException e) {
-				e.printStackTrace();
+					/**
+					 * Color mapping
+					 * */
+					int red = (int) Double.NaN;
+					int green = (int) Double.NaN;
+					int blue = (int) Double.NaN;
+					switch (branchesColorMapping) {
+					case TIME:
+						red = (int) Utils.map(nodeHeight, 0, treeHeightMax,
+								minBranchRedMapping, maxBranchRedMapping);
+
+						green = (int) Utils.map(nodeHeight, 0,
+								treeHeightMax, minBranchGreenMapping,
+								maxBranchGreenMapping);
+
+						blue = (int) Utils.map(nodeHeight, 0,
+								treeHeightMax, minBranchBlueMapping,
+								maxBranchBlueMapping);
+
+						break;
+					case USER:
+						red = (int) Utils.map(
+								getUserAttribute(userValues, node), 0,
+								treeHeightMax,
+								minBranchRedMapping, maxBranchRedMapping);
+
+						green = (int) Utils.map(
+								getUserAttribute(userValues, node), 0,
+								treeHeightMax,
+								minBranchGreenMapping,
+								maxBranchGreenMapping);
+
+						blue = (int) Utils.map(
+								getUserAttribute(userValues, node), 0,
+								treeHeightMax,
+								minBranchBlueMapping, maxBranchBlueMapping);
+
+						break;
+					}
 
-			} catch (RuntimeException e) {
-				e.printStackTrace();
-			}
+					/**
+					 * opacity mapping
+					 * */
+					int alpha = (int) Double.NaN;
+					switch (branchesOpacityMapping) {
+					case TIME:
+						alpha = (int) Utils.map(nodeHeight, 0,
+								treeHeightMax, maxBranchOpacityMapping,
+								minBranchOpacityMapping);
+						break;
+					case USER:
+						alpha = (int) Utils.map(
+								getUserAttribute(userValues, node), 0,
+								treeHeightMax,
+								maxBranchOpacityMapping,
+								minBranchOpacityMapping);
+						break;
+					case DEFAULT:
+						alpha = 255;
+						break;
+					}
 
-		}// END: run
+					Color col = new Color(red, green, blue, alpha);
+
+					Style linesStyle = new Style(col, branchWidth);
+					linesStyle.setId("branch_style" + branchStyleId);
+					branchStyleId++;
+
+					SpreadDate mrsd = new SpreadDate(mrsdString);
+					int days = (int) (nodeHeight * timescaler);
+					double startTime = mrsd.minus(days);
+
+					branchesLayer
+							.addItem(new Line((parentLongitude + ","
+									+ parentLatitude + ":" + longitude
+									+ "," + latitude), // name
+									new Coordinates(parentLongitude,
+											parentLatitude), // startCoords
+									startTime, // double startime
+									linesStyle, // style startstyle
+									new Coordinates(longitude, latitude), // endCoords
+									0.0, // double endtime
+									linesStyle, // style endstyle
+									maxAltitude, // double maxAltitude
+									0.0) // double duration
+							);
+
+				}
+			}// END: node loop
+
+			return branchesLayer;
+		}// END: call
 	}// END: Branches class
 
 	// ////////////////
 	// ---POLYGONS---//
 	// ////////////////
-	private class Polygons implements Runnable {
-
-		public void run() {
-
-			try {
-
-				// this is for Polygons folder:
-				String polygonsDescription = null;
-				Layer polygonsLayer = new Layer("Polygons", polygonsDescription);
-
-				int polygonsStyleId = 1;
-				for (Node node : tree.getNodes()) {
-
-					if (!tree.isRoot(node)) {
-
-						if (!tree.isExternal(node)) {
-
-							int modality = Utils.getIntegerNodeAttribute(node,
-									coordinatesName + "_" + HPD
-											+ "HPD_modality");
-
-							for (int i = 1; i <= modality; i++) {
-
-								Object[] longitudeHPD = Utils
-										.getArrayNodeAttribute(node,
-												longitudeName + "_" + HPD
-														+ "HPD_" + i);
-								Object[] latitudeHPD = Utils
-										.getArrayNodeAttribute(node,
-												latitudeName + "_" + HPD
-														+ "HPD_" + i);
-
-								/**
-								 * Color mapping
-								 * */
-								double nodeHeight = tree.getHeight(node);
-
-								int red = (int) Double.NaN;
-								int green = (int) Double.NaN;
-								int blue = (int) Double.NaN;
-								switch (polygonsColorMapping) {
-								case TIME:
-									red = (int) Utils.map(nodeHeight, 0,
-											treeHeightMax,
-											minPolygonRedMapping,
-											maxPolygonRedMapping);
-
-									green = (int) Utils.map(nodeHeight, 0,
-											treeHeightMax,
-											minPolygonGreenMapping,
-											maxPolygonGreenMapping);
-
-									blue = (int) Utils.map(nodeHeight, 0,
-											treeHeightMax,
-											minPolygonBlueMapping,
-											maxPolygonBlueMapping);
-
-									break;
-								case USER:
-									red = (int) Utils.map(Utils
-											.getDoubleNodeAttribute(node,
-													userAttribute), 0,
-											treeHeightMax,
-											minPolygonRedMapping,
-											maxPolygonRedMapping);
-
-									green = (int) Utils.map(Utils
-											.getDoubleNodeAttribute(node,
-													userAttribute), 0,
-											treeHeightMax,
-											minPolygonGreenMapping,
-											maxPolygonGreenMapping);
-
-									blue = (int) Utils.map(Utils
-											.getDoubleNodeAttribute(node,
-													userAttribute), 0,
-											treeHeightMax,
-											minPolygonBlueMapping,
-											maxPolygonBlueMapping);
-
-									break;
-								}
-
-								/**
-								 * opacity mapping
-								 * */
-								int alpha = (int) Double.NaN;
-								switch (polygonsOpacityMapping) {
-								case TIME:
-									alpha = (int) Utils.map(nodeHeight, 0,
-											treeHeightMax,
-											maxPolygonOpacityMapping,
-											minPolygonOpacityMapping);
-									break;
-								case USER:
-									alpha = (int) Utils.map(Utils
-											.getDoubleNodeAttribute(node,
-													userAttribute), 0,
-											treeHeightMax,
-											maxPolygonOpacityMapping,
-											minPolygonOpacityMapping);
-									break;
-								}
-
-								Color col = new Color(red, green, blue, alpha);
-								Style polygonsStyle = new Style(col, 0);
-								polygonsStyle.setId("polygon_style"
-										+ polygonsStyleId);
-
-								SpreadDate mrsd = new SpreadDate(mrsdString);
-								int days = (int) (nodeHeight * timescaler);
-								double startTime = mrsd.minus(days);
-
-								polygonsLayer.addItem(new Polygon("node"
-										+ polygonsStyleId + "_" + HPD + "HPD"
-										+ "_" + i, // String name
-										Utils.ParsePolygons(longitudeHPD,
-												latitudeHPD),// List<Coordinates>
-										polygonsStyle, // Style style
-										startTime, // double startime
-										0.0 // double duration
-										));
-
-								polygonsStyleId++;
-
-							}// END: modality loop
-
-						}
-					}
-				}// END: nodes loop
-
-				layers.add(polygonsLayer);
-
-			} catch (ParseException e) {
-				e.printStackTrace();
+	private class Polygons implements Callable<Layer> {
+
+		public Layer call() throws ParseException {
+
+			// this is for Polygons folder:
+			String polygonsDescription = null;
+			Layer polygonsLayer = new Layer("Polygons", polygonsDescription);
+
+			// values of the user attribute, resolved once
+			double[] userValues = userAttribute == null ? null : tree
+					.getNodeAttributeColumn(userAttribute, 0);
+
+			double[] modalities = tree.getNodeAttributeColumn(
+					coordinatesName + "_" + HPD + "HPD_modality", 0);
+
+			int polygonsStyleId = 1;
+			for (int node = 0; node < tree.getNodeCount(); node++) {
+
+				if (!tree.isRoot(node)) {
+
+					if (!tree.isExternal(node)) {
+
+						int modality = (int) modalities[node];
+						List<List<Coordinates>> hpdRings = getHPDRings(
+								node, modality);
+
+						for (int i = 1; i <= modality; i++) {
+
+							/**
+							 * Color mapping
+							 * */
+							double nodeHeight = tree.getHeight(node);
+
+							int red = (int) Double.NaN;
+							int green = (int) Double.NaN;
+							int blue = (int) Double.NaN;
+							switch (polygonsColorMapping) {
+							case TIME:
+								red = (int) Utils.map(nodeHeight, 0,
+										treeHeightMax,
+										minPolygonRedMapping,
+										maxPolygonRedMapping);
+
+								green = (int) Utils.map(nodeHeight, 0,
+										treeHeightMax,
+										minPolygonGreenMapping,
+										maxPolygonGreenMapping);
+
+								blue = (int) Utils.map(nodeHeight, 0,
+										treeHeightMax,
+										minPolygonBlueMapping,
+										maxPolygonBlueMapping);
+
+								break;
+							case USER:
+								red = (int) Utils.map(
+										getUserAttribute(userValues, node), 0,
+										treeHeightMax,
+										minPolygonRedMapping,
+										maxPolygonRedMapping);
+
+								green = (int) Utils.map(
+										getUserAttribute(userValues, node), 0,
+										treeHeightMax,
+										minPolygonGreenMapping,
+										maxPolygonGreenMapping);
+
+								blue = (int) Utils.map(
+										getUserAttribute(userValues, node), 0,
+										treeHeightMax,
+										minPolygonBlueMapping,
+										maxPolygonBlueMapping);
+
+								break;
+							}
+
+							/**
+							 * opacity mapping
+							 * */
+							int alpha = (int) Double.NaN;
+							switch (polygonsOpacityMapping) {
+							case TIME:
+								alpha = (int) Utils.map(nodeHeight, 0,
+										treeHeightMax,
+										maxPolygonOpacityMapping,
+										minPolygonOpacityMapping);
+								break;
+							case USER:
+								alpha = (int) Utils.map(
+										getUserAttribute(userValues, node), 0,
+										treeHeightMax,
+										maxPolygonOpacityMapping,
+										minPolygonOpacityMapping);
+								break;
+							}
+
+							Color col = new Color(red, green, blue, alpha);
+							Style polygonsStyle = new Style(col, 0);
+							polygonsStyle.setId("polygon_style"
+									+ polygonsStyleId);
+
+							SpreadDate mrsd = new SpreadDate(mrsdString);
+							int days = (int) (nodeHeight * timescaler);
+							double startTime = mrsd.minus(days);
+
+							polygonsLayer.addItem(new Polygon("node"
+									+ polygonsStyleId + "_" + HPD + "HPD"
+									+ "_" + i, // String name
+									hpdRings.get(i - 1),// List<Coordinates>
+									polygonsStyle, // Style style
+									startTime, // double startime
+									0.0 // double duration
+									));
+
+							polygonsStyleId++;
+
+						}// END: modality loop
 
-			} catch (RuntimeException e) {
-				e.printStackTrace();
-			}
+					}
+				}
+			}// END: nodes loop
 
-		}// END: run
+			return polygonsLayer;
+		}// END: call
 	}// END: polygons class
 
 }// END: ContinuousTreeToKML class
@@ -2,6 +2,7 @@ package templates;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import jebl.evolution.graphs.Node;
@@ -11,6 +12,9 @@ import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
 import processing.core.PApplet;
 import structure.Coordinates;
+import structure.FlatTree;
+import utils.FlatTreeBuilder;
+import utils.PolygonSimplifier;
 import utils.Utils;
 
 @SuppressWarnings("serial")
@@ -18,12 +22,17 @@ public class ContinuousTreeToProcessing extends PApplet {
 
 	private String coordinatesName;
 	private TreeImporter importer;
-	private RootedTree tree;
+	private RootedTree rootedTree;
+	// compiled on the first draw after the tree or the attribute names change
+	private FlatTree tree;
+	// jebl nodes in the order of the flat tree, for the HPD arrays
+	private Node[] nodes;
 	private String longitudeName;
 	private String latitudeName;
 	private double treeHeightMax;
 	private String HPD;
 	private MapBackground mapBackground;
+	private PolygonSimplifier polygonSimplifier;
 
 	private double minPolygonRedMapping;
 	private double minPolygonGreenMapping;
@@ -58,6 +67,7 @@ public class ContinuousTreeToProcessing extends PApplet {
 
 	public void setHPD(String percent) throws RuntimeException {
 		HPD = percent;
+		tree = null;
 	}
 
 	public void setCoordinatesName(String name) {
@@ -66,14 +76,14 @@ public class ContinuousTreeToProcessing extends PApplet {
 		// this is for coordinate attribute names
 		longitudeName = (coordinatesName + 2);
 		latitudeName = (coordinatesName + 1);
+		tree = null;
 	}
 
 	public void setTreePath(String path) throws IOException, ImportException {
 
 		importer = new NexusImporter(new FileReader(path));
-		tree = (RootedTree) importer.importNextTree();
-		// this is for mappings
-		treeHeightMax = Utils.getTreeHeightMax(tree);
+		rootedTree = (RootedTree) importer.importNextTree();
+		tree = null;
 	}
 
 	public void setMinPolygonRedMapping(double min) {
@@ -144,6 +154,15 @@ public class ContinuousTreeToProcessing extends PApplet {
 		branchWidth = width;
 	}
 
+	/**
+	 * @param simplifier
+	 *            simplifies the HPD polygons of every node before they are
+	 *            drawn, null to keep every vertex
+	 */
+	public void setPolygonSimplifier(PolygonSimplifier simplifier) {
+		polygonSimplifier = simplifier;
+	}
+
 	public void setup() {
 
 		minX = -180;
@@ -158,6 +177,10 @@ public class ContinuousTreeToProcessing extends PApplet {
 
 	public void draw() {
 
+		if (tree == null) {
+			compileTree();
+		}
+
 		smooth();
 		mapBackground.drawMapBackground();
 		drawPolygons();
@@ -165,6 +188,41 @@ public class ContinuousTreeToProcessing extends PApplet {
 
 	}// END:draw
 
+	private void compileTree() {
+
+		tree = FlatTreeBuilder.build(rootedTree, new String[] { longitudeName,
+				latitudeName, coordinatesName + "_" + HPD + "HPD_modality" },
+				new String[0]);
+		nodes = FlatTreeBuilder.getNodes(rootedTree);
+
+		// this is for mappings
+		treeHeightMax = Utils.getTreeHeightMax(tree);
+	}// END: compileTree
+
+	/**
+	 * @return the HPD polygons of every mode of the node, simplified together
+	 *         when a simplifier is set
+	 */
+	private List<List<Coordinates>> getHPDRings(int node, int modality) {
+
+		List<List<Coordinates>> rings = new ArrayList<List<Coordinates>>();
+		for (int i = 1; i <= modality; i++) {
+
+			Object[] longitudeHPD = Utils.getArrayNodeAttribute(nodes[node],
+					longitudeName + "_" + HPD + "HPD_" + i);
+			Object[] latitudeHPD = Utils.getArrayNodeAttribute(nodes[node],
+					latitudeName + "_" + HPD + "HPD_" + i);
+
+			rings.add(Utils.ParsePolygons(longitudeHPD, latitudeHPD));
+		}
+
+		if (polygonSimplifier != null) {
+			rings = polygonSimplifier.simplifyCoordinates(rings);
+		}
+
+		return rings;
+	}// END: getHPDRings
+
 	// ////////////////
 	// ---BRANCHES---//
 	// ////////////////
@@ -172,20 +230,18 @@ public class ContinuousTreeToProcessing extends PApplet {
 
 		strokeWeight((float) branchWidth);
 
-		for (Node node : tree.getNodes()) {
-			if (!tree.isRoot(node)) {
+		double[] longitudes = tree.getNodeAttributeColumn(longitudeName, 0);
+		double[] latitudes = tree.getNodeAttributeColumn(latitudeName, 0);
 
-				Float longitude = (float) Utils.getDoubleNodeAttribute(node,
-						longitudeName);
+		for (int node = 0; node < tree.getNodeCount(); node++) {
+			if (!tree.isRoot(node)) {
 
-				Float latitude = (float) Utils.getDoubleNodeAttribute(node,
-						latitudeName);
+				float longitude = (float) longitudes[node];
+				float latitude = (float) latitudes[node];
 
-				Node parentNode = tree.getParent(node);
-				Float parentLongitude = (float) Utils.getDoubleNodeAttribute(
-						parentNode, longitudeName);
-				Float parentLatitude = (float) Utils.getDoubleNodeAttribute(
-						parentNode, latitudeName);
+				int parentNode = tree.getParent(node);
+				float parentLongitude = (float) longitudes[parentNode];
+				float parentLatitude = (float) latitudes[parentNode];
 
 				// Equirectangular projection:
 				float x0 = map(parentLongitude, minX, maxX, 0, width);
@@ -224,19 +280,20 @@ public class ContinuousTreeToProcessing extends PApplet {
 	// ////////////////
 	private void drawPolygons() {
 
-		for (Node node : tree.getNodes()) {
+		double[] modalities = tree.getNodeAttributeColumn(coordinatesName
+				+ "_" + HPD + "HPD_modality", 0);
+
+		for (int node = 0; node < tree.getNodeCount(); node++) {
 			if (!tree.isRoot(node)) {
 				if (!tree.isExternal(node)) {
 
-					Integer modality = Utils.getIntegerNodeAttribute(node,
-							coordinatesName + "_" + HPD + "HPD_modality");
+					int modality = (int) modalities[node];
+
+					List<List<Coordinates>> hpdRings = getHPDRings(node,
+							modality);
 
 					for (int i = 1; i <= modality; i++) {
 
-						Object[] longitudeHPD = Utils.getArrayNodeAttribute(
-								node, longitudeName + "_" + HPD + "HPD_" + i);
-						Object[] latitudeHPD = Utils.getArrayNodeAttribute(
-								node, latitudeName + "_" + HPD + "HPD_" + i);
 						/**
 						 * Color mapping
 						 * */
@@ -260,8 +317,7 @@ public class ContinuousTreeToProcessing extends PApplet {
 						stroke(red, green, blue, alpha);
 						fill(red, green, blue, alpha);
 
-						List<Coordinates> coordinates = Utils.ParsePolygons(
-								longitudeHPD, latitudeHPD);
+						List<Coordinates> coordinates = hpdRings.get(i - 1);
 
 						beginShape();
 
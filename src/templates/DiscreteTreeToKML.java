@@ -1,6 +1,6 @@
 package templates;
 
-import generator.KMLGenerator;
+import generator.StreamingKMLGenerator;
 
 import java.awt.Color;
 import java.io.FileNotFoundException;
@@ -10,21 +10,24 @@ import java.io.PrintWriter;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
 import jebl.evolution.io.NexusImporter;
 import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
 import structure.Coordinates;
+import structure.FlatTree;
 import structure.Layer;
 import structure.Line;
 import structure.Place;
 import structure.Polygon;
 import structure.Style;
 import structure.TimeLine;
+import utils.FlatTreeBuilder;
 import utils.ReadLocations;
 import utils.SpreadDate;
 import utils.Utils;
@@ -38,7 +41,7 @@ public class DiscreteTreeToKML {
 	// Earths radius in km
 	private static final double EarthRadius = 6371;
 
-	private RootedTree tree;
+	private FlatTree tree;
 	private String stateAttName;
 	private ReadLocations data;
 	private String mrsdString;
@@ -46,7 +49,6 @@ public class DiscreteTreeToKML {
 	private double timescaler;
 	private String userAttribute;
 	private double rootHeight;
-	private List<Layer> layers;
 	private double maxAltMapping;
 
 	private double minPolygonRedMapping;
@@ -203,7 +205,7 @@ public class DiscreteTreeToKML {
 	}
 
 	public void GenerateKML() throws IOException, ImportException,
-			ParseException, RuntimeException {
+			ParseException, InterruptedException, RuntimeException {
 
 		// start timing
 		time = -System.currentTimeMillis();
@@ -221,10 +223,11 @@ public class DiscreteTreeToKML {
 			break;
 		}
 
-		tree = (RootedTree) importer.importNextTree();
+		tree = FlatTreeBuilder.build((RootedTree) importer.importNextTree(),
+				getNodeAttributeNames(), new String[] { stateAttName });
 
 		// this is for time calculations
-		rootHeight = tree.getHeight(tree.getRootNode());
+		rootHeight = tree.getRootHeight();
 
 		// This is a general time span for the tree
 		SpreadDate mrsd = new SpreadDate(mrsdString);
@@ -232,37 +235,53 @@ public class DiscreteTreeToKML {
 				- (rootHeight * DayInMillis * timescaler), mrsd.getTime(),
 				numberOfIntervals);
 
-		// this is to generate kml output
-		KMLGenerator kmloutput = new KMLGenerator();
-		layers = new ArrayList<Layer>();
-
 		// Execute threads
 		final int NTHREDS = Runtime.getRuntime().availableProcessors();
 		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
 
-		// executor.submit(new SanityCheck());
-		executor.submit(new Places());
-		executor.submit(new Branches());
-		executor.submit(new Circles());
-		executor.shutdown();
-		// Wait until all threads are finished
-		while (!executor.isTerminated()) {
-		}
+		// layers are written in the order of the tasks, every one as soon as
+		// it is ready
+		List<Future<Layer>> futures = new ArrayList<Future<Layer>>();
+		try {
+
+			// executor.submit(new SanityCheck());
+			futures.add(executor.submit(new Places()));
+			futures.add(executor.submit(new Branches()));
+			futures.add(executor.submit(new Circles()));
+
+			// generate kml
+			StreamingKMLGenerator kmloutput = new StreamingKMLGenerator();
+			kmloutput.open(writer, timeLine);
+			for (int i = 0; i < futures.size(); i++) {
+				kmloutput.writeLayer(Utils.waitFor(futures.get(i)));
+				futures.set(i, null);
+			}
+			kmloutput.close();
 
-		// generate kml
-		kmloutput.generate(writer, timeLine, layers);
+		} finally {
+			executor.shutdownNow();
+		}
 
 		// stop timing
 		time += System.currentTimeMillis();
 
 	}// END: GenerateKML
 
+	private String[] getNodeAttributeNames() {
+
+		if (userAttribute == null) {
+			return new String[0];
+		} else {
+			return new String[] { userAttribute };
+		}
+	}// END: getNodeAttributeNames
+
 	// //////////////
 	// ---PLACES---//
 	// //////////////
-	private class Places implements Runnable {
+	private class Places implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
 
 			// this is for Places folder:
 			String placesDescription = null;
@@ -274,284 +293,275 @@ public class DiscreteTreeToKML {
 								data.coordinates[i][0]), 0, 0));
 			}
 
-			layers.add(placesLayer);
+			return placesLayer;
 		}
 	}// END: Places class
 
-	// ////////////////
-	// ---BRANCHES---//
-	// ////////////////
-	private class Branches implements Runnable {
-
-		public void run() {
-
-			try {
+	/**
+	 * @return value of the user attribute at the node, which must have it
+	 */
+	private double getUserAttribute(double[] userValues, int node) {
 
-				// this is for Branches folder:
-				String branchesDescription = null;
-				Layer branchesLayer = new Layer("Branches", branchesDescription);
-
-				double treeHeightMax = Utils.getTreeHeightMax(tree);
+		if (userValues == null || Double.isNaN(userValues[node])) {
+			throw new RuntimeException("Attribute " + userAttribute
+					+ " missing from the node. \n");
+		}
 
-				int branchStyleId = 1;
-				for (Node node : tree.getNodes()) {
-					if (!tree.isRoot(node)) {
+		return userValues[node];
+	}// END: getUserAttribute
 
-						String state = Utils.getStringNodeAttribute(node,
-								stateAttName);
-
-						Node parentNode = tree.getParent(node);
-						String parentState = (String) parentNode
-								.getAttribute(stateAttName);
-
-						if (!state.toLowerCase().equals(
-								parentState.toLowerCase())) {
-
-							float longitude = Utils.MatchStateCoordinate(data,
-									state, 0);
-							float latitude = Utils.MatchStateCoordinate(data,
-									state, 1);
-
-							float parentLongitude = Utils.MatchStateCoordinate(
-									data, parentState, 0);
-							float parentLatitude = Utils.MatchStateCoordinate(
-									data, parentState, 1);
-
-							double nodeHeight = tree.getHeight(node);
-
-							/**
-							 * altitude mapping
-							 * */
-							double maxAltitude = Double.NaN;
-							switch (altitudeMapping) {
-							case TIME:
-								maxAltitude = (int) Utils.map(nodeHeight, 0,
-										treeHeightMax, 0, maxAltMapping);
-								break;
-
-							case USER:
-								maxAltitude = Utils.map(Utils
-										.getDoubleNodeAttribute(node,
-												userAttribute), 0,
-										treeHeightMax, 0, maxAltMapping);
-								break;
-
-							case DISTANCE:
-								maxAltitude = Utils.map(Utils.RhumbDistance(
-										parentLongitude, parentLatitude,
-										longitude, latitude), 0, EarthRadius,
-										0, maxAltMapping);
-								break;
-
-							case DEFAULT:
-								maxAltitude = 0;
-								break;
-							}
+	// ////////////////
+	// ---BRANCHES---//
+	// ////////////////
+	private class Branches implements Callable<Layer> {
+
+		public Layer call() throws ParseException {
+
+			// this is for Branches folder:
+			String branchesDescription = null;
+			Layer branchesLayer = new Layer("Branches", branchesDescription);
+
+			// values of the user attribute, resolved once
+			double[] userValues = userAttribute == null ? null : tree
+					.getNodeAttributeColumn(userAttribute, 0);
+
+			double treeHeightMax = Utils.getTreeHeightMax(tree);
+
+			int branchStyleId = 1;
+			for (int node = 0; node < tree.getNodeCount(); node++) {
+				if (!tree.isRoot(node)) {
+
+					String state = tree.getNodeLabel(stateAttName, node);
+
+					int parentNode = tree.getParent(node);
+					String parentState = tree.getNodeLabel(stateAttName,
+							parentNode);
+
+					if (!state.toLowerCase().equals(
+							parentState.toLowerCase())) {
+
+						float longitude = Utils.MatchStateCoordinate(data,
+								state, 0);
+						float latitude = Utils.MatchStateCoordinate(data,
+								state, 1);
+
+						float parentLongitude = Utils.MatchStateCoordinate(
+								data, parentState, 0);
+						float parentLatitude = Utils.MatchStateCoordinate(
+								data, parentState, 1);
+
+						double nodeHeight = tree.getHeight(node);
+
+						/**
+						 * altitude mapping
+						 * */
+						double maxAltitude = Double.NaN;
+						switch (altitudeMapping) {
+						case TIME:
+							maxAltitude = (int) Utils.map(nodeHeight, 0,
+									treeHeightMax, 0, maxAltMapping);
+							break;
+
+						case USER:
+							maxAltitude = Utils.map(
+									getUserAttribute(userValues, node), 0,
+									treeHeightMax, 0, maxAltMapping);
+							break;
+
+						case DISTANCE:
+							maxAltitude = Utils.map(Utils.RhumbDistance(
+									parentLongitude, parentLatitude,
+									longitude, latitude), 0, EarthRadius,
+									0, maxAltMapping);
+							break;
+
+						case DEFAULT:
+							maxAltitude = 0;
+							break;
+						}
 
-							/**
-							 * Color mapping
-							 * */
-							int red = (int) Double.NaN;
-							int green = (int) Double.NaN;
-							int blue = (int) Double.NaN;
-							switch (branchesColorMapping) {
-							case TIME:
-
-								red = (int) Utils.map(nodeHeight, 0,
-										treeHeightMax, minBranchRedMapping,
-										maxBranchRedMapping);
-
-								green = (int) Utils.map(nodeHeight, 0,
-										treeHeightMax, minBranchGreenMapping,
-										maxBranchGreenMapping);
-
-								blue = (int) Utils.map(nodeHeight, 0,
-										treeHeightMax, minBranchBlueMapping,
-										maxBranchBlueMapping);
-								break;
-
-							case USER:
-								red = (int) Utils.map(Utils
-										.getDoubleNodeAttribute(node,
-												userAttribute), 0,
-										treeHeightMax, minBranchRedMapping,
-										maxBranchRedMapping);
-
-								green = (int) Utils.map(Utils
-										.getDoubleNodeAttribute(node,
-												userAttribute), 0,
-										treeHeightMax, minBranchGreenMapping,
-										maxBranchGreenMapping);
-
-								blue = (int) Utils.map(Utils
-										.getDoubleNodeAttribute(node,
-												userAttribute), 0,
-										treeHeightMax, minBranchBlueMapping,
-										maxBranchBlueMapping);
-								break;
-
-							case DEFAULT:
-								red = 255;
-								green = 0;
-								blue = 0;
-								break;
-							}
+						/**
+						 * Color mapping
+						 * */
+						int red = (int) Double.NaN;
+						int green = (int) Double.NaN;
+						int blue = (int) Double.NaN;
+						switch (branchesColorMapping) {
+						case TIME:
+
+							red = (int) Utils.map(nodeHeight, 0,
+									treeHeightMax, minBranchRedMapping,
+									maxBranchRedMapping);
+
+							green = (int) Utils.map(nodeHeight, 0,
+									treeHeightMax, minBranchGreenMapping,
+									maxBranchGreenMapping);
+
+							blue = (int) Utils.map(nodeHeight, 0,
+									treeHeightMax, minBranchBlueMapping,
+									maxBranchBlueMapping);
+							break;
+
+						case USER:
+							red = (int) Utils.map(
+									getUserAttribute(userValues, node), 0,
+									treeHeightMax, minBranchRedMapping,
+									maxBranchRedMapping);
+
+							green = (int) Utils.map(
+									getUserAttribute(userValues, node), 0,
+									treeHeightMax, minBranchGreenMapping,
+									maxBranchGreenMapping);
+
+							blue = (int) Utils.map(
+									getUserAttribute(userValues, node), 0,
+									treeHeightMax, minBranchBlueMapping,
+									maxBranchBlueMapping);
+							break;
+
+						case DEFAULT:
+							red = 255;
+							green = 0;
+							blue = 0;
+							break;
+						}
 
-							/**
-							 * opacity mapping
-							 * */
-							int alpha = (int) Double.NaN;
-							switch (branchesOpacityMapping) {
-							case TIME:
-								alpha = (int) Utils.map(nodeHeight, 0,
-										treeHeightMax, maxBranchOpacityMapping,
-										minBranchOpacityMapping);
-								break;
-							case USER:
-								alpha = (int) Utils.map(Utils
-										.getDoubleNodeAttribute(node,
-												userAttribute), 0,
-										treeHeightMax, maxBranchOpacityMapping,
-										minBranchOpacityMapping);
-								break;
-							case DEFAULT:
-								alpha = 255;
-								break;
-							}
+						/**
+						 * opacity mapping
+						 * */
+						int alpha = (int) Double.NaN;
+						switch (branchesOpacityMapping) {
+						case TIME:
+							alpha = (int) Utils.map(nodeHeight, 0,
+									treeHeightMax, maxBranchOpacityMapping,
+									minBranchOpacityMapping);
+							break;
+						case USER:
+							alpha = (int) Utils.map(
+									getUserAttribute(userValues, node), 0,
+									treeHeightMax, maxBranchOpacityMapping,
+									minBranchOpacityMapping);
+							break;
+						case DEFAULT:
+							alpha = 255;
+							break;
+						}
 
-							Color col = new Color(red, green, blue, alpha);
+						Color col = new Color(red, green, blue, alpha);
 
-							Style linesStyle = new Style(col, branchWidth);
-							linesStyle.setId("branch_style" + branchStyleId);
+						Style linesStyle = new Style(col, branchWidth);
+						linesStyle.setId("branch_style" + branchStyleId);
 
-							SpreadDate mrsd = new SpreadDate(mrsdString);
-							int days = (int) (nodeHeight * timescaler);
-							double startTime = mrsd.minus(days);
+						SpreadDate mrsd = new SpreadDate(mrsdString);
+						int days = (int) (nodeHeight * timescaler);
+						double startTime = mrsd.minus(days);
 
-							branchesLayer.addItem(new Line(
-									(parentState + ":" + state), // string name
-									new Coordinates(parentLatitude,
-											parentLongitude), startTime, // startime
-									linesStyle, // style startstyle
-									new Coordinates(latitude, longitude), // endcoords
-									0.0, // double endtime
-									linesStyle, // style endstyle
-									maxAltitude, // double maxAltitude
-									0.0) // double duration
-									);
+						branchesLayer.addItem(new Line(
+								(parentState + ":" + state), // string name
+								new Coordinates(parentLatitude,
+										parentLongitude), startTime, // startime
+								linesStyle, // style startstyle
+								new Coordinates(latitude, longitude), // endcoords
+								0.0, // double endtime
+								linesStyle, // style endstyle
+								maxAltitude, // double maxAltitude
+								0.0) // double duration
+								);
 
-							branchStyleId++;
-						}
+						branchStyleId++;
 					}
-				}// END: nodes loop
-
-				layers.add(branchesLayer);
-
-			} catch (ParseException e) {
-				e.printStackTrace();
-
-			} catch (RuntimeException e) {
-				e.printStackTrace();
-			}
+				}
+			}// END: nodes loop
 
-		}// END: run
+			return branchesLayer;
+		}// END: call
 	}// END Branches class
 
 	// ///////////////
 	// ---CIRCLES---//
 	// ///////////////
-	private class Circles implements Runnable {
-
-		public void run() {
-
-			try {
-
-				// this is for Circles folder:
-				String circlesDescription = null;
-				Layer circlesLayer = new Layer("Circles", circlesDescription);
-
-				double[][] numberOfLineages = CountLineagesHoldingState(
-						numberOfIntervals, rootHeight);
-				double lineagesCountMax = Utils.get2DArrayMax(numberOfLineages);
-
-				int circleStyleId = 1;
-				for (int i = 0; i < (numberOfIntervals - 1); i++) {
-					for (int j = 0; j < (data.locations.length); j++) {
-
-						if (numberOfLineages[i][j + 1] > 0) {
-
-							/**
-							 * Color mapping
-							 * */
-							int red = (int) Utils.map(
-									numberOfLineages[i][j + 1], 0,
-									lineagesCountMax, minPolygonRedMapping,
-									maxPolygonRedMapping);
-
-							int green = (int) Utils.map(
-									numberOfLineages[i][j + 1], 0,
-									lineagesCountMax, minPolygonGreenMapping,
-									maxPolygonGreenMapping);
-
-							int blue = (int) Utils.map(
-									numberOfLineages[i][j + 1], 0,
-									lineagesCountMax, minPolygonBlueMapping,
-									maxPolygonBlueMapping);
-
-							/**
-							 * Opacity mapping
-							 * 
-							 * Larger the values more opaque the colors
-							 * */
-							int alpha = (int) Utils.map(
-									numberOfLineages[i][j + 1], 0,
-									lineagesCountMax, maxPolygonOpacityMapping,
-									minPolygonOpacityMapping);
-
-							Color col = new Color(red, green, blue, alpha);
-
-							Style circlesStyle = new Style(col, 0);
-							circlesStyle.setId("circle_style" + circleStyleId);
-							circleStyleId++;
-
-							double radius = Math.round(100 * Math
-									.sqrt(numberOfLineages[i][j + 1]))
-									* polygonsRadiusMultiplier;
-
-							int days = (int) (numberOfLineages[i][0] * timescaler);
-							SpreadDate mrsd = new SpreadDate(mrsdString);
-
-							double startTime = mrsd.minus(days);
-							// this is to get duration in milliseconds:
-							double duration = ((rootHeight - numberOfLineages[i][0]) / (i + 1))
-									* DayInMillis;
-
-							circlesLayer.addItem(new Polygon(data.locations[j]
-									+ "_" + radius + "_" + "km", // String name
-									Utils.GenerateCircle( // List<Coordinates>
-											data.coordinates[j][1], // centerLong
-											data.coordinates[j][0], // centerLat
-											radius, // radius
-											36), // numPoints
-									circlesStyle, // Style style
-									startTime, // double startime
-									duration * timescaler // double duration
-							));
+	private class Circles implements Callable<Layer> {
+
+		public Layer call() throws ParseException {
+
+			// this is for Circles folder:
+			String circlesDescription = null;
+			Layer circlesLayer = new Layer("Circles", circlesDescription);
+
+			double[][] numberOfLineages = CountLineagesHoldingState(
+					numberOfIntervals, rootHeight);
+			double lineagesCountMax = Utils.get2DArrayMax(numberOfLineages);
+
+			int circleStyleId = 1;
+			for (int i = 0; i < (numberOfIntervals - 1); i++) {
+				for (int j = 0; j < (data.locations.length); j++) {
+
+					if (numberOfLineages[i][j + 1] > 0) {
+
+						/**
+						 * Color mapping
+						 * */
+						int red = (int) Utils.map(
+								numberOfLineages[i][j + 1], 0,
+								lineagesCountMax, minPolygonRedMapping,
+								maxPolygonRedMapping);
+
+						int green = (int) Utils.map(
+								numberOfLineages[i][j + 1], 0,
+								lineagesCountMax, minPolygonGreenMapping,
+								maxPolygonGreenMapping);
+
+						int blue = (int) Utils.map(
+								numberOfLineages[i][j + 1], 0,
+								lineagesCountMax, minPolygonBlueMapping,
+								maxPolygonBlueMapping);
+
+						/**
+						 * Opacity mapping
+						 * 
+						 * Larger the values more opaque the colors
+						 * */
+						int alpha = (int) Utils.map(
+								numberOfLineages[i][j + 1], 0,
+								lineagesCountMax, maxPolygonOpacityMapping,
+								minPolygonOpacityMapping);
+
+						Color col = new Color(red, green, blue, alpha);
+
+						Style circlesStyle = new Style(col, 0);
+						circlesStyle.setId("circle_style" + circleStyleId);
+						circleStyleId++;
+
+						double radius = Math.round(100 * Math
+								.sqrt(numberOfLineages[i][j + 1]))
+								* polygonsRadiusMultiplier;
+
+						int days = (int) (numberOfLineages[i][0] * timescaler);
+						SpreadDate mrsd = new SpreadDate(mrsdString);
+
+						double startTime = mrsd.minus(days);
+						// this is to get duration in milliseconds:
+						double duration = ((rootHeight - numberOfLineages[i][0]) / (i + 1))
+								* DayInMillis;
+
+						circlesLayer.addItem(new Polygon(data.locations[j]
+								+ "_" + radius + "_" + "km", // String name
+								Utils.GenerateCircle( // List<Coordinates>
+										data.coordinates[j][1], // centerLong
+										data.coordinates[j][0], // centerLat
+										radius, // radius
+										36), // numPoints
+								circlesStyle, // Style style
+								startTime, // double startime
+								duration * timescaler // double duration
+						));
 
-						}
-					}// END: col loop
-				}// END: row loop
-
-				layers.add(circlesLayer);
-
-			} catch (ParseException e) {
-				e.printStackTrace();
-
-			} catch (RuntimeException e) {
-				e.printStackTrace();
-			}
+					}
+				}// END: col loop
+			}// END: row loop
 
-		}// END: run
+			return circlesLayer;
+		}// END: call
 	}// END: Circles class
 
 	private double[][] CountLineagesHoldingState(int numberOfIntervals,
@@ -564,29 +574,31 @@ public class DiscreteTreeToKML {
 			numberOfLineages[i][0] = rootHeight - ((i + 1) * delta);
 		}
 
+		// states are compared case insensitive, every label is lower cased
+		// once, and only for nodes of branches crossing an interval
+		String[] states = new String[tree.getNodeCount()];
+
 		for (int i = 0; i < (numberOfIntervals - 1); i++) {
 			for (int j = 0; j < (data.locations.length); j++) {
 
 				int numberOfLineagesOfState = 0;
+				String location = data.locations[j].toLowerCase();
 
-				for (Node node : tree.getNodes()) {
+				for (int node = 0; node < tree.getNodeCount(); node++) {
 
 					if (!tree.isRoot(node)) {
 
-						Node parentNode = tree.getParent(node);
-						String state = (String) node.getAttribute(stateAttName);
-
-						String parentState = (String) parentNode
-								.getAttribute(stateAttName);
+						int parentNode = tree.getParent(node);
 
 						if ((tree.getHeight(node) <= numberOfLineages[i][0])
 								&& (tree.getHeight(parentNode) > numberOfLineages[i][0])) {
 
-							if ((state.toLowerCase().equals(parentState
-									.toLowerCase()))
-									&& (parentState.toLowerCase()
-											.equals(data.locations[j]
-													.toLowerCase()))) {
+							String state = getLowerCaseState(states, node);
+							String parentState = getLowerCaseState(states,
+									parentNode);
+
+							if ((state.equals(parentState))
+									&& (parentState.equals(location))) {
 
 								numberOfLineagesOfState++;
 
@@ -603,4 +615,20 @@ public class DiscreteTreeToKML {
 		return numberOfLineages;
 	}// END: CountLineagesHoldingState
 
+	private String getLowerCaseState(String[] states, int node) {
+
+		if (states[node] == null) {
+
+			String state = tree.getNodeLabel(stateAttName, node);
+			if (state == null) {
+				throw new RuntimeException("Attribute " + stateAttName
+						+ " missing from the node. \n");
+			}
+
+			states[node] = state.toLowerCase();
+		}
+
+		return states[node];
+	}// END: getLowerCaseState
+
 }// END: DiscreteTreeToKML class
\ No newline at end of file
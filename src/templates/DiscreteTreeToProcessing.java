@@ -4,13 +4,14 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.text.ParseException;
 
-import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
 import jebl.evolution.io.NexusImporter;
 import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
 import processing.core.PApplet;
 import processing.core.PFont;
+import structure.FlatTree;
+import utils.FlatTreeBuilder;
 import utils.ReadLocations;
 import utils.Utils;
 
@@ -18,7 +19,9 @@ import utils.Utils;
 public class DiscreteTreeToProcessing extends PApplet {
 
 	private TreeImporter importer;
-	private RootedTree tree;
+	private RootedTree rootedTree;
+	// compiled on the first draw after the tree or the state name change
+	private FlatTree tree;
 	private ReadLocations data;
 	private String stateAttName;
 	private MapBackground mapBackground;
@@ -46,11 +49,13 @@ public class DiscreteTreeToProcessing extends PApplet {
 
 	public void setStateAttName(String name) {
 		stateAttName = name;
+		tree = null;
 	}
 
 	public void setTreePath(String path) throws IOException, ImportException {
 		importer = new NexusImporter(new FileReader(path));
-		tree = (RootedTree) importer.importNextTree();
+		rootedTree = (RootedTree) importer.importNextTree();
+		tree = null;
 	}
 
 	public void setLocationFilePath(String path) throws ParseException {
@@ -112,6 +117,11 @@ public class DiscreteTreeToProcessing extends PApplet {
 
 	public void draw() {
 
+		if (tree == null) {
+			tree = FlatTreeBuilder.build(rootedTree, new String[0],
+					new String[] { stateAttName });
+		}
+
 		noLoop();
 		smooth();
 		mapBackground.drawMapBackground();
@@ -168,14 +178,14 @@ public class DiscreteTreeToProcessing extends PApplet {
 
 		double treeHeightMax = Utils.getTreeHeightMax(tree);
 
-		for (Node node : tree.getNodes()) {
+		for (int node = 0; node < tree.getNodeCount(); node++) {
 			if (!tree.isRoot(node)) {
 
-				String state = Utils.getStringNodeAttribute(node, stateAttName);
+				String state = tree.getNodeLabel(stateAttName, node);
 
-				Node parentNode = tree.getParent(node);
-				String parentState = (String) parentNode
-						.getAttribute(stateAttName);
+				int parentNode = tree.getParent(node);
+				String parentState = tree.getNodeLabel(stateAttName,
+						parentNode);
 
 				if (!state.toLowerCase().equals(parentState.toLowerCase())) {
 
@@ -1,6 +1,6 @@
 package templates;
 
-import generator.KMLGenerator;
+import generator.StreamingKMLGenerator;
 
 import java.awt.Color;
 import java.io.FileNotFoundException;
@@ -148,7 +148,7 @@ public class RateIndicatorBFToKML {
 		ComputeBFTest();
 
 		// this is to generate kml output
-		KMLGenerator kmloutput = new KMLGenerator();
+		StreamingKMLGenerator kmloutput = new StreamingKMLGenerator();
 		layers = new ArrayList<Layer>();
 
 		// Execute threads
@@ -0,0 +1,362 @@
+package templates;
+
+import java.text.ParseException;
+
+import math.MersenneTwisterFast;
+import math.MultivariateNormalDistribution;
+import structure.FlatTree;
+import structure.SliceCoordinates;
+import utils.SpreadDate;
+import contouring.SliceDensityGrids;
+
+/**
+ * Cuts the branches of posterior trees at the heights of the time slices and
+ * collects the coordinates of every branch crossing a slice.
+ *
+ * Slice heights and times are computed once, each branch then only visits the
+ * contiguous range of slices it actually crosses.
+ */
+public class SliceAnalyzer {
+
+	private final int numberOfIntervals;
+	private final String coordinatesName;
+	private final double[] sliceHeights;
+	private final double[] sliceTimes;
+	private final double sliceHeightDelta;
+
+	private boolean impute;
+	private boolean useTrueNoise;
+	private String rateString;
+	private String precisionString;
+
+	public SliceAnalyzer(double treeRootHeight, int numberOfIntervals,
+			String mrsdString, double timescaler, String coordinatesName)
+			throws ParseException {
+
+		this.numberOfIntervals = numberOfIntervals;
+		this.coordinatesName = coordinatesName;
+
+		sliceHeightDelta = treeRootHeight / numberOfIntervals;
+		sliceHeights = new double[numberOfIntervals + 1];
+		sliceTimes = new double[numberOfIntervals + 1];
+
+		for (int i = 0; i <= numberOfIntervals; i++) {
+
+			sliceHeights[i] = treeRootHeight
+					- (treeRootHeight / numberOfIntervals) * ((double) i);
+
+			SpreadDate mrsd = new SpreadDate(mrsdString);
+			sliceTimes[i] = mrsd.minus((int) (sliceHeights[i] * timescaler));
+		}
+
+	}// END: SliceAnalyzer()
+
+	public void setImpute(boolean imputeBoolean) {
+		impute = imputeBoolean;
+	}
+
+	public void setTrueNoise(boolean trueNoiseBoolean) {
+		useTrueNoise = trueNoiseBoolean;
+	}
+
+	public void setRateAttName(String name) {
+		rateString = name;
+	}
+
+	public void setPrecisionAttName(String name) {
+		precisionString = name;
+	}
+
+	/**
+	 * @return names of the node attributes analyze reads
+	 */
+	public String[] getNodeAttributeNames() {
+		return impute ? new String[] { coordinatesName, rateString }
+				: new String[] { coordinatesName };
+	}
+
+	/**
+	 * @return names of the tree attributes analyze reads
+	 */
+	public String[] getTreeAttributeNames() {
+		return impute ? new String[] { precisionString } : new String[0];
+	}
+
+	/**
+	 * @return names of the node attributes analyze may read with any
+	 *         settings, e.g. for caching trees
+	 */
+	public String[] getAllNodeAttributeNames() {
+		return rateString == null ? new String[] { coordinatesName }
+				: new String[] { coordinatesName, rateString };
+	}
+
+	/**
+	 * @return names of the tree attributes analyze may read with any settings
+	 */
+	public String[] getAllTreeAttributeNames() {
+		return precisionString == null ? new String[0]
+				: new String[] { precisionString };
+	}
+
+	public int getSliceCount() {
+		return numberOfIntervals + 1;
+	}
+
+	public double getSliceHeight(int slice) {
+		return sliceHeights[slice];
+	}
+
+	public double getSliceTime(int slice) {
+		return sliceTimes[slice];
+	}
+
+	public void analyze(FlatTree currentTree, SliceCoordinates slices) {
+		analyze(currentTree, slices, null);
+	}
+
+	/**
+	 * Analyzes the tree into slices and hands its coordinates on to the
+	 * grids. The slices are left empty afterwards, also when the analysis
+	 * fails half way, so the coordinates of a tree are never taken twice.
+	 */
+	public void analyze(FlatTree currentTree, SliceCoordinates slices,
+			SliceDensityGrids densityGrids, MersenneTwisterFast random) {
+
+		try {
+			analyze(currentTree, slices, random);
+			densityGrids.addAll(slices);
+		} finally {
+			slices.clear();
+		}
+	}// END: analyze
+
+	/**
+	 * @param random
+	 *            generator for the imputation noise, owned by the calling
+	 *            thread, null to use the shared MathUtils generator
+	 */
+	public void analyze(FlatTree currentTree, SliceCoordinates slices,
+			MersenneTwisterFast random) {
+
+		Imputation imputation = null;
+		double[] rates = null;
+		if (impute) {
+			imputation = new Imputation(currentTree, random);
+			rates = currentTree.getNodeAttributeColumn(rateString, 0);
+		}
+
+		double[] latitudes = currentTree.getNodeAttributeColumn(
+				coordinatesName, 0);
+		double[] longitudes = currentTree.getNodeAttributeColumn(
+				coordinatesName, 1);
+
+		for (int node = 0; node < currentTree.getNodeCount(); node++) {
+
+			if (!currentTree.isRoot(node)) {
+
+				int parentNode = currentTree.getParent(node);
+
+				double nodeHeight = currentTree.getHeight(node);
+				double parentHeight = currentTree.getHeight(parentNode);
+
+				int firstSlice = getFirstSlice(parentHeight);
+				int lastSlice = getLastSlice(nodeHeight);
+
+				if (firstSlice > lastSlice) {
+					continue;
+				}
+
+				double latitude = getCoordinate(latitudes, node);
+				double longitude = getCoordinate(longitudes, node);
+
+				double parentLatitude = getCoordinate(latitudes, parentNode);
+				double parentLongitude = getCoordinate(longitudes, parentNode);
+
+				double rate = Double.NaN;
+				if (impute) {
+					rate = rates[node];
+					if (Double.isNaN(rate)) {
+						throw new RuntimeException("Attribute " + rateString
+								+ " missing from the node. \n");
+					}
+				}
+
+				for (int i = firstSlice; i <= lastSlice; i++) {
+
+					slices.add(i, parentLongitude, parentLatitude);
+
+					if (impute) {
+						imputation.impute(slices, i, latitude, longitude,
+								parentLatitude, parentLongitude,
+								sliceHeights[i], nodeHeight, parentHeight, rate);
+					}
+
+					slices.add(i, longitude, latitude);
+
+				}// END: slices loop
+			}
+		}// END: node loop
+
+	}// END: analyze
+
+	private double getCoordinate(double[] coordinates, int node) {
+
+		if (Double.isNaN(coordinates[node])) {
+			throw new RuntimeException("Attribute " + coordinatesName
+					+ " missing from the node. \n");
+		}
+
+		return coordinates[node];
+	}// END: getCoordinate
+
+	/**
+	 * @return index of the first (highest) slice with sliceHeight <=
+	 *         parentHeight
+	 */
+	private int getFirstSlice(double parentHeight) {
+
+		int i = clampSlice(Math.ceil((sliceHeights[0] - parentHeight)
+				/ sliceHeightDelta));
+
+		// correct for rounding of the arithmetic guess
+		while (i > 0 && sliceHeights[i - 1] <= parentHeight) {
+			i--;
+		}
+		while (i <= numberOfIntervals && sliceHeights[i] > parentHeight) {
+			i++;
+		}
+
+		return i;
+	}// END: getFirstSlice
+
+	/**
+	 * @return index of the last (lowest) slice with nodeHeight < sliceHeight
+	 */
+	private int getLastSlice(double nodeHeight) {
+
+		int i = clampSlice(Math.ceil((sliceHeights[0] - nodeHeight)
+				/ sliceHeightDelta) - 1);
+
+		// correct for rounding of the arithmetic guess
+		while (i < numberOfIntervals && sliceHeights[i + 1] > nodeHeight) {
+			i++;
+		}
+		while (i >= 0 && sliceHeights[i] <= nodeHeight) {
+			i--;
+		}
+
+		return i;
+	}// END: getLastSlice
+
+	private int clampSlice(double index) {
+
+		if (!(index > 0)) {
+			return 0;
+		} else if (index > numberOfIntervals) {
+			return numberOfIntervals;
+		}
+
+		return (int) index;
+	}// END: clampSlice
+
+	/**
+	 * Imputation state of one tree, the tree-level precision is parsed and
+	 * factorized once. Scaling the precision by the branch weight w scales the
+	 * Cholesky factor of the variance by 1 / sqrt(w), so no matrix is rebuilt
+	 * per slice crossing.
+	 */
+	private class Imputation {
+
+		private final double[][] cholesky;
+		private final double[] mean = new double[2];
+		private final double[] epsilon = new double[2];
+		private final MersenneTwisterFast random;
+
+		public Imputation(FlatTree tree, MersenneTwisterFast random) {
+
+			this.random = random;
+
+			double[] array = tree.getTreeAttribute(precisionString);
+
+			if (array == null) {
+				throw new RuntimeException("Attribute " + precisionString
+						+ " missing from the tree. \n");
+			}
+
+			if (useTrueNoise) {
+
+				double treeNormalization = tree.getRootHeight();
+
+				int dim = (int) Math.sqrt(1 + 8 * array.length) / 2;
+				double[][] precision = new double[dim][dim];
+				int c = 0;
+				for (int i = 0; i < dim; i++) {
+					for (int j = i; j < dim; j++) {
+						precision[j][i] = precision[i][j] = array[c++]
+								* treeNormalization;
+					}
+				}
+
+				cholesky = MultivariateNormalDistribution
+						.getVarianceCholesky(precision);
+
+			} else {
+				cholesky = null;
+			}
+
+		}// END: Imputation()
+
+		/**
+		 * Imputes the latitude and longitude at the slice height and adds them
+		 * to the slice.
+		 */
+		public void impute(SliceCoordinates slices, int slice, double latitude,
+				double longitude, double parentLatitude,
+				double parentLongitude, double sliceTime, double nodeTime,
+				double parentTime, double rate) {
+
+			final double scaledTimeChild = (sliceTime - nodeTime) * rate;
+			final double scaledTimeParent = (parentTime - sliceTime) * rate;
+			final double scaledWeightTotal = (1.0 / scaledTimeChild)
+					+ (1.0 / scaledTimeParent);
+
+			if (scaledTimeChild == 0) {
+				slices.add(slice, longitude, latitude);
+				return;
+			}
+
+			if (scaledTimeParent == 0) {
+				slices.add(slice, parentLongitude, parentLatitude);
+				return;
+			}
+
+			// Find mean value, weighted average
+			mean[0] = (latitude / scaledTimeChild + parentLatitude
+					/ scaledTimeParent)
+					/ scaledWeightTotal;
+			mean[1] = (longitude / scaledTimeChild + parentLongitude
+					/ scaledTimeParent)
+					/ scaledWeightTotal;
+
+			if (useTrueNoise) {
+
+				if (random == null) {
+					MultivariateNormalDistribution
+							.nextMultivariateNormalCholesky(mean, cholesky,
+									1.0 / Math.sqrt(scaledWeightTotal), mean,
+									epsilon);
+				} else {
+					MultivariateNormalDistribution
+							.nextMultivariateNormalCholesky(mean, cholesky,
+									1.0 / Math.sqrt(scaledWeightTotal), mean,
+									epsilon, random);
+				}
+			}
+
+			slices.add(slice, mean[1], mean[0]);
+		}// END: impute
+
+	}// END: Imputation
+
+}// END: class
@@ -1,41 +1,59 @@
 package templates;
 
-import generator.KMLGenerator;
+import generator.StreamingKMLGenerator;
 
 import java.awt.Color;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
-import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
 import jebl.evolution.io.NexusImporter;
 import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
-import math.MultivariateNormalDistribution;
+import math.MathUtils;
+import math.MersenneTwisterFast;
+import math.RandomStreams;
 import structure.Coordinates;
+import structure.FlatTree;
 import structure.Layer;
 import structure.Line;
 import structure.Polygon;
+import structure.SliceCoordinates;
 import structure.Style;
 import structure.TimeLine;
+import utils.BeastTreesImporter;
+import utils.FlatTreeBuilder;
+import utils.IndexedTreeReader;
+import utils.MappedTreesFile;
+import utils.PolygonSimplifier;
 import utils.SpreadDate;
+import utils.TreeSampler;
+import utils.TreesCache;
 import utils.Utils;
-import contouring.ContourMaker;
+import contouring.BinnedKernelDensityEstimator2D;
 import contouring.ContourPath;
 import contouring.ContourWithSynder;
+import contouring.KernelDensityEstimator2D;
+import contouring.SliceDensityGrids;
+import contouring.WeightedPoints;
 
 public class TimeSlicerToKML {
 
@@ -44,7 +62,7 @@ public class TimeSlicerToKML {
 	private final int DayInMillis = 86400000;
 
 	private TreeImporter treeImporter;
-	private RootedTree tree;
+	private FlatTree tree;
 	private double maxAltMapping;
 
 	private double minPolygonRedMapping;
@@ -68,29 +86,47 @@ public class TimeSlicerToKML {
 	private double maxBranchOpacityMapping;
 
 	private double branchWidth;
-	private TreeImporter treesImporter;
-	private RootedTree currentTree;
+	private String treesPath;
+	private boolean parallelImport = true;
+	private boolean useTreesCache;
+	private int thinning = 1;
+	private int sampleSize;
+	private SliceAnalyzer sliceAnalyzer;
 	private String mrsdString;
 	private double timescaler;
 	private int numberOfIntervals;
 	private int burnIn;
 	private boolean impute;
 	private boolean useTrueNoise;
+	private boolean streamingDensity;
+	private boolean binnedDensity;
+	private double kernelTruncation;
+	private boolean tabulatedKernel;
+	private boolean marchingSquares;
+	private boolean tiledContouring;
+	private PolygonSimplifier polygonSimplifier;
+	private double[] hpdLevels = { 0.8 };
+	private int gridSize = KernelDensityEstimator2D.AUTOMATIC_GRID_SIZE;
+	private int gridRefinement = 1;
+	private long seed = MathUtils.getSeed();
+	private SliceDensityGrids densityGrids;
 	private String coordinatesName;
 	private String longitudeName;
 	private String latitudeName;
 	private String rateString;
 	private String precisionString;
-	private List<Layer> layers;
-	private int polygonsStyleId;
 	private SimpleDateFormat formatter;
 	private PrintWriter writer;
-	private Double sliceTime;
 	private TimeLine timeLine;
 	private double startTime;
 	private double endTime;
 
-	private ConcurrentMap<Double, List<Coordinates>> slicesMap;
+	private SliceCoordinates slices;
+
+	// marks the end of the trees queue for the workers
+	private static final FlatTree NO_MORE_TREES = new FlatTree(0,
+			new int[0], new double[0], new String[0], new String[0],
+			new double[0][][], new HashMap<String, double[]>());
 
 	private enum timescalerEnum {
 		DAYS, MONTHS, YEARS
@@ -122,7 +158,12 @@ public class TimeSlicerToKML {
 	}
 
 	public void setTreesPath(String path) throws FileNotFoundException {
-		treesImporter = new NexusImporter(new FileReader(path));
+
+		if (!new File(path).isFile()) {
+			throw new FileNotFoundException(path);
+		}
+
+		treesPath = path;
 	}
 
 	public void setMrsdString(String mrsd) {
@@ -133,10 +174,30 @@ public class TimeSlicerToKML {
 		numberOfIntervals = number;
 	}
 
+	public void setParallelImport(boolean parallelImportBoolean) {
+		parallelImport = parallelImportBoolean;
+	}
+
 	public void setBurnIn(int burnInDouble) {
 		burnIn = burnInDouble;
 	}
 
+	public void setUseTreesCache(boolean useTreesCacheBoolean) {
+		useTreesCache = useTreesCacheBoolean;
+	}
+
+	public void setThinning(int thinningInt) {
+		thinning = thinningInt;
+	}
+
+	public void setSampleSize(int sampleSizeInt) {
+		sampleSize = sampleSizeInt;
+	}
+
+	public void setSeed(long seedLong) {
+		seed = seedLong;
+	}
+
 	public void setImpute(boolean imputeBoolean) {
 		impute = imputeBoolean;
 	}
@@ -145,6 +206,87 @@ public class TimeSlicerToKML {
 		useTrueNoise = trueNoiseBoolean;
 	}
 
+	public void setStreamingDensity(boolean streamingDensityBoolean) {
+		streamingDensity = streamingDensityBoolean;
+	}
+
+	public void setBinnedDensity(boolean binnedDensityBoolean) {
+		binnedDensity = binnedDensityBoolean;
+	}
+
+	/**
+	 * @param bandwidths
+	 *            the kernel of the density estimate is truncated at, 0 for
+	 *            the exact estimate
+	 */
+	public void setKernelTruncation(double bandwidths) {
+		kernelTruncation = bandwidths;
+	}
+
+	/**
+	 * @param tabulatedKernelBoolean
+	 *            approximates the kernel from a table instead of evaluating
+	 *            exp, with a relative error below 1e-8
+	 */
+	public void setTabulatedKernel(boolean tabulatedKernelBoolean) {
+		tabulatedKernel = tabulatedKernelBoolean;
+	}
+
+	/**
+	 * @param marchingSquaresBoolean
+	 *            traces the HPD contours as closed rings with marching
+	 *            squares instead of Snyder's tracer
+	 */
+	public void setMarchingSquares(boolean marchingSquaresBoolean) {
+		marchingSquares = marchingSquaresBoolean;
+	}
+
+	/**
+	 * @param tiledContouringBoolean
+	 *            traces the HPD contours with marching squares in tiles
+	 *            linked concurrently, for large density grids
+	 */
+	public void setTiledContouring(boolean tiledContouringBoolean) {
+		tiledContouring = tiledContouringBoolean;
+	}
+
+	/**
+	 * @param simplifier
+	 *            simplifies the HPD contours of every slice before they are
+	 *            written out, null to keep every traced vertex
+	 */
+	public void setPolygonSimplifier(PolygonSimplifier simplifier) {
+		polygonSimplifier = simplifier;
+	}
+
+	/**
+	 * @param levels
+	 *            probability masses of the HPD regions contoured in every
+	 *            slice, all of them from one density estimate
+	 */
+	public void setHPDLevels(double[] levels) {
+		hpdLevels = levels;
+	}
+
+	/**
+	 * @param size
+	 *            grid points per dimension of the density estimates,
+	 *            KernelDensityEstimator2D.AUTOMATIC_GRID_SIZE to choose it for
+	 *            every slice from its bandwidths and extent
+	 */
+	public void setGridSize(int size) {
+		gridSize = size;
+	}
+
+	/**
+	 * @param factor
+	 *            subdivision of the grid cells near the HPD contours, 1 to
+	 *            contour the density grid as it is
+	 */
+	public void setGridRefinement(int factor) {
+		gridRefinement = factor;
+	}
+
 	public void setLocationAttName(String name) {
 		coordinatesName = name;
 		longitudeName = (coordinatesName + 2);
@@ -236,226 +378,417 @@ public class TimeSlicerToKML {
 	}
 
 	public void GenerateKML() throws IOException, ImportException,
-			ParseException, RuntimeException, OutOfMemoryError {
+			ParseException, InterruptedException, RuntimeException,
+			OutOfMemoryError {
 
 		// start timing
 		time = -System.currentTimeMillis();
 
 		System.out.println("Importing trees...");
-		tree = (RootedTree) treeImporter.importNextTree();
+		tree = FlatTreeBuilder.build((RootedTree) treeImporter
+				.importNextTree(), new String[] { longitudeName, latitudeName },
+				new String[0]);
 
 		System.out.println("Analyzing trees...");
 
-		// This is for collecting coordinates into polygons
-		slicesMap = new ConcurrentHashMap<Double, List<Coordinates>>();
+		// This is for slice heights and times
+		sliceAnalyzer = new SliceAnalyzer(tree.getRootHeight(),
+				numberOfIntervals, mrsdString, timescaler, coordinatesName);
+		sliceAnalyzer.setImpute(impute);
+		sliceAnalyzer.setTrueNoise(useTrueNoise);
+		sliceAnalyzer.setRateAttName(rateString);
+		sliceAnalyzer.setPrecisionAttName(precisionString);
 
 		// Executor for threads
 		final int NTHREDS = Runtime.getRuntime().availableProcessors();
+
+		// This is for collecting coordinates into polygons
+		slices = AnalyzeTrees(NTHREDS);
+
+		// this is to generate kml output
 		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
+		formatter = new SimpleDateFormat("yyyy-MM-dd G", Locale.US);
+		timeLine = GenerateTimeLine(tree);
+		startTime = timeLine.getStartTime();
+		endTime = timeLine.getEndTime();
+
+		System.out.println("Generating Polygons...");
+		System.out.println("Iterating through slices...");
+
+		// Every slice is contoured as a separate task, layers are written in
+		// the order of the slices regardless of which task finishes first
+		List<Future<Layer>> futures = new ArrayList<Future<Layer>>();
+		try {
+
+			int polygonsStyleId = 1;
+			for (int slice = 0; slice < slices.getSliceCount(); slice++) {
 
-		int readTrees = 0;
-		while (treesImporter.hasTree()) {
+				if (densityGrids == null ? slices.getCount(slice) > 0
+						: densityGrids.getCount(slice) > 0) {
 
-			currentTree = (RootedTree) treesImporter.importNextTree();
-			synchronized (slicesMap) {
-				if (readTrees >= burnIn) {
+					System.out.println("Key " + polygonsStyleId + "...");
 
-					// executor.submit(new AnalyzeTree());
-					AnalyzeTree analyzeTree = new AnalyzeTree();
-					analyzeTree.run();
+					futures.add(executor.submit(new Polygons(slice,
+							polygonsStyleId)));
+					polygonsStyleId++;
 				}
+			}
+
+			futures.add(executor.submit(new Branches()));
 
-				readTrees++;
+			System.out.println("Writing to kml...");
+
+			// every layer is written as soon as it is ready and is not kept
+			// after that
+			StreamingKMLGenerator kmloutput = new StreamingKMLGenerator();
+			kmloutput.open(writer, timeLine);
+			for (int i = 0; i < futures.size(); i++) {
+				kmloutput.writeLayer(Utils.waitFor(futures.get(i)));
+				futures.set(i, null);
 			}
+			kmloutput.close();
+
+		} finally {
+			executor.shutdownNow();
 		}
 
-		if ((readTrees - burnIn) <= 0.0) {
-			throw new RuntimeException("Burnt too many trees!");
-		} else {
-			System.out.println("Analyzed " + (int) (readTrees - burnIn)
-					+ " trees");
+		// stop timing
+		time += System.currentTimeMillis();
+		System.out.println("Finished in: " + time + " msec \n");
+
+	}// END: GenerateKML
+
+	private SliceCoordinates AnalyzeTrees(final int NTHREDS)
+			throws IOException, ImportException, InterruptedException {
+
+		System.out.println("Using random seed " + seed);
+
+		densityGrids = null;
+		if (!streamingDensity) {
+			return SliceCoordinates.merge(AnalyzeTrees(NTHREDS, null));
 		}
 
-		// Wait until all threads are finished
-		executor.shutdown();
-		while (!executor.isTerminated()) {
+		// In streaming mode every slice bins into one grid for all of the
+		// trees. The trees are analyzed twice with the same random streams,
+		// the first pass collects the limits of the coordinates of every
+		// slice and the second one bins them onto grids with these limits.
+		System.out.println("Finding the limits of the slices...");
+		List<SliceDensityGrids> workersLimits = new ArrayList<SliceDensityGrids>();
+		for (int i = 0; i < NTHREDS; i++) {
+			workersLimits.add(new SliceDensityGrids(sliceAnalyzer
+					.getSliceCount()));
 		}
+		AnalyzeTrees(NTHREDS, workersLimits);
+		SliceDensityGrids limits = SliceDensityGrids.merge(workersLimits);
 
-		// this is to generate kml output
-		layers = new ArrayList<Layer>();
-		Set<Double> hostKeys = slicesMap.keySet();
-		Iterator<Double> iterator = hostKeys.iterator();
-		executor = Executors.newFixedThreadPool(NTHREDS);
-		formatter = new SimpleDateFormat("yyyy-MM-dd G", Locale.US);
-		timeLine = GenerateTimeLine(tree);
-		startTime = timeLine.getStartTime();
-		endTime = timeLine.getEndTime();
+		System.out.println("Binning the slices...");
+		List<SliceDensityGrids> workersGrids = new ArrayList<SliceDensityGrids>();
+		for (int i = 0; i < NTHREDS; i++) {
+			workersGrids.add(new SliceDensityGrids(limits, gridSize));
+		}
+		AnalyzeTrees(NTHREDS, workersGrids);
+		densityGrids = SliceDensityGrids.merge(workersGrids);
+
+		return new SliceCoordinates(sliceAnalyzer.getSliceCount());
+	}// END: AnalyzeTrees
+
+	/**
+	 * Analyzes the trees once
+	 *
+	 * @param workersGrids
+	 *            grids every worker hands its coordinates on to, null to
+	 *            collect them
+	 * @return coordinates collected by every worker, in worker order
+	 */
+	private List<SliceCoordinates> AnalyzeTrees(final int NTHREDS,
+			List<SliceDensityGrids> workersGrids) throws IOException,
+			ImportException, InterruptedException {
+
+		// Every worker collects into its own slices or grids which are merged
+		// at the end, and draws from its own random stream. Trees are dealt
+		// round robin to the workers, so for a given seed and number of
+		// threads the result does not depend on the scheduling of the threads
+		RandomStreams randomStreams = new RandomStreams(seed);
+
+		List<AnalyzeTree> workers = new ArrayList<AnalyzeTree>();
+		for (int i = 0; i < NTHREDS; i++) {
+			workers.add(new AnalyzeTree(new SliceCoordinates(sliceAnalyzer
+					.getSliceCount()), workersGrids == null ? null
+					: workersGrids.get(i), randomStreams.getStream(i)));
+		}
 
-		System.out.println("Generating Polygons...");
-		System.out.println("Iterating through Map...");
+		// burn-in, thinning and sampling
+		TreeSampler sampler = new TreeSampler(burnIn, thinning, sampleSize,
+				randomStreams.getMasterStream());
 
-		polygonsStyleId = 1;
-		synchronized (iterator) {
-			while (iterator.hasNext()) {
+		// null if the cache can not be written
+		TreesCache treesCache = useTreesCache ? TreesCache.getCache(treesPath,
+				sliceAnalyzer.getAllNodeAttributeNames(), sliceAnalyzer
+						.getAllTreeAttributeNames()) : null;
 
-				System.out.println("Key " + polygonsStyleId + "...");
+		int analyzedTrees;
+		if (treesCache != null) {
 
-				sliceTime = (Double) iterator.next();
+			List<IndexedTreeReader> treesReaders = new ArrayList<IndexedTreeReader>();
+			for (int i = 0; i < NTHREDS; i++) {
+				treesReaders.add(treesCache.getReader());
+			}
+
+			analyzedTrees = ImportIndexedTrees(workers, sampler, treesCache
+					.getTreeCount(), treesReaders);
+
+		} else if (parallelImport) {
 
-				// executor.submit(new Polygons());
-				Polygons polygons = new Polygons();
-				polygons.run();
+			MappedTreesFile treesFile = new MappedTreesFile(treesPath);
 
+			List<IndexedTreeReader> treesReaders = new ArrayList<IndexedTreeReader>();
+			for (int i = 0; i < NTHREDS; i++) {
+				treesReaders.add(treesFile.getReader(sliceAnalyzer
+						.getNodeAttributeNames(), sliceAnalyzer
+						.getTreeAttributeNames()));
 			}
+
+			analyzedTrees = ImportIndexedTrees(workers, sampler, treesFile
+					.getTreeCount(), treesReaders);
+
+		} else {
+			analyzedTrees = ImportTrees(workers, sampler);
 		}
 
-		executor.submit(new Branches());
+		if (analyzedTrees <= 0.0) {
+			throw new RuntimeException("Burnt too many trees!");
+		} else {
+			System.out.println("Analyzed " + analyzedTrees + " trees");
+		}
 
-		executor.shutdown();
-		while (!executor.isTerminated()) {
+		// per worker slices are merged in a fixed order
+		List<SliceCoordinates> workersSlices = new ArrayList<SliceCoordinates>();
+		for (AnalyzeTree worker : workers) {
+			workersSlices.add(worker.getSlices());
 		}
 
-		System.out.println("Writing to kml...");
+		return workersSlices;
+	}// END: AnalyzeTrees
 
-		KMLGenerator kmloutput = new KMLGenerator();
-		kmloutput.generate(writer, timeLine, layers);
+	/**
+	 * Imports the trees on this thread and hands them to the workers through
+	 * bounded queues. Trees which are not analyzed are skipped over without
+	 * parsing, sampled trees are kept unparsed until the end of the file.
+	 *
+	 * @return number of analyzed trees
+	 */
+	private int ImportTrees(List<AnalyzeTree> workers, TreeSampler sampler)
+			throws IOException, ImportException, InterruptedException {
 
-		// stop timing
-		time += System.currentTimeMillis();
-		System.out.println("Finished in: " + time + " msec \n");
+		final int NTHREDS = workers.size();
+		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
 
-	}// END: GenerateKML
+		InputStream treesStream = new FileInputStream(treesPath);
+		BeastTreesImporter treesImporter = new BeastTreesImporter(treesStream,
+				sliceAnalyzer.getNodeAttributeNames(),
+				sliceAnalyzer.getTreeAttributeNames());
+
+		final List<BlockingQueue<FlatTree>> treesQueues = new ArrayList<BlockingQueue<FlatTree>>();
+		final List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (AnalyzeTree worker : workers) {
+			BlockingQueue<FlatTree> treesQueue = new ArrayBlockingQueue<FlatTree>(
+					2);
+			worker.setTreesQueue(treesQueue);
+			treesQueues.add(treesQueue);
+			futures.add(executor.submit(worker));
+		}
 
-	private class AnalyzeTree implements Runnable {
+		int dealtTrees;
+		try {
 
-		public void run() {
+			// trees are dealt round robin to the workers
+			dealtTrees = sampler.visitTrees(treesImporter,
+					new TreeSampler.TreeVisitor() {
 
-			try {
+						private int dealtTrees = 0;
 
-				double treeRootHeight = tree.getHeight(tree.getRootNode());
+						public void visit(FlatTree currentTree)
+								throws InterruptedException {
+							putTree(treesQueues.get(dealtTrees % NTHREDS),
+									currentTree, futures);
+							dealtTrees++;
+						}
+					});
 
-				for (Node node : currentTree.getNodes()) {
+			for (int i = 0; i < NTHREDS; i++) {
+				putTree(treesQueues.get(i), NO_MORE_TREES, futures);
+			}
 
-					if (!currentTree.isRoot(node)) {
+			// Wait until all threads are finished
+			for (Future<?> future : futures) {
+				Utils.waitFor(future);
+			}
 
-						for (int i = 0; i <= numberOfIntervals; i++) {
+		} finally {
+			executor.shutdownNow();
+			treesStream.close();
+		}
 
-							Node parentNode = currentTree.getParent(node);
+		return dealtTrees;
+	}// END: ImportTrees
 
-							double nodeHeight = currentTree.getHeight(node);
-							double parentHeight = currentTree
-									.getHeight(parentNode);
+	/**
+	 * Every worker reads its own share of the analyzed trees by index, in
+	 * parallel
+	 *
+	 * @param treesReaders
+	 *            one reader per worker
+	 * @return number of analyzed trees
+	 */
+	private int ImportIndexedTrees(List<AnalyzeTree> workers,
+			TreeSampler sampler, int treeCount,
+			List<IndexedTreeReader> treesReaders) throws InterruptedException {
 
-							Object[] location = (Object[]) Utils
-									.getArrayNodeAttribute(node, coordinatesName);
-							double latitude = (Double) location[0];
-							double longitude = (Double) location[1];
+		final int NTHREDS = workers.size();
 
-							Object[] parentLocation = (Object[]) Utils
-									.getArrayNodeAttribute(parentNode,
-											coordinatesName);
-							double parentLatitude = (Double) parentLocation[0];
-							double parentLongitude = (Double) parentLocation[1];
+		int[] selectedTrees = sampler.select(treeCount);
 
-							double sliceHeight = treeRootHeight
-									- (treeRootHeight / numberOfIntervals)
-									* ((double) i);
+		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		try {
+
+			for (int i = 0; i < NTHREDS; i++) {
+				AnalyzeTree worker = workers.get(i);
+				worker.setTreesReader(treesReaders.get(i), selectedTrees, i,
+						NTHREDS);
+				futures.add(executor.submit(worker));
+			}
 
-							if (nodeHeight < sliceHeight
-									&& sliceHeight <= parentHeight) {
+			// Wait until all threads are finished
+			for (Future<?> future : futures) {
+				Utils.waitFor(future);
+			}
 
-								SpreadDate mrsd = new SpreadDate(mrsdString);
-								double sliceTime = mrsd
-										.minus((int) (sliceHeight * timescaler));
+		} finally {
+			executor.shutdownNow();
+		}
 
-								if (slicesMap.containsKey(sliceTime)) {
+		return selectedTrees.length;
+	}// END: ImportIndexedTrees
 
-									slicesMap.get(sliceTime).add(
-											new Coordinates(parentLongitude,
-													parentLatitude, 0.0));
+	// ///////////////////////////////
+	// ---CONCURRENT ANALYZE TREE---//
+	// ///////////////////////////////
+	private class AnalyzeTree implements Runnable {
 
-									if (impute) {
+		private final SliceCoordinates slices;
+		private final SliceDensityGrids densityGrids;
+		private final MersenneTwisterFast random;
+
+		// trees either come through a queue
+		private BlockingQueue<FlatTree> treesQueue;
+
+		// or are read by index
+		private IndexedTreeReader treesReader;
+		private int[] trees;
+		private int nextTree;
+		private int treeStep;
+
+		/**
+		 * @param densityGrids
+		 *            grids the coordinates of every tree are handed on to,
+		 *            null to collect them in slices
+		 */
+		public AnalyzeTree(SliceCoordinates slices,
+				SliceDensityGrids densityGrids, MersenneTwisterFast random) {
+			this.slices = slices;
+			this.densityGrids = densityGrids;
+			this.random = random;
+		}
 
-										double rate = Utils
-												.getDoubleNodeAttribute(node,
-														rateString);
+		public void setTreesQueue(BlockingQueue<FlatTree> treesQueue) {
+			this.treesQueue = treesQueue;
+		}
 
-										Object[] imputedLocation = imputeValue(
-												location, parentLocation,
-												sliceHeight, nodeHeight,
-												parentHeight, currentTree,
-												rate, useTrueNoise);
+		/**
+		 * Reads trees[first], trees[first + treeStep], ...
+		 */
+		public void setTreesReader(IndexedTreeReader treesReader,
+				int[] trees, int first, int treeStep) {
+			this.treesReader = treesReader;
+			this.trees = trees;
+			this.nextTree = first;
+			this.treeStep = treeStep;
+		}
 
-										slicesMap
-												.get(sliceTime)
-												.add(
-														new Coordinates(
-																Double
-																		.valueOf(imputedLocation[1]
-																				.toString()),
-																Double
-																		.valueOf(imputedLocation[0]
-																				.toString()),
-																0.0));
-									}
+		public SliceCoordinates getSlices() {
+			return slices;
+		}
 
-									slicesMap.get(sliceTime).add(
-											new Coordinates(longitude,
-													latitude, 0.0));
+		public void run() {
 
-								} else {
+			try {
 
-									List<Coordinates> coords = new ArrayList<Coordinates>();
+				FlatTree currentTree = nextTree();
+				while (currentTree != NO_MORE_TREES) {
 
-									coords.add(new Coordinates(parentLongitude,
-											parentLatitude, 0.0));
+					analyzeTree(currentTree);
+					currentTree = nextTree();
+				}
 
-									if (impute) {
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ImportException e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
 
-										double rate = Utils
-												.getDoubleNodeAttribute(node,
-														rateString);
+		}// END: run
 
-										Object[] imputedLocation = imputeValue(
-												location, parentLocation,
-												sliceHeight, nodeHeight,
-												parentHeight, currentTree,
-												rate, useTrueNoise);
+		private FlatTree nextTree() throws InterruptedException,
+				ImportException {
 
-										coords.add(new Coordinates(Double
-												.valueOf(imputedLocation[1]
-														.toString()), Double
-												.valueOf(imputedLocation[0]
-														.toString()), 0.0));
-									}
+			if (treesReader == null) {
+				return treesQueue.take();
+			}
 
-									coords.add(new Coordinates(longitude,
-											latitude, 0.0));
+			if (nextTree >= trees.length) {
+				return NO_MORE_TREES;
+			}
 
-									slicesMap.putIfAbsent(sliceTime, coords);
+			FlatTree currentTree = treesReader.importTree(trees[nextTree]);
+			nextTree += treeStep;
 
-								}// END: key check
-							}// END: sliceTime check
-						}// END: numberOfIntervals loop
-					}
-				}// END: node loop
+			return currentTree;
+		}// END: nextTree
 
-			} catch (Exception e) {
-				e.printStackTrace();
+		private void analyzeTree(FlatTree currentTree) {
+			if (densityGrids == null) {
+				sliceAnalyzer.analyze(currentTree, slices, random);
+			} else {
+				sliceAnalyzer.analyze(currentTree, slices, densityGrids,
+						random);
 			}
-
-		}// END: run
+		}// END: analyzeTree
 	}// END: AnalyzeTree
 
 	// ///////////////////////////
 	// ---CONCURRENT POLYGONS---//
 	// ///////////////////////////
-	private class Polygons implements Runnable {
+	private class Polygons implements Callable<Layer> {
 
-		public void run() throws OutOfMemoryError {
+		private final int slice;
+		private final int polygonsStyleId;
+
+		public Polygons(int slice, int polygonsStyleId) {
+			this.slice = slice;
+			this.polygonsStyleId = polygonsStyleId;
+		}
+
+		public Layer call() throws OutOfMemoryError {
+
+			double sliceTime = sliceAnalyzer.getSliceTime(slice);
+
+			String sliceDate;
+			synchronized (formatter) {
+				sliceDate = formatter.format(sliceTime);
+			}
 
-			Layer polygonsLayer = new Layer("Time_Slice_"
-					+ formatter.format(sliceTime), null);
+			Layer polygonsLayer = new Layer("Time_Slice_" + sliceDate, null);
 
 			/**
 			 * Color and Opacity mapping
@@ -473,83 +806,121 @@ public class TimeSlicerToKML {
 					maxPolygonOpacityMapping, minPolygonOpacityMapping);
 
 			Color col = new Color(red, green, blue, alpha);
-			Style polygonsStyle = new Style(col, 0);
-			polygonsStyle.setId("polygon_style" + polygonsStyleId);
 
-			List<Coordinates> list = slicesMap.get(sliceTime);
+			ContourWithSynder contourMaker;
+			if (densityGrids != null) {
 
-			double[] x = new double[list.size()];
-			double[] y = new double[list.size()];
+				contourMaker = new BinnedKernelDensityEstimator2D(
+						densityGrids.getGrid(slice));
 
-			for (int i = 0; i < list.size(); i++) {
+			} else {
 
-				x[i] = list.get(i).getLatitude();
-				y[i] = list.get(i).getLongitude();
+				double[] x = slices.getLatitudes(slice);
+				double[] y = slices.getLongitudes(slice);
 
+				if (binnedDensity) {
+					contourMaker = new BinnedKernelDensityEstimator2D(x, y,
+							gridSize);
+				} else {
+					// repeated locations are evaluated once, weighted
+					contourMaker = new ContourWithSynder(
+							WeightedPoints.collapse(x, y, 0), gridSize,
+							kernelTruncation, tabulatedKernel);
+				}
+			}
+			contourMaker.setGridRefinement(gridRefinement);
+			contourMaker.setMarchingSquares(marchingSquares);
+			contourMaker.setTiledContouring(tiledContouring);
+			ContourPath[][] levelPaths = contourMaker.getContourPaths(hpdLevels);
+			if (polygonSimplifier != null) {
+				levelPaths = polygonSimplifier.simplify(levelPaths);
 			}
 
-			ContourMaker contourMaker = new ContourWithSynder(x, y, 200);
-			ContourPath[] paths = contourMaker.getContourPaths(0.8);
+			for (int level = 0; level < hpdLevels.length; level++) {
 
-			int pathCounter = 1;
-			for (ContourPath path : paths) {
+				// every level gets its own style, the nested regions
+				// accumulate opacity towards the mode
+				String levelSuffix = hpdLevels.length > 1 ? "_"
+						+ getHPDLabel(hpdLevels[level]) : "";
 
-				double[] latitude = path.getAllX();
-				double[] longitude = path.getAllY();
-				List<Coordinates> coords = new ArrayList<Coordinates>();
+				Style polygonsStyle = new Style(col, 0);
+				polygonsStyle.setId("polygon_style" + polygonsStyleId
+						+ levelSuffix);
 
-				for (int i = 0; i < latitude.length; i++) {
+				int pathCounter = 1;
+				for (ContourPath path : levelPaths[level]) {
 
-					coords.add(new Coordinates(longitude[i], latitude[i], 0.0));
-				}
+					double[] latitude = path.getAllX();
+					double[] longitude = path.getAllY();
+					List<Coordinates> coords = new ArrayList<Coordinates>();
 
-				polygonsLayer.addItem(new Polygon("HPDRegion_" + pathCounter, // name
-						coords, // List<Coordinates>
-						polygonsStyle, // Style style
-						sliceTime, // double startime
-						0.0 // double duration
-						));
+					for (int i = 0; i < latitude.length; i++) {
 
-				pathCounter++;
+						coords.add(new Coordinates(longitude[i], latitude[i],
+								0.0));
+					}
 
-			}// END: paths loop
+					polygonsLayer.addItem(new Polygon("HPDRegion"
+							+ levelSuffix + "_" + pathCounter, // name
+							coords, // List<Coordinates>
+							polygonsStyle, // Style style
+							sliceTime, // double startime
+							0.0 // double duration
+					));
 
-			layers.add(polygonsLayer);
-			polygonsStyleId++;
+					pathCounter++;
 
-		}// END: run
+				}// END: paths loop
+			}// END: levels loop
+
+			return polygonsLayer;
+		}// END: call
 	}// END: Polygons
 
+	/**
+	 * @return the HPD level as a percentage, without decimals if it has none
+	 */
+	private static String getHPDLabel(double hpdLevel) {
+
+		double percent = hpdLevel * 100;
+		if (percent == Math.rint(percent)) {
+			return String.valueOf((long) percent);
+		}
+
+		return String.valueOf(percent);
+	}// END: getHPDLabel
+
 	// ///////////////////////////
 	// ---CONCURRENT BRANCHES---//
 	// ///////////////////////////
-	private class Branches implements Runnable {
+	private class Branches implements Callable<Layer> {
 
-		public void run() {
+		public Layer call() {
+
+			// this is for Branches folder:
+			String branchesDescription = null;
+			Layer branchesLayer = new Layer("Branches", branchesDescription);
 
 			try {
 
 				double treeHeightMax = Utils.getTreeHeightMax(tree);
 
-				// this is for Branches folder:
-				String branchesDescription = null;
-				Layer branchesLayer = new Layer("Branches", branchesDescription);
+				double[] longitudes = tree.getNodeAttributeColumn(
+						longitudeName, 0);
+				double[] latitudes = tree.getNodeAttributeColumn(latitudeName,
+						0);
 
 				int branchStyleId = 1;
-				for (Node node : tree.getNodes()) {
+				for (int node = 0; node < tree.getNodeCount(); node++) {
 
 					if (!tree.isRoot(node)) {
 
-						double longitude = (Double) node
-								.getAttribute(longitudeName);
-						double latitude = (Double) node
-								.getAttribute(latitudeName);
+						double longitude = longitudes[node];
+						double latitude = latitudes[node];
 
-						Node parentNode = tree.getParent(node);
-						double parentLongitude = (Double) parentNode
-								.getAttribute(longitudeName);
-						double parentLatitude = (Double) parentNode
-								.getAttribute(latitudeName);
+						int parentNode = tree.getParent(node);
+						double parentLongitude = longitudes[parentNode];
+						double parentLatitude = latitudes[parentNode];
 
 						/**
 						 * Mapping
@@ -602,8 +973,6 @@ public class TimeSlicerToKML {
 					}
 				}// END: node loop
 
-				layers.add(branchesLayer);
-
 			} catch (ParseException e) {
 				e.printStackTrace();
 
@@ -611,88 +980,30 @@ public class TimeSlicerToKML {
 				e.printStackTrace();
 			}
 
-		}// END: run
+			return branchesLayer;
+		}// END: call
 	}// END: Branches class
 
-	private Object[] imputeValue(Object[] location, Object[] parentLocation,
-			double sliceTime, double nodeTime, double parentTime,
-			RootedTree tree, double rate, boolean trueNoise) {
-
-		Object o = tree.getAttribute(precisionString);
-
-		if (o == null) {
-			throw new RuntimeException("Attribute " + precisionString
-					+ " missing from the tree. \n");
-		}
-
-		double treeNormalization = tree.getHeight(tree.getRootNode());
-
-		Object[] array = (Object[]) o;
-
-		int dim = (int) Math.sqrt(1 + 8 * array.length) / 2;
-		double[][] precision = new double[dim][dim];
-		int c = 0;
-		for (int i = 0; i < dim; i++) {
-			for (int j = i; j < dim; j++) {
-				precision[j][i] = precision[i][j] = ((Double) array[c++])
-						* treeNormalization;
-			}
-		}
-
-		dim = location.length;
-		double[] nodeValue = new double[2];
-		double[] parentValue = new double[2];
-
-		for (int i = 0; i < dim; i++) {
-
-			nodeValue[i] = Double.parseDouble(location[i].toString());
-			parentValue[i] = Double.parseDouble(parentLocation[i].toString());
-
-		}
-
-		final double scaledTimeChild = (sliceTime - nodeTime) * rate;
-		final double scaledTimeParent = (parentTime - sliceTime) * rate;
-		final double scaledWeightTotal = (1.0 / scaledTimeChild)
-				+ (1.0 / scaledTimeParent);
-
-		if (scaledTimeChild == 0)
-			return location;
-
-		if (scaledTimeParent == 0)
-			return parentLocation;
-
-		// Find mean value, weighted average
-		double[] mean = new double[dim];
-		double[][] scaledPrecision = new double[dim][dim];
-
-		for (int i = 0; i < dim; i++) {
-			mean[i] = (nodeValue[i] / scaledTimeChild + parentValue[i]
-					/ scaledTimeParent)
-					/ scaledWeightTotal;
-
-			if (trueNoise) {
-				for (int j = i; j < dim; j++)
-					scaledPrecision[j][i] = scaledPrecision[i][j] = precision[i][j]
-							* scaledWeightTotal;
+	private void putTree(BlockingQueue<FlatTree> treesQueue,
+			FlatTree currentTree, List<Future<?>> futures)
+			throws InterruptedException {
+
+		// do not block forever on a queue no worker is taking from anymore
+		while (!treesQueue.offer(currentTree, 1, TimeUnit.SECONDS)) {
+			for (Future<?> future : futures) {
+				if (future.isDone()) {
+					Utils.waitFor(future);
+					throw new RuntimeException(
+							"Tree analysis stopped unexpectedly");
+				}
 			}
 		}
+	}// END: putTree
 
-		if (trueNoise) {
-			mean = MultivariateNormalDistribution
-					.nextMultivariateNormalPrecision(mean, scaledPrecision);
-		}
-
-		Object[] result = new Object[dim];
-		for (int i = 0; i < dim; i++)
-			result[i] = mean[i];
-
-		return result;
-	}// END: ImputeValue
-
-	private TimeLine GenerateTimeLine(RootedTree tree) throws ParseException {
+	private TimeLine GenerateTimeLine(FlatTree tree) throws ParseException {
 
 		// This is a general time span for all of the trees
-		double treeRootHeight = tree.getHeight(tree.getRootNode());
+		double treeRootHeight = tree.getRootHeight();
 		SpreadDate mrsd = new SpreadDate(mrsdString);
 		double startTime = mrsd.getTime()
 				- (treeRootHeight * DayInMillis * timescaler);
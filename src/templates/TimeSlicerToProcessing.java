@@ -1,40 +1,49 @@
 package templates;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
-import jebl.evolution.graphs.Node;
 import jebl.evolution.io.ImportException;
 import jebl.evolution.io.NexusImporter;
 import jebl.evolution.io.TreeImporter;
 import jebl.evolution.trees.RootedTree;
-import math.MultivariateNormalDistribution;
+import math.MathUtils;
+import math.MersenneTwisterFast;
+import math.RandomStreams;
 import processing.core.PApplet;
 import structure.Coordinates;
+import structure.FlatTree;
+import structure.SliceCoordinates;
 import structure.TimeLine;
+import utils.BeastTreesImporter;
+import utils.FlatTreeBuilder;
+import utils.IndexedTreeReader;
+import utils.PolygonSimplifier;
 import utils.SpreadDate;
+import utils.TreeSampler;
+import utils.TreesCache;
 import utils.Utils;
-import contouring.ContourMaker;
+import contouring.BinnedKernelDensityEstimator2D;
 import contouring.ContourPath;
 import contouring.ContourWithSynder;
+import contouring.KernelDensityEstimator2D;
+import contouring.SliceDensityGrids;
+import contouring.WeightedPoints;
 
 @SuppressWarnings("serial")
 public class TimeSlicerToProcessing extends PApplet {
 
 	private final int DayInMillis = 86400000;
-	private final int NTHREDS = Runtime.getRuntime().availableProcessors();;
 
-	private TreeImporter treesImporter;
+	private String treesPath;
+	private boolean useTreesCache;
 	private TreeImporter treeImporter;
 	private String precisionString;
 	private String coordinatesName;
@@ -44,15 +53,27 @@ public class TimeSlicerToProcessing extends PApplet {
 	private int numberOfIntervals;
 	private boolean useTrueNoise;
 	private boolean impute;
+	private boolean streamingDensity;
+	private boolean binnedDensity;
+	private double kernelTruncation;
+	private boolean tabulatedKernel;
+	private boolean marchingSquares;
+	private boolean tiledContouring;
+	private PolygonSimplifier polygonSimplifier;
+	private double[] hpdLevels = { 0.8 };
+	private int gridSize = KernelDensityEstimator2D.AUTOMATIC_GRID_SIZE;
+	private int gridRefinement = 1;
+	private long seed = MathUtils.getSeed();
+	private int thinning = 1;
+	private int sampleSize;
+	private SliceDensityGrids densityGrids;
 	private String mrsdString;
 	private double timescaler;
 	private TimeLine timeLine;
 	private double startTime;
 	private double endTime;
 	private double burnIn;
-	private RootedTree currentTree;
-	private Double sliceTime;
-	private RootedTree tree;
+	private FlatTree tree;
 
 	private double minPolygonRedMapping;
 	private double minPolygonGreenMapping;
@@ -76,7 +97,8 @@ public class TimeSlicerToProcessing extends PApplet {
 
 	private double branchWidth;
 
-	private ConcurrentMap<Double, List<Coordinates>> slicesMap;
+	private SliceAnalyzer sliceAnalyzer;
+	private SliceCoordinates slices;
 
 	private enum timescalerEnum {
 		DAYS, MONTHS, YEARS
@@ -113,7 +135,12 @@ public class TimeSlicerToProcessing extends PApplet {
 	}
 
 	public void setTreesPath(String path) throws FileNotFoundException {
-		treesImporter = new NexusImporter(new FileReader(path));
+
+		if (!new File(path).isFile()) {
+			throw new FileNotFoundException(path);
+		}
+
+		treesPath = path;
 	}
 
 	public void setMrsdString(String mrsd) {
@@ -151,6 +178,103 @@ public class TimeSlicerToProcessing extends PApplet {
 		impute = imputeBoolean;
 	}
 
+	public void setStreamingDensity(boolean streamingDensityBoolean) {
+		streamingDensity = streamingDensityBoolean;
+	}
+
+	public void setBinnedDensity(boolean binnedDensityBoolean) {
+		binnedDensity = binnedDensityBoolean;
+	}
+
+	/**
+	 * @param bandwidths
+	 *            the kernel of the density estimate is truncated at, 0 for
+	 *            the exact estimate
+	 */
+	public void setKernelTruncation(double bandwidths) {
+		kernelTruncation = bandwidths;
+	}
+
+	/**
+	 * @param tabulatedKernelBoolean
+	 *            approximates the kernel from a table instead of evaluating
+	 *            exp, with a relative error below 1e-8
+	 */
+	public void setTabulatedKernel(boolean tabulatedKernelBoolean) {
+		tabulatedKernel = tabulatedKernelBoolean;
+	}
+
+	/**
+	 * @param marchingSquaresBoolean
+	 *            traces the HPD contours as closed rings with marching
+	 *            squares instead of Snyder's tracer
+	 */
+	public void setMarchingSquares(boolean marchingSquaresBoolean) {
+		marchingSquares = marchingSquaresBoolean;
+	}
+
+	/**
+	 * @param tiledContouringBoolean
+	 *            traces the HPD contours with marching squares in tiles
+	 *            linked concurrently, for large density grids
+	 */
+	public void setTiledContouring(boolean tiledContouringBoolean) {
+		tiledContouring = tiledContouringBoolean;
+	}
+
+	/**
+	 * @param simplifier
+	 *            simplifies the HPD contours of every slice before they are
+	 *            written out, null to keep every traced vertex
+	 */
+	public void setPolygonSimplifier(PolygonSimplifier simplifier) {
+		polygonSimplifier = simplifier;
+	}
+
+	/**
+	 * @param levels
+	 *            probability masses of the HPD regions contoured in every
+	 *            slice, all of them from one density estimate
+	 */
+	public void setHPDLevels(double[] levels) {
+		hpdLevels = levels;
+	}
+
+	/**
+	 * @param size
+	 *            grid points per dimension of the density estimates,
+	 *            KernelDensityEstimator2D.AUTOMATIC_GRID_SIZE to choose it for
+	 *            every slice from its bandwidths and extent
+	 */
+	public void setGridSize(int size) {
+		gridSize = size;
+	}
+
+	/**
+	 * @param factor
+	 *            subdivision of the grid cells near the HPD contours, 1 to
+	 *            contour the density grid as it is
+	 */
+	public void setGridRefinement(int factor) {
+		gridRefinement = factor;
+	}
+
+	public void setSeed(long seedLong) {
+		seed = seedLong;
+	}
+
+	public void setUseTreesCache(boolean useTreesCacheBoolean) {
+		useTreesCache = useTreesCacheBoolean;
+	}
+
+	public void setThinning(int thinningInt) {
+		thinning = thinningInt;
+	}
+
+	public void setSampleSize(int sampleSizeInt) {
+		sampleSize = sampleSizeInt;
+	}
+
 	public void setMinPolygonRedMapping(double min) {
 		minPolygonRedMapping = min;
 	}
@@ -243,16 +367,17 @@ public class TimeSlicerToProcessing extends PApplet {
 
 	private void drawPolygons() throws OutOfMemoryError {
 
-		Set<Double> hostKeys = slicesMap.keySet();
-		Iterator<Double> iterator = hostKeys.iterator();
-
-		while (iterator.hasNext()) {
-			sliceTime = (Double) iterator.next();
-			drawPolygon(sliceTime);
+		for (int slice = 0; slice < slices.getSliceCount(); slice++) {
+			if (densityGrids == null ? slices.getCount(slice) > 0
+					: densityGrids.getCount(slice) > 0) {
+				drawPolygon(slice);
+			}
 		}
 	}// END: drawPolygons
 
-	private void drawPolygon(Double sliceTime) throws OutOfMemoryError {
+	private void drawPolygon(int slice) throws OutOfMemoryError {
+
+		double sliceTime = sliceAnalyzer.getSliceTime(slice);
 
 		/**
 		 * Color and Opacity mapping
@@ -272,54 +397,72 @@ public class TimeSlicerToProcessing extends PApplet {
 		stroke(red, green, blue, alpha);
 		fill(red, green, blue, alpha);
 
-		List<Coordinates> list = slicesMap.get(sliceTime);
+		ContourWithSynder contourMaker;
+		if (densityGrids != null) {
 
-		double[] x = new double[list.size()];
-		double[] y = new double[list.size()];
+			contourMaker = new BinnedKernelDensityEstimator2D(
+					densityGrids.getGrid(slice));
 
-		for (int i = 0; i < list.size(); i++) {
-
-			x[i] = list.get(i).getLatitude();
-			y[i] = list.get(i).getLongitude();
+		} else {
 
+			double[] x = slices.getLatitudes(slice);
+			double[] y = slices.getLongitudes(slice);
+
+			if (binnedDensity) {
+				contourMaker = new BinnedKernelDensityEstimator2D(x, y,
+						gridSize);
+			} else {
+				// repeated locations are evaluated once, weighted
+				contourMaker = new ContourWithSynder(
+						WeightedPoints.collapse(x, y, 0), gridSize,
+						kernelTruncation, tabulatedKernel);
+			}
+		}
+		contourMaker.setGridRefinement(gridRefinement);
+		contourMaker.setMarchingSquares(marchingSquares);
+		contourMaker.setTiledContouring(tiledContouring);
+		ContourPath[][] levelPaths = contourMaker.getContourPaths(hpdLevels);
+		if (polygonSimplifier != null) {
+			levelPaths = polygonSimplifier.simplify(levelPaths);
 		}
 
-		ContourMaker contourMaker = new ContourWithSynder(x, y, 200);
-		ContourPath[] paths = contourMaker.getContourPaths(0.8);
+		// the nested regions accumulate opacity towards the mode
+		for (int level = 0; level < hpdLevels.length; level++) {
 
-		for (ContourPath path : paths) {
+			for (ContourPath path : levelPaths[level]) {
 
-			double[] latitude = path.getAllX();
-			double[] longitude = path.getAllY();
-			List<Coordinates> coordinates = new ArrayList<Coordinates>();
+				double[] latitude = path.getAllX();
+				double[] longitude = path.getAllY();
+				List<Coordinates> coordinates = new ArrayList<Coordinates>();
 
-			for (int i = 0; i < latitude.length; i++) {
+				for (int i = 0; i < latitude.length; i++) {
 
-				coordinates
-						.add(new Coordinates(longitude[i], latitude[i], 0.0));
-			}
+					coordinates.add(new Coordinates(longitude[i], latitude[i],
+							0.0));
+				}
 
-			beginShape();
+				beginShape();
 
-			for (int row = 0; row < coordinates.size() - 1; row++) {
+				for (int row = 0; row < coordinates.size() - 1; row++) {
 
-				float X = map((float) coordinates.get(row).getLongitude(),
-						minX, maxX, 0, width);
-				float Y = map((float) coordinates.get(row).getLatitude(), maxY,
-						minY, 0, height);
+					float X = map((float) coordinates.get(row).getLongitude(),
+							minX, maxX, 0, width);
+					float Y = map((float) coordinates.get(row).getLatitude(),
+							maxY, minY, 0, height);
 
-				float XEND = map((float) coordinates.get(row + 1)
-						.getLongitude(), minX, maxX, 0, width);
-				float YEND = map((float) (coordinates.get(row + 1)
-						.getLatitude()), maxY, minY, 0, height);
+					float XEND = map((float) coordinates.get(row + 1)
+							.getLongitude(), minX, maxX, 0, width);
+					float YEND = map((float) (coordinates.get(row + 1)
+							.getLatitude()), maxY, minY, 0, height);
 
-				vertex(X, Y);
-				vertex(XEND, YEND);
+					vertex(X, Y);
+					vertex(XEND, YEND);
 
-			}// END: coordinates loop
-			endShape(CLOSE);
+				}// END: coordinates loop
+				endShape(CLOSE);
 
-		}// END: paths loop
+			}// END: paths loop
+		}// END: levels loop
 
 	}// END: drawPolygon()
 
@@ -328,20 +471,18 @@ public class TimeSlicerToProcessing extends PApplet {
 		double treeHeightMax = Utils.getTreeHeightMax(tree);
 		strokeWeight((float) branchWidth);
 
-		for (Node node : tree.getNodes()) {
-			if (!tree.isRoot(node)) {
+		double[] longitudes = tree.getNodeAttributeColumn(longitudeName, 0);
+		double[] latitudes = tree.getNodeAttributeColumn(latitudeName, 0);
 
-				float longitude = (float) Utils.getDoubleNodeAttribute(node,
-						longitudeName);
+		for (int node = 0; node < tree.getNodeCount(); node++) {
+			if (!tree.isRoot(node)) {
 
-				float latitude = (float) Utils.getDoubleNodeAttribute(node,
-						latitudeName);
+				float longitude = (float) longitudes[node];
+				float latitude = (float) latitudes[node];
 
-				Node parentNode = tree.getParent(node);
-				float parentLongitude = (float) Utils.getDoubleNodeAttribute(
-						parentNode, longitudeName);
-				float parentLatitude = (float) Utils.getDoubleNodeAttribute(
-						parentNode, latitudeName);
+				int parentNode = tree.getParent(node);
+				float parentLongitude = (float) longitudes[parentNode];
+				float parentLatitude = (float) latitudes[parentNode];
 
 				// Equirectangular projection:
 				float x0 = map(parentLongitude, minX, maxX, 0, width);
@@ -374,249 +515,148 @@ public class TimeSlicerToProcessing extends PApplet {
 	}// END: DrawBranches
 
 	public void AnalyzeTrees() throws IOException, ImportException,
-			ParseException {
+			ParseException, InterruptedException {
 
 		System.out.println("Importing trees...");
 
 		// This is a general time span for all of the trees
-		tree = (RootedTree) treeImporter.importNextTree();
+		tree = FlatTreeBuilder.build((RootedTree) treeImporter
+				.importNextTree(), new String[] { longitudeName, latitudeName },
+				new String[0]);
 		timeLine = GenerateTimeLine(tree);
 		startTime = timeLine.getStartTime();
 		endTime = timeLine.getEndTime();
 
 		// This is for slice times
-		slicesMap = new ConcurrentHashMap<Double, List<Coordinates>>();
-
-		System.out.println("Analyzing trees...");
+		sliceAnalyzer = new SliceAnalyzer(tree.getRootHeight(),
+				numberOfIntervals, mrsdString, timescaler, coordinatesName);
+		sliceAnalyzer.setImpute(impute);
+		sliceAnalyzer.setTrueNoise(useTrueNoise);
+		sliceAnalyzer.setRateAttName(rateString);
+		sliceAnalyzer.setPrecisionAttName(precisionString);
 
-		// Executor for threads
-		ExecutorService executor = Executors.newFixedThreadPool(NTHREDS);
+		// This is for collecting coordinates into polygons
+		slices = new SliceCoordinates(sliceAnalyzer.getSliceCount());
 
-		int readTrees = 0;
-		while (treesImporter.hasTree()) {
-
-			currentTree = (RootedTree) treesImporter.importNextTree();
-
-			if (readTrees >= burnIn) {
+		System.out.println("Analyzing trees...");
 
-				// executor.submit(new AnalyzeTree());
-				AnalyzeTree analyzeTree = new AnalyzeTree();
-				analyzeTree.run();
-			}
+		System.out.println("Using random seed " + seed);
 
-			readTrees++;
+		densityGrids = null;
+		if (!streamingDensity) {
+			AnalyzeSampledTrees();
+			return;
 		}
 
-		// Wait until all threads are finished
-		executor.shutdown();
-		while (!executor.isTerminated()) {
-		}
+		// In streaming mode every slice bins into one grid for all of the
+		// trees. The trees are analyzed twice with the same random stream,
+		// the first pass collects the limits of the coordinates of every
+		// slice and the second one bins them onto grids with these limits.
+		System.out.println("Finding the limits of the slices...");
+		densityGrids = new SliceDensityGrids(sliceAnalyzer.getSliceCount());
+		AnalyzeSampledTrees();
 
-		if ((readTrees - burnIn) <= 0.0) {
-			throw new RuntimeException("Burnt too many trees!");
-		} else {
-			System.out.println("Analyzed " + (int) (readTrees - burnIn)
-					+ " trees");
-		}
+		System.out.println("Binning the slices...");
+		densityGrids = new SliceDensityGrids(densityGrids, gridSize);
+		AnalyzeSampledTrees();
 
 	}// END: AnalyzeTrees
 
-	// ///////////////////////////////
-	// ---CONCURRENT ANALYZE TREE---//
-	// ///////////////////////////////
-	private class AnalyzeTree implements Runnable {
-
-		public void run() {
-
-			try {
-
-				double treeRootHeight = tree.getHeight(tree.getRootNode());
-
-				for (Node node : currentTree.getNodes()) {
-
-					if (!currentTree.isRoot(node)) {
-
-						for (int i = 0; i <= numberOfIntervals; i++) {
-
-							Node parentNode = currentTree.getParent(node);
-
-							double nodeHeight = currentTree.getHeight(node);
-							double parentHeight = currentTree
-									.getHeight(parentNode);
-
-							Object[] location = (Object[]) Utils
-									.getArrayNodeAttribute(node, coordinatesName);
-							double latitude = (Double) location[0];
-							double longitude = (Double) location[1];
-
-							Object[] parentLocation = (Object[]) Utils
-									.getArrayNodeAttribute(parentNode,
-											coordinatesName);
-							double parentLatitude = (Double) parentLocation[0];
-							double parentLongitude = (Double) parentLocation[1];
-
-							double sliceHeight = treeRootHeight
-									- (treeRootHeight / numberOfIntervals)
-									* ((double) i);
-
-							if (nodeHeight < sliceHeight
-									&& sliceHeight <= parentHeight) {
-
-								SpreadDate mrsd = new SpreadDate(mrsdString);
-								double sliceTime = mrsd
-										.minus((int) (sliceHeight * timescaler));
-
-								if (slicesMap.containsKey(sliceTime)) {
-
-									slicesMap.get(sliceTime).add(
-											new Coordinates(parentLongitude,
-													parentLatitude, 0.0));
-
-									if (impute) {
-
-										double rate = Utils
-												.getDoubleNodeAttribute(node,
-														rateString);
-
-										Object[] imputedLocation = imputeValue(
-												location, parentLocation,
-												sliceHeight, nodeHeight,
-												parentHeight, currentTree,
-												rate, useTrueNoise);
-
-										slicesMap
-												.get(sliceTime)
-												.add(
-														new Coordinates(
-																Double
-																		.valueOf(imputedLocation[1]
-																				.toString()),
-																Double
-																		.valueOf(imputedLocation[0]
-																				.toString()),
-																0.0));
-									}
-
-									slicesMap.get(sliceTime).add(
-											new Coordinates(longitude,
-													latitude, 0.0));
-
-								} else {
-
-									List<Coordinates> coords = new ArrayList<Coordinates>();
+	/**
+	 * Analyzes the trees once, into the density grids if there are any
+	 */
+	private void AnalyzeSampledTrees() throws IOException, ImportException,
+			InterruptedException {
 
-									coords.add(new Coordinates(parentLongitude,
-											parentLatitude, 0.0));
+		RandomStreams randomStreams = new RandomStreams(seed);
+		MersenneTwisterFast random = randomStreams.getStream(0);
 
-									if (impute) {
+		// burn-in, thinning and sampling
+		TreeSampler sampler = new TreeSampler((int) burnIn, thinning,
+				sampleSize, randomStreams.getMasterStream());
 
-										double rate = Utils
-												.getDoubleNodeAttribute(node,
-														rateString);
+		// null if the cache can not be written
+		TreesCache treesCache = useTreesCache ? TreesCache.getCache(treesPath,
+				sliceAnalyzer.getAllNodeAttributeNames(), sliceAnalyzer
+						.getAllTreeAttributeNames()) : null;
 
-										Object[] imputedLocation = imputeValue(
-												location, parentLocation,
-												sliceHeight, nodeHeight,
-												parentHeight, currentTree,
-												rate, useTrueNoise);
-
-										coords.add(new Coordinates(Double
-												.valueOf(imputedLocation[1]
-														.toString()), Double
-												.valueOf(imputedLocation[0]
-														.toString()), 0.0));
-									}
-
-									coords.add(new Coordinates(longitude,
-											latitude, 0.0));
-
-									slicesMap.putIfAbsent(sliceTime, coords);
-
-								}// END: key check
-							}// END: sliceTime check
-						}// END: numberOfIntervals loop
-					}
-				}// END: node loop
-
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-
-		}// END: run
-	}// END: AnalyzeTree
-
-	private Object[] imputeValue(Object[] location, Object[] parentLocation,
-			double sliceTime, double nodeTime, double parentTime,
-			RootedTree tree, double rate, boolean trueNoise) {
-
-		Object o = tree.getAttribute(precisionString);
-		double treeNormalization = tree.getHeight(tree.getRootNode());
-
-		Object[] array = (Object[]) o;
-		int dim = (int) Math.sqrt(1 + 8 * array.length) / 2;
-		double[][] precision = new double[dim][dim];
-		int c = 0;
-		for (int i = 0; i < dim; i++) {
-			for (int j = i; j < dim; j++) {
-				precision[j][i] = precision[i][j] = ((Double) array[c++])
-						* treeNormalization;
-			}
+		int analyzedTrees;
+		if (treesCache != null) {
+			analyzedTrees = AnalyzeCachedTrees(treesCache, sampler, random);
+		} else {
+			analyzedTrees = AnalyzeStreamedTrees(sampler, random);
 		}
 
-		dim = location.length;
-		double[] nodeValue = new double[2];
-		double[] parentValue = new double[2];
-
-		for (int i = 0; i < dim; i++) {
-
-			nodeValue[i] = Double.parseDouble(location[i].toString());
-			parentValue[i] = Double.parseDouble(parentLocation[i].toString());
-
+		if (analyzedTrees <= 0.0) {
+			throw new RuntimeException("Burnt too many trees!");
+		} else {
+			System.out.println("Analyzed " + analyzedTrees + " trees");
 		}
 
-		final double scaledTimeChild = (sliceTime - nodeTime) * rate;
-		final double scaledTimeParent = (parentTime - sliceTime) * rate;
-		final double scaledWeightTotal = 1.0 / scaledTimeChild + 1.0
-				/ scaledTimeParent;
-
-		if (scaledTimeChild == 0)
-			return location;
-
-		if (scaledTimeParent == 0)
-			return parentLocation;
+	}// END: AnalyzeSampledTrees
+
+	/**
+	 * Reads the trees from the trees file, trees which are not analyzed are
+	 * skipped over without parsing
+	 *
+	 * @return number of analyzed trees
+	 */
+	private int AnalyzeStreamedTrees(TreeSampler sampler,
+			final MersenneTwisterFast random) throws IOException,
+			ImportException, InterruptedException {
+
+		InputStream treesStream = new FileInputStream(treesPath);
+		BeastTreesImporter treesImporter = new BeastTreesImporter(treesStream,
+				sliceAnalyzer.getNodeAttributeNames(),
+				sliceAnalyzer.getTreeAttributeNames());
+
+		int analyzedTrees;
+		try {
+
+			analyzedTrees = sampler.visitTrees(treesImporter,
+					new TreeSampler.TreeVisitor() {
+						public void visit(FlatTree currentTree) {
+							analyzeTree(currentTree, random);
+						}
+					});
+
+		} finally {
+			treesStream.close();
+		}
 
-		// Find mean value, weighted average
-		double[] mean = new double[dim];
-		double[][] scaledPrecision = new double[dim][dim];
+		return analyzedTrees;
+	}// END: AnalyzeStreamedTrees
 
-		for (int i = 0; i < dim; i++) {
-			mean[i] = (nodeValue[i] / scaledTimeChild + parentValue[i]
-					/ scaledTimeParent)
-					/ scaledWeightTotal;
+	/**
+	 * Reads the trees from the binary cache of the trees file
+	 *
+	 * @return number of analyzed trees
+	 */
+	private int AnalyzeCachedTrees(TreesCache treesCache, TreeSampler sampler,
+			MersenneTwisterFast random) throws IOException, ImportException {
 
-			if (trueNoise) {
-				for (int j = i; j < dim; j++)
-					scaledPrecision[j][i] = scaledPrecision[i][j] = precision[i][j]
-							* scaledWeightTotal;
-			}
-		}
+		IndexedTreeReader treesReader = treesCache.getReader();
 
-		if (trueNoise) {
-			mean = MultivariateNormalDistribution
-					.nextMultivariateNormalPrecision(mean, scaledPrecision);
+		int[] selectedTrees = sampler.select(treesCache.getTreeCount());
+		for (int index : selectedTrees) {
+			analyzeTree(treesReader.importTree(index), random);
 		}
 
-		Object[] result = new Object[dim];
-		for (int i = 0; i < dim; i++)
-			result[i] = mean[i];
+		return selectedTrees.length;
+	}// END: AnalyzeCachedTrees
 
-		return result;
-	}// END: ImputeValue
+	private void analyzeTree(FlatTree currentTree, MersenneTwisterFast random) {
+		if (densityGrids == null) {
+			sliceAnalyzer.analyze(currentTree, slices, random);
+		} else {
+			sliceAnalyzer.analyze(currentTree, slices, densityGrids, random);
+		}
+	}// END: analyzeTree
 
-	private TimeLine GenerateTimeLine(RootedTree mccTree) throws ParseException {
+	private TimeLine GenerateTimeLine(FlatTree mccTree) throws ParseException {
 
 		// This is a general time span for all of the trees
-		double treeRootHeight = mccTree.getHeight(mccTree.getRootNode());
+		double treeRootHeight = mccTree.getRootHeight();
 		SpreadDate mrsd = new SpreadDate(mrsdString);
 		double startTime = mrsd.getTime()
 				- (treeRootHeight * DayInMillis * timescaler);
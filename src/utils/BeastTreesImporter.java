@@ -0,0 +1,367 @@
+package utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import jebl.evolution.io.ImportException;
+import structure.FlatTree;
+
+/**
+ * Streaming importer for BEAST Nexus tree files (posterior .trees files and
+ * MCC trees). The file is read as ';' terminated statements over a reusable
+ * byte buffer, the translate block is read once, and every tree statement is
+ * parsed straight into a FlatTree keeping only the requested attributes.
+ */
+public class BeastTreesImporter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final InputStream in;
+	private final String[] nodeAttributeNames;
+	private final String[] treeAttributeNames;
+
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int bufferPosition;
+	private int bufferLimit;
+
+	// current statement, without leading whitespace
+	private byte[] statement = new byte[BUFFER_SIZE];
+	private int statementLength;
+	private long statementOffset;
+	// bytes read from the stream so far
+	private long streamPosition;
+
+	private boolean inTreesBlock;
+	private boolean hasTree;
+	private Map<String, String> translate = new HashMap<String, String>();
+	private FlatTreeParser parser;
+
+	/**
+	 * @param nodeAttributeNames
+	 *            names of the node annotations to keep
+	 * @param treeAttributeNames
+	 *            names of the tree annotations to keep
+	 */
+	public BeastTreesImporter(InputStream in, String[] nodeAttributeNames,
+			String[] treeAttributeNames) throws IOException, ImportException {
+
+		this.in = in;
+		this.nodeAttributeNames = nodeAttributeNames;
+		this.treeAttributeNames = treeAttributeNames;
+
+		hasTree = readToNextTree();
+	}// END: BeastTreesImporter()
+
+	public boolean hasTree() {
+		return hasTree;
+	}
+
+	public FlatTree importNextTree() throws IOException, ImportException {
+
+		if (!hasTree) {
+			throw new ImportException("No more trees");
+		}
+
+		FlatTree tree = getParser().parse(statement, 0, statementLength);
+
+		hasTree = readToNextTree();
+
+		return tree;
+	}// END: importNextTree
+
+	/**
+	 * Moves on to the next tree without parsing the current one
+	 */
+	public void skipTree() throws IOException, ImportException {
+
+		if (!hasTree) {
+			throw new ImportException("No more trees");
+		}
+
+		hasTree = readToNextTree();
+	}// END: skipTree
+
+	/**
+	 * @return copy of the next tree statement, it can be parsed later with
+	 *         parseTree
+	 */
+	public byte[] copyTree() throws ImportException {
+
+		if (!hasTree) {
+			throw new ImportException("No more trees");
+		}
+
+		return Arrays.copyOf(statement, statementLength);
+	}// END: copyTree
+
+	public FlatTree parseTree(byte[] treeStatement) throws ImportException {
+		return getParser().parse(treeStatement, 0, treeStatement.length);
+	}
+
+	/**
+	 * @return offset in bytes of the next tree statement from the start of
+	 *         the stream
+	 */
+	public long getTreeOffset() {
+		return statementOffset;
+	}
+
+	/**
+	 * @return length in bytes of the next tree statement, including the
+	 *         closing ';'
+	 */
+	public int getTreeLength() {
+		return statementLength;
+	}
+
+	/**
+	 * @return tip labels to taxon names from the translate block
+	 */
+	public Map<String, String> getTranslate() {
+		return translate;
+	}
+
+	private FlatTreeParser getParser() {
+
+		if (parser == null) {
+			parser = new FlatTreeParser(translate, nodeAttributeNames,
+					treeAttributeNames);
+		}
+
+		return parser;
+	}// END: getParser
+
+	/**
+	 * Reads statements until the next tree statement, which is left in the
+	 * statement buffer
+	 *
+	 * @return false at the end of the trees block or file
+	 */
+	private boolean readToNextTree() throws IOException, ImportException {
+
+		while (readStatement()) {
+
+			if (startsWithWord("tree")) {
+
+				if (!inTreesBlock) {
+					throw new ImportException("Tree outside of a trees block");
+				}
+
+				return true;
+
+			} else if (startsWithWord("begin")) {
+
+				inTreesBlock = matchesWords("begin", "trees");
+
+			} else if (inTreesBlock
+					&& (startsWithWord("end") || startsWithWord("endblock"))) {
+
+				inTreesBlock = false;
+				return false;
+
+			} else if (inTreesBlock && startsWithWord("translate")) {
+
+				readTranslate();
+			}
+		}
+
+		return false;
+	}// END: readToNextTree
+
+	/**
+	 * Reads the next statement up to and including ';', skipping ';' inside
+	 * quotes and comments, also the #NEXUS line
+	 *
+	 * @return false at the end of the file
+	 */
+	private boolean readStatement() throws IOException, ImportException {
+
+		statementLength = 0;
+
+		int b = skipWhitespace();
+		if (b < 0) {
+			return false;
+		}
+
+		// #NEXUS is not ';' terminated
+		while (b == '#') {
+			while (b >= 0 && b != '\n' && b != '\r') {
+				b = read();
+			}
+			b = skipWhitespace();
+			if (b < 0) {
+				return false;
+			}
+		}
+
+		statementOffset = streamPosition - 1;
+
+		int quote = 0;
+		int commentDepth = 0;
+		while (b >= 0) {
+
+			append(b);
+
+			if (quote != 0) {
+				if (b == quote) {
+					quote = 0;
+				}
+			} else if (b == '[') {
+				commentDepth++;
+			} else if (b == ']' && commentDepth > 0) {
+				commentDepth--;
+			} else if (commentDepth == 0) {
+				if (b == '\'' || b == '"') {
+					quote = b;
+				} else if (b == ';') {
+					return true;
+				}
+			}
+
+			b = read();
+		}
+
+		throw new ImportException("Missing ';' at the end of the file");
+	}// END: readStatement
+
+	private void readTranslate() throws ImportException {
+
+		// Translate label name, label name, ... ;
+		int position = "translate".length();
+		String label = null;
+
+		while (position < statementLength) {
+
+			byte b = statement[position];
+
+			if (b <= ' ' || b == ',' || b == ';') {
+				position++;
+				continue;
+			}
+
+			int start = position;
+			String token;
+			if (b == '\'' || b == '"') {
+
+				position++;
+				StringBuilder quoted = new StringBuilder();
+				while (true) {
+					int from = position;
+					while (position < statementLength
+							&& statement[position] != b) {
+						position++;
+					}
+					if (position >= statementLength) {
+						throw new ImportException(
+								"Unterminated quote in translate block");
+					}
+					quoted.append(new String(statement, from, position - from,
+							UTF8));
+					position++;
+					if (position < statementLength && statement[position] == b) {
+						quoted.append((char) b);
+						position++;
+					} else {
+						break;
+					}
+				}
+				token = quoted.toString();
+
+			} else {
+
+				while (position < statementLength && statement[position] > ' '
+						&& statement[position] != ','
+						&& statement[position] != ';') {
+					position++;
+				}
+				token = new String(statement, start, position - start, UTF8);
+			}
+
+			if (label == null) {
+				label = token;
+			} else {
+				translate.put(label, token);
+				label = null;
+			}
+		}
+
+		// taxa may differ from the previous translate block
+		parser = null;
+	}// END: readTranslate
+
+	private boolean startsWithWord(String word) {
+
+		if (statementLength < word.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < word.length(); i++) {
+			if (Character.toLowerCase((char) statement[i]) != word.charAt(i)) {
+				return false;
+			}
+		}
+
+		return statementLength == word.length()
+				|| !Character.isLetterOrDigit((char) statement[word.length()]);
+	}// END: startsWithWord
+
+	private boolean matchesWords(String first, String second) {
+
+		int position = first.length();
+		while (position < statementLength && statement[position] <= ' ') {
+			position++;
+		}
+
+		for (int i = 0; i < second.length(); i++) {
+			if (position + i >= statementLength
+					|| Character.toLowerCase((char) statement[position + i]) != second
+							.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}// END: matchesWords
+
+	private void append(int b) {
+
+		if (statementLength == statement.length) {
+			statement = Arrays.copyOf(statement, 2 * statement.length);
+		}
+
+		statement[statementLength++] = (byte) b;
+	}// END: append
+
+	private int skipWhitespace() throws IOException {
+
+		int b = read();
+		while (b >= 0 && b <= ' ') {
+			b = read();
+		}
+
+		return b;
+	}// END: skipWhitespace
+
+	private int read() throws IOException {
+
+		if (bufferPosition == bufferLimit) {
+
+			bufferLimit = in.read(buffer, 0, buffer.length);
+			bufferPosition = 0;
+
+			if (bufferLimit <= 0) {
+				bufferLimit = 0;
+				return -1;
+			}
+		}
+
+		streamPosition++;
+		return buffer[bufferPosition++] & 0xff;
+	}// END: read
+
+}// END: class
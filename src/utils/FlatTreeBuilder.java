@@ -0,0 +1,163 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jebl.evolution.graphs.Node;
+import jebl.evolution.trees.RootedTree;
+import structure.FlatTree;
+
+/**
+ * Compiles a jebl RootedTree into a FlatTree once, so that the templates can
+ * walk the tree over node indices and primitive attribute columns instead of
+ * looking up parents, heights and attributes node by node.
+ */
+public class FlatTreeBuilder {
+
+	/**
+	 * @param nodeAttributeNames
+	 *            names of the numeric node attributes to keep, vector
+	 *            attributes keep all of their components
+	 * @param nodeLabelNames
+	 *            names of the text node attributes to keep
+	 */
+	public static FlatTree build(RootedTree tree, String[] nodeAttributeNames,
+			String[] nodeLabelNames) {
+
+		Node[] nodes = getNodes(tree);
+		int nodeCount = nodes.length;
+
+		Map<Node, Integer> index = new HashMap<Node, Integer>();
+		for (int i = 0; i < nodeCount; i++) {
+			index.put(nodes[i], i);
+		}
+
+		int[] parents = new int[nodeCount];
+		double[] lengths = new double[nodeCount];
+		String[] taxa = new String[nodeCount];
+
+		parents[0] = FlatTree.NO_PARENT;
+		for (int i = 0; i < nodeCount; i++) {
+
+			Node node = nodes[i];
+
+			if (!tree.isRoot(node)) {
+				parents[i] = index.get(tree.getParent(node));
+				lengths[i] = tree.getLength(node);
+			}
+
+			if (tree.isExternal(node)) {
+				taxa[i] = tree.getTaxon(node).getName();
+			}
+		}
+
+		double[][][] nodeAttributes = new double[nodeAttributeNames.length][][];
+		for (int i = 0; i < nodeAttributeNames.length; i++) {
+			nodeAttributes[i] = getNodeAttributeColumns(nodes,
+					nodeAttributeNames[i]);
+		}
+
+		Map<String, String[]> nodeLabels = new HashMap<String, String[]>();
+		for (String name : nodeLabelNames) {
+
+			String[] column = new String[nodeCount];
+			boolean found = false;
+			for (int i = 0; i < nodeCount; i++) {
+
+				Object value = nodes[i].getAttribute(name);
+				if (value != null) {
+					column[i] = value.toString();
+					found = true;
+				}
+			}
+
+			if (found) {
+				nodeLabels.put(name, column);
+			}
+		}
+
+		return new FlatTree(nodeCount, parents, lengths, taxa,
+				nodeAttributeNames, nodeAttributes,
+				new HashMap<String, double[]>(), nodeLabels);
+	}// END: build
+
+	/**
+	 * @return nodes of the tree in the order of the FlatTree built from it,
+	 *         for attributes which are not kept as columns
+	 */
+	public static Node[] getNodes(RootedTree tree) {
+
+		List<Node> preOrder = new ArrayList<Node>();
+		List<Node> stack = new ArrayList<Node>();
+		stack.add(tree.getRootNode());
+
+		while (!stack.isEmpty()) {
+
+			Node node = stack.remove(stack.size() - 1);
+			preOrder.add(node);
+
+			// first child on top of the stack
+			List<Node> children = tree.getChildren(node);
+			for (int i = children.size() - 1; i >= 0; i--) {
+				stack.add(children.get(i));
+			}
+		}
+
+		return preOrder.toArray(new Node[preOrder.size()]);
+	}// END: getNodes
+
+	/**
+	 * @return [component][node] values of the attribute, no components if no
+	 *         node has it
+	 */
+	private static double[][] getNodeAttributeColumns(Node[] nodes, String name) {
+
+		int dimension = 0;
+		for (Node node : nodes) {
+
+			Object value = node.getAttribute(name);
+			if (value instanceof Object[]) {
+				dimension = Math.max(dimension, ((Object[]) value).length);
+			} else if (value != null) {
+				dimension = Math.max(dimension, 1);
+			}
+		}
+
+		double[][] columns = new double[dimension][nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+
+			Object value = nodes[i].getAttribute(name);
+			Object[] components = value instanceof Object[] ? (Object[]) value
+					: new Object[] { value };
+
+			for (int component = 0; component < dimension; component++) {
+				columns[component][i] = component < components.length ? toDouble(
+						components[component], name)
+						: Double.NaN;
+			}
+		}
+
+		return columns;
+	}// END: getNodeAttributeColumns
+
+	private static double toDouble(Object value, String name) {
+
+		if (value == null) {
+			return Double.NaN;
+		}
+
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+
+		try {
+			return Double.parseDouble(value.toString());
+		} catch (NumberFormatException e) {
+			throw new RuntimeException("Attribute " + name
+					+ " is not numeric: " + value);
+		}
+	}// END: toDouble
+
+}// END: class
@@ -0,0 +1,793 @@
+package utils;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import jebl.evolution.io.ImportException;
+import structure.FlatTree;
+
+/**
+ * Parses single BEAST Nexus tree statements, i.e. everything from the
+ * "tree" keyword to the closing ';', given as bytes into FlatTree objects.
+ *
+ * Only the requested node and tree attributes are converted, all other
+ * annotations are skipped over without creating any objects. The working
+ * arrays are reused from tree to tree, so a parser must not be shared
+ * between threads.
+ */
+public class FlatTreeParser {
+
+	private static final int INITIAL_CAPACITY = 256;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// exactly representable powers of ten for the fast number path
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4,
+			1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16,
+			1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	private final Map<String, String> translate;
+	private final String[] translateByNumber;
+	private final String[] nodeAttributeNames;
+	private final byte[][] nodeAttributeKeys;
+	private final String[] treeAttributeNames;
+	private final byte[][] treeAttributeKeys;
+
+	// statement being parsed
+	private byte[] bytes;
+	private int position;
+	private int end;
+
+	// growable node columns, reused between trees
+	private int nodeCount;
+	private int[] parents;
+	private double[] lengths;
+	private String[] taxa;
+	// [attribute][component][node]
+	private double[][][] nodeAttributes;
+	// number of components of every attribute seen in the current tree
+	private int[] nodeAttributeDimensions;
+	private Map<String, double[]> treeAttributes;
+
+	// reusable buffer for the components of one annotation value
+	private double[] values = new double[4];
+	private int valueCount;
+
+	/**
+	 * @param translate
+	 *            tip labels to taxon names as given by the translate block,
+	 *            can be empty
+	 * @param nodeAttributeNames
+	 *            names of the node annotations to keep
+	 * @param treeAttributeNames
+	 *            names of the tree annotations to keep
+	 */
+	public FlatTreeParser(Map<String, String> translate,
+			String[] nodeAttributeNames, String[] treeAttributeNames) {
+
+		this.translate = new HashMap<String, String>(translate);
+		this.nodeAttributeNames = nodeAttributeNames.clone();
+		this.treeAttributeNames = treeAttributeNames.clone();
+
+		nodeAttributeKeys = getKeys(nodeAttributeNames);
+		treeAttributeKeys = getKeys(treeAttributeNames);
+
+		// BEAST translates taxa to consecutive numbers, those are looked up
+		// without creating label strings
+		int maxNumber = 0;
+		for (String label : translate.keySet()) {
+			int number = getNumber(label);
+			if (number > 0) {
+				maxNumber = Math.max(maxNumber, number);
+			}
+		}
+
+		translateByNumber = new String[maxNumber + 1];
+		for (Map.Entry<String, String> entry : translate.entrySet()) {
+			int number = getNumber(entry.getKey());
+			if (number > 0) {
+				translateByNumber[number] = entry.getValue();
+			}
+		}
+
+		parents = new int[INITIAL_CAPACITY];
+		lengths = new double[INITIAL_CAPACITY];
+		taxa = new String[INITIAL_CAPACITY];
+		nodeAttributes = new double[nodeAttributeNames.length][0][];
+		nodeAttributeDimensions = new int[nodeAttributeNames.length];
+
+	}// END: FlatTreeParser()
+
+	/**
+	 * Parses the tree statement in bytes[offset, offset + length)
+	 */
+	public FlatTree parse(byte[] bytes, int offset, int length)
+			throws ImportException {
+
+		this.bytes = bytes;
+		position = offset;
+		end = offset + length;
+
+		nodeCount = 0;
+		treeAttributes = new HashMap<String, double[]>();
+		Arrays.fill(nodeAttributeDimensions, 0);
+
+		skipWhitespaceAndComments(-1);
+		if (!matchesKeyword("tree")) {
+			throw new ImportException("Expected a tree statement");
+		}
+		position += 4;
+
+		// tree name and tree annotations up to '='
+		skipWhitespaceAndComments(-1);
+		skipLabel();
+		skipWhitespaceAndComments(-1);
+		if (position >= end || bytes[position] != '=') {
+			throw new ImportException("Missing '=' in tree statement");
+		}
+		position++;
+
+		// [&R] and [&U] come before the newick string
+		skipWhitespaceAndComments(-1);
+
+		parseNewick();
+
+		int[] treeParents = Arrays.copyOf(parents, nodeCount);
+		double[] treeLengths = Arrays.copyOf(lengths, nodeCount);
+		String[] treeTaxa = Arrays.copyOf(taxa, nodeCount);
+
+		double[][][] treeNodeAttributes = new double[nodeAttributes.length][][];
+		for (int i = 0; i < nodeAttributes.length; i++) {
+			treeNodeAttributes[i] = new double[nodeAttributeDimensions[i]][];
+			for (int c = 0; c < nodeAttributeDimensions[i]; c++) {
+				treeNodeAttributes[i][c] = Arrays.copyOf(nodeAttributes[i][c],
+						nodeCount);
+			}
+		}
+
+		this.bytes = null;
+
+		return new FlatTree(nodeCount, treeParents, treeLengths, treeTaxa,
+				nodeAttributeNames, treeNodeAttributes, treeAttributes);
+	}// END: parse
+
+	private void parseNewick() throws ImportException {
+
+		// nodes are created when they are entered, so parents are numbered
+		// before their children
+		int current = FlatTree.NO_PARENT;
+		boolean done = false;
+
+		while (!done) {
+
+			skipWhitespace();
+			if (position >= end) {
+				throw new ImportException("Unexpected end of tree statement");
+			}
+
+			switch (bytes[position]) {
+
+			case '(':
+				position++;
+				current = newNode(current);
+				break;
+
+			case ',':
+				position++;
+				if (current == FlatTree.NO_PARENT) {
+					throw new ImportException("Unexpected ',' in tree");
+				}
+				break;
+
+			case ')':
+				position++;
+				if (current == FlatTree.NO_PARENT) {
+					throw new ImportException("Unbalanced ')' in tree");
+				}
+				int node = current;
+				current = parents[node];
+
+				// internal node labels are not used
+				skipWhitespace();
+				skipLabel();
+				parseNodeSuffix(node);
+				break;
+
+			case ';':
+				position++;
+				done = true;
+				break;
+
+			default:
+				int tip = newNode(current);
+				taxa[tip] = readTaxon();
+				parseNodeSuffix(tip);
+				break;
+			}
+
+			if (current == FlatTree.NO_PARENT && nodeCount > 0 && !done) {
+				skipWhitespaceAndComments(-1);
+				if (position < end && bytes[position] == ';') {
+					position++;
+					done = true;
+				} else if (position < end) {
+					throw new ImportException(
+							"Expected ';' at the end of the tree");
+				}
+			}
+		}// END: newick loop
+
+		if (nodeCount == 0) {
+			throw new ImportException("Empty tree");
+		}
+
+	}// END: parseNewick
+
+	/**
+	 * Annotations and branch length following a node, in any order
+	 */
+	private void parseNodeSuffix(int node) throws ImportException {
+
+		while (true) {
+
+			skipWhitespace();
+			if (position >= end) {
+				return;
+			}
+
+			if (bytes[position] == '[') {
+
+				skipComment(node);
+
+			} else if (bytes[position] == ':') {
+
+				position++;
+				skipWhitespace();
+				lengths[node] = readNumber();
+
+			} else {
+				return;
+			}
+		}
+	}// END: parseNodeSuffix
+
+	private int newNode(int parent) {
+
+		if (nodeCount == parents.length) {
+
+			int capacity = 2 * parents.length;
+			parents = Arrays.copyOf(parents, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			taxa = Arrays.copyOf(taxa, capacity);
+
+			for (int i = 0; i < nodeAttributes.length; i++) {
+				for (int c = 0; c < nodeAttributes[i].length; c++) {
+					nodeAttributes[i][c] = Arrays.copyOf(nodeAttributes[i][c],
+							capacity);
+				}
+			}
+		}
+
+		int node = nodeCount++;
+		parents[node] = parent;
+		lengths[node] = 0.0;
+		taxa[node] = null;
+
+		for (int i = 0; i < nodeAttributes.length; i++) {
+			for (int c = 0; c < nodeAttributeDimensions[i]; c++) {
+				nodeAttributes[i][c][node] = Double.NaN;
+			}
+		}
+
+		return node;
+	}// END: newNode
+
+	private String readTaxon() throws ImportException {
+
+		int start = position;
+
+		if (bytes[position] == '\'' || bytes[position] == '"') {
+			String label = readQuotedLabel();
+			return translate(label);
+		}
+
+		int number = 0;
+		boolean numeric = true;
+		while (position < end && !isLabelEnd(bytes[position])) {
+
+			byte b = bytes[position];
+			if (b >= '0' && b <= '9' && number < Integer.MAX_VALUE / 10) {
+				number = 10 * number + (b - '0');
+			} else {
+				numeric = false;
+			}
+			position++;
+		}
+
+		if (position == start) {
+			throw new ImportException("Missing taxon label in tree");
+		}
+
+		if (numeric && number < translateByNumber.length
+				&& translateByNumber[number] != null) {
+			return translateByNumber[number];
+		}
+
+		return translate(new String(bytes, start, position - start, UTF8));
+	}// END: readTaxon
+
+	private String translate(String label) {
+		String name = translate.get(label);
+		return name == null ? label : name;
+	}
+
+	private String readQuotedLabel() throws ImportException {
+
+		byte quote = bytes[position++];
+		String label = "";
+
+		while (true) {
+
+			int start = position;
+			while (position < end && bytes[position] != quote) {
+				position++;
+			}
+
+			if (position >= end) {
+				throw new ImportException("Unterminated quoted label");
+			}
+
+			label += new String(bytes, start, position - start, UTF8);
+			position++;
+
+			// doubled quotes stand for the quote itself
+			if (position < end && bytes[position] == quote) {
+				label += (char) quote;
+				position++;
+			} else {
+				return label;
+			}
+		}
+	}// END: readQuotedLabel
+
+	private void skipLabel() throws ImportException {
+
+		if (position < end
+				&& (bytes[position] == '\'' || bytes[position] == '"')) {
+			readQuotedLabel();
+			return;
+		}
+
+		while (position < end && !isLabelEnd(bytes[position])
+				&& bytes[position] != '=') {
+			position++;
+		}
+	}// END: skipLabel
+
+	private static boolean isLabelEnd(byte b) {
+		return b == ':' || b == ',' || b == ')' || b == '(' || b == ';'
+				|| b == '[' || b <= ' ';
+	}
+
+	private void skipWhitespace() {
+		while (position < end && bytes[position] <= ' ') {
+			position++;
+		}
+	}
+
+	/**
+	 * @param node
+	 *            node the annotations belong to, -1 for tree annotations
+	 */
+	private void skipWhitespaceAndComments(int node) throws ImportException {
+
+		while (true) {
+
+			skipWhitespace();
+			if (position < end && bytes[position] == '[') {
+				skipComment(node);
+			} else {
+				return;
+			}
+		}
+	}// END: skipWhitespaceAndComments
+
+	/**
+	 * Skips a comment, BEAST annotations of the form [&name=value,...] are
+	 * parsed for the given node, -1 for tree annotations
+	 */
+	private void skipComment(int node) throws ImportException {
+
+		position++;
+
+		if (position < end && bytes[position] == '&') {
+			position++;
+			parseAnnotations(node);
+			return;
+		}
+
+		int depth = 1;
+		while (depth > 0) {
+
+			if (position >= end) {
+				throw new ImportException("Unterminated comment");
+			}
+
+			if (bytes[position] == '[') {
+				depth++;
+			} else if (bytes[position] == ']') {
+				depth--;
+			}
+			position++;
+		}
+	}// END: skipComment
+
+	private void parseAnnotations(int node) throws ImportException {
+
+		byte[][] keys = node < 0 ? treeAttributeKeys : nodeAttributeKeys;
+
+		while (true) {
+
+			skipWhitespace();
+			if (position >= end) {
+				throw new ImportException("Unterminated annotation");
+			}
+
+			if (bytes[position] == ']') {
+				position++;
+				return;
+			}
+
+			int keyStart = position;
+			while (position < end && bytes[position] != '='
+					&& bytes[position] != ',' && bytes[position] != ']') {
+				position++;
+			}
+			int keyEnd = position;
+			while (keyEnd > keyStart && bytes[keyEnd - 1] <= ' ') {
+				keyEnd--;
+			}
+
+			int attribute = -1;
+			for (int i = 0; i < keys.length; i++) {
+				if (keyEquals(keys[i], keyStart, keyEnd)) {
+					attribute = i;
+					break;
+				}
+			}
+
+			if (position < end && bytes[position] == '=') {
+
+				position++;
+				skipWhitespace();
+
+				if (attribute < 0) {
+					skipValue();
+				} else {
+
+					valueCount = 0;
+					readValue();
+					storeValue(node, attribute);
+				}
+			}
+
+			skipWhitespace();
+			if (position < end && bytes[position] == ',') {
+				position++;
+			}
+		}
+	}// END: parseAnnotations
+
+	private void storeValue(int node, int attribute) {
+
+		if (node < 0) {
+
+			treeAttributes.put(treeAttributeNames[attribute],
+					Arrays.copyOf(values, valueCount));
+
+		} else {
+
+			double[][] columns = nodeAttributes[attribute];
+			if (columns.length < valueCount) {
+				columns = Arrays.copyOf(columns, valueCount);
+				for (int c = nodeAttributes[attribute].length; c < valueCount; c++) {
+					columns[c] = new double[parents.length];
+				}
+				nodeAttributes[attribute] = columns;
+			}
+
+			// first time this many components are seen in this tree
+			for (int c = nodeAttributeDimensions[attribute]; c < valueCount; c++) {
+				Arrays.fill(columns[c], 0, nodeCount, Double.NaN);
+				nodeAttributeDimensions[attribute] = c + 1;
+			}
+
+			for (int c = 0; c < valueCount; c++) {
+				columns[c][node] = values[c];
+			}
+		}
+	}// END: storeValue
+
+	/**
+	 * Reads a number, a quoted string or a {...} set into values, nested sets
+	 * are flattened and anything not numeric becomes NaN
+	 */
+	private void readValue() throws ImportException {
+
+		if (position >= end) {
+			throw new ImportException("Missing annotation value");
+		}
+
+		byte b = bytes[position];
+
+		if (b == '{') {
+
+			position++;
+			while (true) {
+
+				skipWhitespace();
+				if (position >= end) {
+					throw new ImportException("Unterminated annotation set");
+				}
+
+				if (bytes[position] == '}') {
+					position++;
+					return;
+				}
+
+				readValue();
+
+				skipWhitespace();
+				if (position < end && bytes[position] == ',') {
+					position++;
+				}
+			}
+
+		} else if (b == '"' || b == '\'') {
+
+			readQuotedLabel();
+			addValue(Double.NaN);
+
+		} else {
+
+			int start = position;
+			double value = readNumber();
+			if (position == start) {
+				// not a number, e.g. a discrete state
+				skipValue();
+				value = Double.NaN;
+			}
+			addValue(value);
+		}
+	}// END: readValue
+
+	private void addValue(double value) {
+
+		if (valueCount == values.length) {
+			values = Arrays.copyOf(values, 2 * values.length);
+		}
+
+		values[valueCount++] = value;
+	}
+
+	private void skipValue() throws ImportException {
+
+		int depth = 0;
+		while (position < end) {
+
+			byte b = bytes[position];
+
+			if (b == '"' || b == '\'') {
+				readQuotedLabel();
+				continue;
+			}
+
+			if (b == '{') {
+				depth++;
+			} else if (b == '}') {
+				if (depth == 0) {
+					return;
+				}
+				depth--;
+			} else if ((b == ',' || b == ']') && depth == 0) {
+				return;
+			}
+
+			position++;
+		}
+	}// END: skipValue
+
+	/**
+	 * Reads a decimal number. Numbers with up to 15 significant digits and a
+	 * small exponent are converted exactly without creating a String, all
+	 * others go through Double.parseDouble. Either way the result is the same
+	 * as Double.parseDouble. Position is not moved when there is no number.
+	 */
+	private double readNumber() throws ImportException {
+
+		int start = position;
+
+		boolean negative = false;
+		if (position < end && (bytes[position] == '-' || bytes[position] == '+')) {
+			negative = bytes[position] == '-';
+			position++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean seenDigit = false;
+
+		while (position < end && bytes[position] >= '0'
+				&& bytes[position] <= '9') {
+			if (digits > 0 || bytes[position] != '0') {
+				digits++;
+			}
+			if (digits <= 18) {
+				mantissa = 10 * mantissa + (bytes[position] - '0');
+			} else {
+				exponent++;
+			}
+			seenDigit = true;
+			position++;
+		}
+
+		if (position < end && bytes[position] == '.') {
+			position++;
+			while (position < end && bytes[position] >= '0'
+					&& bytes[position] <= '9') {
+				if (digits > 0 || bytes[position] != '0') {
+					digits++;
+				}
+				if (digits <= 18) {
+					mantissa = 10 * mantissa + (bytes[position] - '0');
+					exponent--;
+				}
+				seenDigit = true;
+				position++;
+			}
+		}
+
+		if (!seenDigit) {
+
+			// NaN, Infinity and the like
+			if (position < end && bytes[position] >= 'A') {
+				position = start;
+				while (position < end && isNumberChar(bytes[position])) {
+					position++;
+				}
+				try {
+					return Double.parseDouble(new String(bytes, start, position
+							- start, UTF8));
+				} catch (NumberFormatException e) {
+					position = start;
+					return Double.NaN;
+				}
+			}
+
+			position = start;
+			return Double.NaN;
+		}
+
+		if (position < end && (bytes[position] == 'e' || bytes[position] == 'E')) {
+
+			int exponentStart = position;
+			position++;
+
+			boolean negativeExponent = false;
+			if (position < end
+					&& (bytes[position] == '-' || bytes[position] == '+')) {
+				negativeExponent = bytes[position] == '-';
+				position++;
+			}
+
+			int explicitExponent = 0;
+			boolean seenExponentDigit = false;
+			while (position < end && bytes[position] >= '0'
+					&& bytes[position] <= '9') {
+				if (explicitExponent < 10000) {
+					explicitExponent = 10 * explicitExponent
+							+ (bytes[position] - '0');
+				}
+				seenExponentDigit = true;
+				position++;
+			}
+
+			if (!seenExponentDigit) {
+				position = exponentStart;
+			} else {
+				exponent += negativeExponent ? -explicitExponent
+						: explicitExponent;
+			}
+		}
+
+		double value;
+		if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+
+			// mantissa and power of ten are both exact, so is the result
+			value = (double) mantissa;
+			if (exponent < 0) {
+				value /= POWERS_OF_TEN[-exponent];
+			} else {
+				value *= POWERS_OF_TEN[exponent];
+			}
+
+			value = negative ? -value : value;
+
+		} else {
+			value = Double.parseDouble(new String(bytes, start, position
+					- start, UTF8));
+		}
+
+		return value;
+	}// END: readNumber
+
+	private static boolean isNumberChar(byte b) {
+		return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z')
+				|| (b >= 'A' && b <= 'Z') || b == '.' || b == '-' || b == '+';
+	}
+
+	private boolean matchesKeyword(String keyword) {
+
+		if (end - position < keyword.length()) {
+			return false;
+		}
+
+		for (int i = 0; i < keyword.length(); i++) {
+			if (Character.toLowerCase((char) bytes[position + i]) != keyword
+					.charAt(i)) {
+				return false;
+			}
+		}
+
+		return true;
+	}// END: matchesKeyword
+
+	private boolean keyEquals(byte[] key, int start, int stop) {
+
+		if (stop - start != key.length) {
+			return false;
+		}
+
+		for (int i = 0; i < key.length; i++) {
+			if (bytes[start + i] != key[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}// END: keyEquals
+
+	private static byte[][] getKeys(String[] names) {
+
+		byte[][] keys = new byte[names.length][];
+		for (int i = 0; i < names.length; i++) {
+			keys[i] = new byte[names[i].length()];
+			for (int j = 0; j < names[i].length(); j++) {
+				keys[i][j] = (byte) names[i].charAt(j);
+			}
+		}
+
+		return keys;
+	}// END: getKeys
+
+	private static int getNumber(String label) {
+
+		if (label.length() == 0 || label.length() > 9) {
+			return -1;
+		}
+
+		int number = 0;
+		for (int i = 0; i < label.length(); i++) {
+			char c = label.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			number = 10 * number + (c - '0');
+		}
+
+		return number;
+	}// END: getNumber
+
+}// END: class
@@ -0,0 +1,14 @@
+package utils;
+
+import jebl.evolution.io.ImportException;
+import structure.FlatTree;
+
+/**
+ * Reads trees of a posterior sample by their index in the file. A reader
+ * belongs to one thread.
+ */
+public interface IndexedTreeReader {
+
+	public FlatTree importTree(int index) throws ImportException;
+
+}// END: interface
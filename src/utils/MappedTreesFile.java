@@ -0,0 +1,141 @@
+package utils;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Map;
+
+import jebl.evolution.io.ImportException;
+import structure.FlatTree;
+
+/**
+ * Memory mapped BEAST trees file with an index of its tree statements, so
+ * that trees can be parsed in any order and by several threads at once.
+ *
+ * The index is built by one sequential pass that only finds statement
+ * boundaries, every thread then parses through its own TreeReader.
+ */
+public class MappedTreesFile {
+
+	// files larger than this are mapped in several regions
+	private static final long REGION_SIZE = 1L << 30;
+
+	private final MappedByteBuffer[] regions;
+	private final Map<String, String> translate;
+
+	private int treeCount;
+	private long[] offsets = new long[1024];
+	private int[] lengths = new int[1024];
+
+	public MappedTreesFile(String path) throws IOException, ImportException {
+
+		// find the tree statements
+		FileInputStream in = new FileInputStream(path);
+		try {
+
+			BeastTreesImporter importer = new BeastTreesImporter(in,
+					new String[0], new String[0]);
+
+			while (importer.hasTree()) {
+
+				if (treeCount == offsets.length) {
+					offsets = Arrays.copyOf(offsets, 2 * treeCount);
+					lengths = Arrays.copyOf(lengths, 2 * treeCount);
+				}
+
+				offsets[treeCount] = importer.getTreeOffset();
+				lengths[treeCount] = importer.getTreeLength();
+				treeCount++;
+
+				importer.skipTree();
+			}
+
+			translate = importer.getTranslate();
+
+		} finally {
+			in.close();
+		}
+
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+
+			regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+			for (int i = 0; i < regions.length; i++) {
+				long start = i * REGION_SIZE;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(REGION_SIZE, size - start));
+			}
+
+		} finally {
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+
+	}// END: MappedTreesFile()
+
+	public int getTreeCount() {
+		return treeCount;
+	}
+
+	/**
+	 * @return a reader for one thread, parsing only the given attributes
+	 */
+	public TreeReader getReader(String[] nodeAttributeNames,
+			String[] treeAttributeNames) {
+		return new TreeReader(nodeAttributeNames, treeAttributeNames);
+	}
+
+	public class TreeReader implements IndexedTreeReader {
+
+		private final ByteBuffer[] buffers;
+		private final FlatTreeParser parser;
+		private byte[] statement = new byte[1 << 16];
+
+		private TreeReader(String[] nodeAttributeNames,
+				String[] treeAttributeNames) {
+
+			// every reader has its own buffer positions
+			buffers = new ByteBuffer[regions.length];
+			for (int i = 0; i < regions.length; i++) {
+				buffers[i] = regions[i].duplicate();
+			}
+
+			parser = new FlatTreeParser(translate, nodeAttributeNames,
+					treeAttributeNames);
+		}// END: TreeReader()
+
+		public FlatTree importTree(int index) throws ImportException {
+
+			int length = lengths[index];
+			if (statement.length < length) {
+				statement = new byte[Math.max(length, 2 * statement.length)];
+			}
+
+			// statements may span mapped regions
+			long offset = offsets[index];
+			int copied = 0;
+			while (copied < length) {
+
+				ByteBuffer buffer = buffers[(int) (offset / REGION_SIZE)];
+				buffer.position((int) (offset % REGION_SIZE));
+
+				int count = Math.min(length - copied, buffer.remaining());
+				buffer.get(statement, copied, count);
+
+				copied += count;
+				offset += count;
+			}
+
+			return parser.parse(statement, 0, length);
+		}// END: importTree
+
+	}// END: TreeReader
+
+}// END: class
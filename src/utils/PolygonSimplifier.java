@@ -0,0 +1,840 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import structure.Coordinates;
+import contouring.ContourPath;
+
+/**
+ * Simplifies the rings of HPD regions before they are written out. Contours
+ * traced on a fine grid have a vertex on every crossed grid edge, most of
+ * them nearly collinear, which only inflates the KML and slows rendering.
+ *
+ * Vertices are removed by Douglas-Peucker or by Visvalingam-Whyatt, the
+ * remaining ones are vertices of the original rings. All rings of one region
+ * are simplified together: a shortcut replacing some vertices is only taken
+ * when it touches none of the current edges of any ring and the region it
+ * cuts off holds no vertex of any ring, so nested HPD rings stay nested and
+ * no ring touches another or itself. The current edges are kept in a uniform
+ * grid so the check only looks at the edges near the shortcut. Closed rings
+ * keep at least three distinct vertices and repeat the first one at the end.
+ *
+ * Tolerances in kilometers are measured in an equirectangular projection
+ * centred on the mean latitude of the rings.
+ */
+public class PolygonSimplifier {
+
+	public enum Method {
+		// keeps the vertex farthest from the shortcut until all are within the
+		// tolerance
+		DOUGLAS_PEUCKER,
+		// removes the vertex spanning the smallest triangle with its
+		// neighbours until all of them span at least the tolerance squared
+		VISVALINGAM_WHYATT
+	}
+
+	public enum Unit {
+		DEGREES, KILOMETERS
+	}
+
+	// Earths radius in km
+	private static final double EarthRadius = 6371.0;
+	private static final double KilometersPerDegree = EarthRadius * Math.PI
+			/ 180;
+	// no following vertex, at the end of an open path
+	private static final int NONE = -1;
+
+	private final Method method;
+	private final double tolerance;
+	private final Unit unit;
+
+	/**
+	 * @param tolerance
+	 *            largest distance of a removed vertex from the simplified ring
+	 *            for Douglas-Peucker, square root of the largest triangle
+	 *            area of a removed vertex for Visvalingam-Whyatt
+	 */
+	public PolygonSimplifier(Method method, double tolerance, Unit unit) {
+
+		if (!(tolerance >= 0))
+			throw new RuntimeException("tolerance can not be negative");
+
+		this.method = method;
+		this.tolerance = tolerance;
+		this.unit = unit;
+	}
+
+	public Method getMethod() {
+		return method;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public Unit getUnit() {
+		return unit;
+	}
+
+	/**
+	 * Simplifies the contours of all levels of one slice together
+	 *
+	 * @param levelPaths
+	 *            contours with latitudes in x and longitudes in y, as the time
+	 *            slicer traces them
+	 * @return simplified contours of the same levels
+	 */
+	public ContourPath[][] simplify(ContourPath[][] levelPaths) {
+
+		List<double[]> longitudes = new ArrayList<double[]>();
+		List<double[]> latitudes = new ArrayList<double[]>();
+		for (ContourPath[] paths : levelPaths) {
+			for (ContourPath path : paths) {
+				longitudes.add(path.getAllY());
+				latitudes.add(path.getAllX());
+			}
+		}
+
+		int[][] kept = simplify(longitudes, latitudes);
+
+		ContourPath[][] simplified = new ContourPath[levelPaths.length][];
+		int ring = 0;
+		for (int level = 0; level < levelPaths.length; level++) {
+
+			simplified[level] = new ContourPath[levelPaths[level].length];
+			for (int i = 0; i < levelPaths[level].length; i++) {
+
+				ContourPath path = levelPaths[level][i];
+				simplified[level][i] = new ContourPath(path.getAttributes(),
+						path.getLevelIndex(), select(path.getAllX(),
+								kept[ring]), select(path.getAllY(), kept[ring]));
+				ring++;
+			}
+		}
+
+		return simplified;
+	}// END: simplify
+
+	/**
+	 * Simplifies the rings of one region together. Rings are polygons, the
+	 * first coordinate does not have to be repeated at the end.
+	 *
+	 * @return simplified rings, made of the original coordinates and closed
+	 *         like the original ones
+	 */
+	public List<List<Coordinates>> simplifyCoordinates(
+			List<List<Coordinates>> rings) {
+
+		List<double[]> longitudes = new ArrayList<double[]>();
+		List<double[]> latitudes = new ArrayList<double[]>();
+		boolean[] repeated = new boolean[rings.size()];
+		for (int ring = 0; ring < rings.size(); ring++) {
+
+			List<Coordinates> coords = rings.get(ring);
+			int n = coords.size();
+			repeated[ring] = n > 1
+					&& coords.get(0).getLongitude() == coords.get(n - 1)
+							.getLongitude()
+					&& coords.get(0).getLatitude() == coords.get(n - 1)
+							.getLatitude();
+
+			// close the ring for the simplification
+			int size = repeated[ring] || n == 0 ? n : n + 1;
+			double[] longitude = new double[size];
+			double[] latitude = new double[size];
+			for (int i = 0; i < size; i++) {
+				longitude[i] = coords.get(i % n).getLongitude();
+				latitude[i] = coords.get(i % n).getLatitude();
+			}
+
+			longitudes.add(longitude);
+			latitudes.add(latitude);
+		}
+
+		int[][] kept = simplify(longitudes, latitudes);
+
+		List<List<Coordinates>> simplified = new ArrayList<List<Coordinates>>();
+		for (int ring = 0; ring < rings.size(); ring++) {
+
+			// closed rings end with their first vertex again
+			int size = repeated[ring] || kept[ring].length < 2 ? kept[ring].length
+					: kept[ring].length - 1;
+
+			List<Coordinates> coords = new ArrayList<Coordinates>();
+			for (int i = 0; i < size; i++) {
+				coords.add(rings.get(ring).get(kept[ring][i]));
+			}
+
+			simplified.add(coords);
+		}
+
+		return simplified;
+	}// END: simplifyCoordinates
+
+	/**
+	 * @return indices of the vertices kept in every ring, in order
+	 */
+	private int[][] simplify(List<double[]> longitudes, List<double[]> latitudes) {
+
+		double latitudeSum = 0;
+		int count = 0;
+		for (double[] latitude : latitudes) {
+			for (double value : latitude) {
+				latitudeSum += value;
+				count++;
+			}
+		}
+
+		double xScale = 1;
+		double yScale = 1;
+		if (unit == Unit.KILOMETERS && count > 0) {
+			yScale = KilometersPerDegree;
+			xScale = KilometersPerDegree
+					* Math.cos(Math.toRadians(latitudeSum / count));
+		}
+
+		Ring[] rings = new Ring[longitudes.size()];
+		for (int r = 0; r < rings.length; r++) {
+			rings[r] = new Ring(longitudes.get(r), latitudes.get(r), xScale,
+					yScale);
+		}
+
+		Region region = new Region(rings);
+
+		int[][] kept = new int[rings.length][];
+		for (int r = 0; r < rings.length; r++) {
+
+			if (method == Method.DOUGLAS_PEUCKER) {
+				douglasPeucker(region, r);
+			} else {
+				visvalingamWhyatt(region, r);
+			}
+
+			kept[r] = rings[r].getKept();
+		}
+
+		return kept;
+	}// END: simplify
+
+	private void douglasPeucker(Region region, int r) {
+
+		Ring ring = region.rings[r];
+		int m = ring.size;
+
+		if (!ring.closed) {
+			douglasPeucker(region, r, 0, m - 1);
+			return;
+		}
+
+		if (m <= 3) {
+			return;
+		}
+
+		// three anchors far apart keep the ring from collapsing
+		int second = 0;
+		double farthest = -1;
+		for (int v = 1; v < m; v++) {
+
+			double distance = distance(ring.x[0], ring.y[0], ring.x[v],
+					ring.y[v]);
+			if (distance > farthest) {
+				farthest = distance;
+				second = v;
+			}
+		}
+
+		int third = NONE;
+		farthest = -1;
+		for (int v = 1; v < m; v++) {
+
+			if (v == second) {
+				continue;
+			}
+
+			double distance = lineDistance(ring.x[v], ring.y[v], ring.x[0],
+					ring.y[0], ring.x[second], ring.y[second]);
+			if (distance > farthest) {
+				farthest = distance;
+				third = v;
+			}
+		}
+
+		int[] anchors = third < second ? new int[] { 0, third, second, m }
+				: new int[] { 0, second, third, m };
+		for (int k = 0; k < 3; k++) {
+			douglasPeucker(region, r, anchors[k], anchors[k + 1]);
+		}
+	}// END: douglasPeucker
+
+	/**
+	 * Simplifies the vertices between from and to, the index of the ring size
+	 * stands for the first vertex of a closed ring
+	 */
+	private void douglasPeucker(Region region, int r, int from, int to) {
+
+		Ring ring = region.rings[r];
+		int m = ring.size;
+
+		int[] stack = new int[64];
+		int top = 0;
+		stack[top++] = from;
+		stack[top++] = to;
+
+		while (top > 0) {
+
+			int end = stack[--top];
+			int start = stack[--top];
+
+			if (end - start < 2) {
+				continue;
+			}
+
+			int endVertex = end % m;
+			int split = NONE;
+			double farthest = -1;
+			for (int v = start + 1; v < end; v++) {
+
+				double distance = segmentDistance(ring.x[v], ring.y[v],
+						ring.x[start], ring.y[start], ring.x[endVertex],
+						ring.y[endVertex]);
+				if (distance > farthest) {
+					farthest = distance;
+					split = v;
+				}
+			}
+
+			if (farthest <= tolerance
+					&& !region.isBlocked(r, start, endVertex)) {
+				region.shortcut(r, start, endVertex);
+				continue;
+			}
+
+			if (top + 4 > stack.length) {
+				int[] grown = new int[2 * stack.length];
+				System.arraycopy(stack, 0, grown, 0, top);
+				stack = grown;
+			}
+
+			stack[top++] = start;
+			stack[top++] = split;
+			stack[top++] = split;
+			stack[top++] = end;
+		}
+	}// END: douglasPeucker
+
+	private void visvalingamWhyatt(Region region, int r) {
+
+		Ring ring = region.rings[r];
+		int m = ring.size;
+		double threshold = tolerance * tolerance;
+
+		// stale entries are recognised by the version of their vertex
+		int[] version = new int[m];
+		PriorityQueue<Triangle> queue = new PriorityQueue<Triangle>();
+		for (int v = 0; v < m; v++) {
+			if (ring.isRemovable(v)) {
+				queue.add(new Triangle(v, ring.area(v), 0));
+			}
+		}
+
+		int alive = m;
+		int minimum = ring.closed ? 3 : 2;
+
+		while (!queue.isEmpty() && alive > minimum) {
+
+			Triangle triangle = queue.poll();
+			int v = triangle.vertex;
+
+			if (triangle.version != version[v] || !ring.alive[v]) {
+				continue;
+			}
+
+			if (triangle.area >= threshold) {
+				break;
+			}
+
+			int previous = ring.previous[v];
+			int following = ring.next[v];
+			if (region.isBlocked(r, previous, following)) {
+				// retried when a neighbour is removed
+				continue;
+			}
+
+			region.shortcut(r, previous, following);
+			alive--;
+
+			// areas of the neighbours do not drop below the removed one, so
+			// vertices go in order of the area they stand for
+			for (int neighbour : new int[] { previous, following }) {
+				if (ring.isRemovable(neighbour)) {
+					version[neighbour]++;
+					queue.add(new Triangle(neighbour, Math.max(
+							ring.area(neighbour), triangle.area),
+							version[neighbour]));
+				}
+			}
+		}
+	}// END: visvalingamWhyatt
+
+	// v in the cyclic range [from, to)
+	private static boolean isBetween(int v, int from, int to) {
+		return from < to ? v >= from && v < to : v >= from || v < to;
+	}
+
+	/**
+	 * @return true if the segments have any point in common, touching and
+	 *         collinear overlapping segments included
+	 */
+	private static boolean touches(double ax, double ay, double bx, double by,
+			double cx, double cy, double dx, double dy) {
+
+		if (Math.max(cx, dx) < Math.min(ax, bx)
+				|| Math.min(cx, dx) > Math.max(ax, bx)
+				|| Math.max(cy, dy) < Math.min(ay, by)
+				|| Math.min(cy, dy) > Math.max(ay, by)) {
+			return false;
+		}
+
+		// collinear segments get here only if their extents overlap
+		double c = Math.signum(cross(ax, ay, bx, by, cx, cy));
+		double d = Math.signum(cross(ax, ay, bx, by, dx, dy));
+		double a = Math.signum(cross(cx, cy, dx, dy, ax, ay));
+		double b = Math.signum(cross(cx, cy, dx, dy, bx, by));
+
+		return c * d <= 0 && a * b <= 0;
+	}// END: touches
+
+	/**
+	 * @return true if the segment from a to p runs along the segment from a to
+	 *         b, for edges which meet at a
+	 */
+	private static boolean overlaps(double ax, double ay, double bx,
+			double by, double px, double py) {
+		return cross(ax, ay, bx, by, px, py) == 0
+				&& (bx - ax) * (px - ax) + (by - ay) * (py - ay) > 0;
+	}
+
+	// twice the signed area of the triangle abc
+	private static double cross(double ax, double ay, double bx, double by,
+			double cx, double cy) {
+		return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+	}
+
+	private static double distance(double ax, double ay, double bx, double by) {
+		return Math.hypot(bx - ax, by - ay);
+	}
+
+	// distance of p from the line through a and b
+	private static double lineDistance(double px, double py, double ax,
+			double ay, double bx, double by) {
+
+		double length = distance(ax, ay, bx, by);
+		if (length == 0) {
+			return distance(px, py, ax, ay);
+		}
+
+		return Math.abs(cross(ax, ay, bx, by, px, py)) / length;
+	}
+
+	// distance of p from the segment ab
+	private static double segmentDistance(double px, double py, double ax,
+			double ay, double bx, double by) {
+
+		double dx = bx - ax;
+		double dy = by - ay;
+		double squaredLength = dx * dx + dy * dy;
+		if (squaredLength == 0) {
+			return distance(px, py, ax, ay);
+		}
+
+		double t = ((px - ax) * dx + (py - ay) * dy) / squaredLength;
+		t = Math.max(0, Math.min(1, t));
+		return distance(px, py, ax + t * dx, ay + t * dy);
+	}
+
+	private static double[] select(double[] values, int[] indices) {
+
+		double[] selected = new double[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			selected[i] = values[indices[i]];
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Projected vertices of a ring linked in both directions. A closed ring
+	 * drops its repeated last vertex and links the others cyclically.
+	 */
+	private static class Ring {
+
+		private final boolean closed;
+		private final int size;
+		private final double[] x;
+		private final double[] y;
+		private final int[] next;
+		private final int[] previous;
+		private final boolean[] alive;
+		// some vertex still alive
+		private int first = 0;
+		private double minX = Double.POSITIVE_INFINITY;
+		private double maxX = Double.NEGATIVE_INFINITY;
+		private double minY = Double.POSITIVE_INFINITY;
+		private double maxY = Double.NEGATIVE_INFINITY;
+
+		public Ring(double[] longitude, double[] latitude, double xScale,
+				double yScale) {
+
+			int n = longitude.length;
+			closed = n > 1 && longitude[0] == longitude[n - 1]
+					&& latitude[0] == latitude[n - 1];
+			size = closed ? n - 1 : n;
+
+			x = new double[size];
+			y = new double[size];
+			next = new int[size];
+			previous = new int[size];
+			alive = new boolean[size];
+
+			for (int v = 0; v < size; v++) {
+
+				x[v] = longitude[v] * xScale;
+				y[v] = latitude[v] * yScale;
+				next[v] = v + 1 < size ? v + 1 : closed ? 0 : NONE;
+				previous[v] = v > 0 ? v - 1 : closed ? size - 1 : NONE;
+				alive[v] = true;
+
+				minX = Math.min(minX, x[v]);
+				maxX = Math.max(maxX, x[v]);
+				minY = Math.min(minY, y[v]);
+				maxY = Math.max(maxY, y[v]);
+			}
+		}// END: Ring()
+
+		// removes the vertices between from and to
+		public void shortcut(int from, int to) {
+
+			for (int v = next[from]; v != to; v = next[v]) {
+				alive[v] = false;
+			}
+
+			next[from] = to;
+			previous[to] = from;
+
+			if (!alive[first]) {
+				first = to;
+			}
+		}
+
+		public boolean isRemovable(int v) {
+			return alive[v] && previous[v] != NONE && next[v] != NONE;
+		}
+
+		/**
+		 * @return true if the point lies inside the polygon of the vertices
+		 *         from the one vertex to the other, closed by the shortcut
+		 *         between them
+		 */
+		public boolean isSwept(int from, int to, double px, double py) {
+
+			boolean inside = false;
+			for (int v = from;; v = next[v]) {
+
+				int w = v == to ? from : next[v];
+				if ((y[v] > py) != (y[w] > py)
+						&& px < x[v] + (x[w] - x[v]) * (py - y[v])
+								/ (y[w] - y[v])) {
+					inside = !inside;
+				}
+
+				if (v == to) {
+					break;
+				}
+			}
+
+			return inside;
+		}// END: isSwept
+
+		// area of the triangle of a vertex with its neighbours
+		public double area(int v) {
+			return Math.abs(cross(x[previous[v]], y[previous[v]], x[v], y[v],
+					x[next[v]], y[next[v]])) / 2;
+		}
+
+		/**
+		 * @return indices of the remaining vertices, the first one repeated
+		 *         at the end of a closed ring
+		 */
+		public int[] getKept() {
+
+			int count = 0;
+			for (int v = 0; v < size; v++) {
+				if (alive[v]) {
+					count++;
+				}
+			}
+
+			int[] kept = new int[closed ? count + 1 : count];
+			int i = 0;
+			for (int v = 0; v < size; v++) {
+				if (alive[v]) {
+					kept[i++] = v;
+				}
+			}
+
+			if (closed) {
+				kept[i] = kept[0];
+			}
+
+			return kept;
+		}// END: getKept
+
+	}// END: Ring class
+
+	/**
+	 * Rings of one region with a uniform grid of their current edges. Every
+	 * edge is listed under the start vertex in all cells its bounding box
+	 * covers, an edge replaced by a shortcut stays listed under the old cells
+	 * and is skipped or tested as the current edge of its vertex.
+	 */
+	private static class Region {
+
+		private final Ring[] rings;
+		private final double minX;
+		private final double minY;
+		private final double width;
+		private final double height;
+		private final int columns;
+		private final int rows;
+		// per cell the edges by their vertex id, count in the first entry
+		private final int[][] cells;
+		// ids of the vertices of every ring start at its offset
+		private final int[] offsets;
+		private final int[] ringOf;
+		// edges already tested for the current shortcut
+		private final int[] stamps;
+		private int stamp = 0;
+
+		public Region(Ring[] rings) {
+
+			this.rings = rings;
+
+			double minX = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY;
+			double minY = Double.POSITIVE_INFINITY;
+			double maxY = Double.NEGATIVE_INFINITY;
+			int vertexCount = 0;
+			offsets = new int[rings.length];
+			for (int r = 0; r < rings.length; r++) {
+
+				minX = Math.min(minX, rings[r].minX);
+				maxX = Math.max(maxX, rings[r].maxX);
+				minY = Math.min(minY, rings[r].minY);
+				maxY = Math.max(maxY, rings[r].maxY);
+				offsets[r] = vertexCount;
+				vertexCount += rings[r].size;
+			}
+
+			this.minX = minX;
+			this.minY = minY;
+			width = maxX - minX;
+			height = maxY - minY;
+
+			// about one edge per cell
+			columns = Math.max(1, (int) Math.sqrt(vertexCount));
+			rows = columns;
+			cells = new int[columns * rows][];
+
+			ringOf = new int[vertexCount];
+			stamps = new int[vertexCount];
+			for (int r = 0; r < rings.length; r++) {
+				for (int v = 0; v < rings[r].size; v++) {
+
+					ringOf[offsets[r] + v] = r;
+					if (rings[r].next[v] != NONE) {
+						add(r, v);
+					}
+				}
+			}
+		}// END: Region()
+
+		private int column(double x) {
+			return width > 0 ? Math.min(columns - 1,
+					(int) ((x - minX) / width * columns)) : 0;
+		}
+
+		private int row(double y) {
+			return height > 0 ? Math.min(rows - 1,
+					(int) ((y - minY) / height * rows)) : 0;
+		}
+
+		// lists the current edge of the vertex in the cells it covers
+		private void add(int r, int v) {
+
+			Ring ring = rings[r];
+			int w = ring.next[v];
+			int id = offsets[r] + v;
+
+			int lastRow = row(Math.max(ring.y[v], ring.y[w]));
+			int lastColumn = column(Math.max(ring.x[v], ring.x[w]));
+			for (int row = row(Math.min(ring.y[v], ring.y[w])); row <= lastRow; row++) {
+				for (int column = column(Math.min(ring.x[v], ring.x[w])); column <= lastColumn; column++) {
+
+					int cell = row * columns + column;
+					int[] edges = cells[cell];
+					if (edges == null) {
+						edges = new int[5];
+						cells[cell] = edges;
+					} else if (edges[0] + 1 == edges.length) {
+						int[] grown = new int[2 * edges.length];
+						System.arraycopy(edges, 0, grown, 0, edges.length);
+						edges = grown;
+						cells[cell] = edges;
+					}
+
+					edges[++edges[0]] = id;
+				}
+			}
+		}// END: add
+
+		// removes the vertices between from and to
+		public void shortcut(int r, int from, int to) {
+			rings[r].shortcut(from, to);
+			add(r, from);
+		}
+
+		/**
+		 * @return true if the shortcut from one vertex of the ring to another
+		 *         touches any current edge except those it replaces, or if the
+		 *         region between the replaced vertices and the shortcut holds
+		 *         any vertex of another ring or of the rest of the ring
+		 */
+		public boolean isBlocked(int r, int from, int to) {
+
+			Ring ring = rings[r];
+			double ax = ring.x[from];
+			double ay = ring.y[from];
+			double bx = ring.x[to];
+			double by = ring.y[to];
+
+			// edges meeting the shortcut at its ends only block it by running
+			// along it
+			int before = ring.previous[from];
+			if (before != NONE
+					&& overlaps(ax, ay, bx, by, ring.x[before], ring.y[before])) {
+				return true;
+			}
+
+			int after = ring.next[to];
+			if (after != NONE
+					&& overlaps(bx, by, ax, ay, ring.x[after], ring.y[after])) {
+				return true;
+			}
+
+			stamp++;
+			int lastRow = row(Math.max(ay, by));
+			int lastColumn = column(Math.max(ax, bx));
+			for (int row = row(Math.min(ay, by)); row <= lastRow; row++) {
+				for (int column = column(Math.min(ax, bx)); column <= lastColumn; column++) {
+
+					int[] edges = cells[row * columns + column];
+					if (edges == null) {
+						continue;
+					}
+
+					for (int i = 1; i <= edges[0]; i++) {
+
+						int id = edges[i];
+						if (stamps[id] == stamp) {
+							continue;
+						}
+						stamps[id] = stamp;
+
+						int k = ringOf[id];
+						int v = id - offsets[k];
+						Ring other = rings[k];
+						int w = other.next[v];
+						if (!other.alive[v] || w == NONE) {
+							continue;
+						}
+
+						// the replaced edges start between from and to
+						if (k == r
+								&& (isBetween(v, from, to) || v == before || v == to)) {
+							continue;
+						}
+
+						if (touches(ax, ay, bx, by, other.x[v], other.y[v],
+								other.x[w], other.y[w])) {
+							return true;
+						}
+					}
+				}
+			}
+
+			// as no edge touches the shortcut, every other ring and both
+			// parts of the rest of the ring lie wholly inside or outside the
+			// swept region and one vertex of each tells which
+			double minX = Double.POSITIVE_INFINITY;
+			double maxX = Double.NEGATIVE_INFINITY;
+			double minY = Double.POSITIVE_INFINITY;
+			double maxY = Double.NEGATIVE_INFINITY;
+			for (int v = from;; v = ring.next[v]) {
+
+				minX = Math.min(minX, ring.x[v]);
+				maxX = Math.max(maxX, ring.x[v]);
+				minY = Math.min(minY, ring.y[v]);
+				maxY = Math.max(maxY, ring.y[v]);
+
+				if (v == to) {
+					break;
+				}
+			}
+
+			for (int k = 0; k < rings.length; k++) {
+
+				Ring other = rings[k];
+				if (k == r || other.maxX < minX || other.minX > maxX
+						|| other.maxY < minY || other.minY > maxY) {
+					continue;
+				}
+
+				if (ring.isSwept(from, to, other.x[other.first],
+						other.y[other.first])) {
+					return true;
+				}
+			}
+
+			for (int v : new int[] { before, after }) {
+				if (v != NONE && v != from && v != to
+						&& ring.isSwept(from, to, ring.x[v], ring.y[v])) {
+					return true;
+				}
+			}
+
+			return false;
+		}// END: isBlocked
+
+	}// END: Region class
+
+	// removal candidate of the Visvalingam-Whyatt queue
+	private static class Triangle implements Comparable<Triangle> {
+
+		private final int vertex;
+		private final double area;
+		private final int version;
+
+		public Triangle(int vertex, double area, int version) {
+			this.vertex = vertex;
+			this.area = area;
+			this.version = version;
+		}
+
+		public int compareTo(Triangle other) {
+			return Double.compare(area, other.area);
+		}
+	}// END: Triangle class
+
+}// END: class
@@ -0,0 +1,198 @@
+package utils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import jebl.evolution.io.ImportException;
+import math.MersenneTwisterFast;
+import structure.FlatTree;
+
+/**
+ * Decides which trees of a posterior sample are analyzed: trees in the burn-in
+ * are dropped, of the rest every k-th tree is a candidate (thinning), and
+ * optionally a fixed size uniform random sample of the candidates is drawn in
+ * one pass (reservoir sampling). Streaming and indexed imports draw the same
+ * sample for the same generator seed. Every call of visitTrees or select
+ * starts a new reservoir and draws a new sample from the generator.
+ */
+public class TreeSampler {
+
+	private final int burnIn;
+	private final int thinning;
+	private final int sampleSize;
+	private final MersenneTwisterFast random;
+
+	private int candidateCount;
+
+	/**
+	 * Receives the analyzed trees of a trees file
+	 */
+	public interface TreeVisitor {
+		public void visit(FlatTree tree) throws InterruptedException;
+	}
+
+	/**
+	 * @param thinning
+	 *            keep every thinning-th tree after burn-in, 1 keeps all
+	 * @param sampleSize
+	 *            number of candidates to sample, 0 keeps all candidates
+	 */
+	public TreeSampler(int burnIn, int thinning, int sampleSize,
+			MersenneTwisterFast random) {
+
+		if (thinning < 1) {
+			throw new RuntimeException("Thinning must be at least 1");
+		}
+
+		if (sampleSize < 0) {
+			throw new RuntimeException("Sample size can not be negative");
+		}
+
+		this.burnIn = burnIn;
+		this.thinning = thinning;
+		this.sampleSize = sampleSize;
+		this.random = random;
+	}// END: TreeSampler()
+
+	public boolean isSampling() {
+		return sampleSize > 0;
+	}
+
+	public int getSampleSize() {
+		return sampleSize;
+	}
+
+	/**
+	 * @return whether the tree at index survives burn-in and thinning
+	 */
+	public boolean isCandidate(int index) {
+		return index >= burnIn && (index - burnIn) % thinning == 0;
+	}
+
+	/**
+	 * Offers the next candidate to the reservoir, candidates must be offered
+	 * in order
+	 *
+	 * @return reservoir slot the candidate replaces, -1 if it is not sampled
+	 */
+	private int offer() {
+
+		int candidate = candidateCount++;
+
+		if (candidate < sampleSize) {
+			return candidate;
+		}
+
+		int slot = random.nextInt(candidate + 1);
+		return slot < sampleSize ? slot : -1;
+	}// END: offer
+
+	/**
+	 * Reads all trees of the importer and hands the analyzed ones to the
+	 * visitor in their order in the file. Trees which are not analyzed are
+	 * skipped over without parsing, sampled trees are kept unparsed until the
+	 * whole file has been read.
+	 *
+	 * @return number of visited trees
+	 */
+	public int visitTrees(BeastTreesImporter treesImporter,
+			TreeVisitor visitor) throws IOException, ImportException,
+			InterruptedException {
+
+		candidateCount = 0;
+
+		byte[][] sampledTrees = new byte[sampleSize][];
+		final int[] sampledIndices = new int[sampleSize];
+
+		int readTrees = 0;
+		int visitedTrees = 0;
+		while (treesImporter.hasTree()) {
+
+			if (!isCandidate(readTrees)) {
+
+				treesImporter.skipTree();
+
+			} else if (isSampling()) {
+
+				int slot = offer();
+				if (slot >= 0) {
+					sampledTrees[slot] = treesImporter.copyTree();
+					sampledIndices[slot] = readTrees;
+				}
+				treesImporter.skipTree();
+
+			} else {
+
+				visitor.visit(treesImporter.importNextTree());
+				visitedTrees++;
+			}
+
+			readTrees++;
+		}
+
+		if (isSampling()) {
+
+			// sampled trees are visited in their original order
+			Integer[] slots = new Integer[sampleSize];
+			for (int i = 0; i < slots.length; i++) {
+				slots[i] = i;
+			}
+			Arrays.sort(slots, new Comparator<Integer>() {
+				public int compare(Integer slot1, Integer slot2) {
+					return sampledIndices[slot1] - sampledIndices[slot2];
+				}
+			});
+
+			for (Integer slot : slots) {
+				if (sampledTrees[slot] != null) {
+
+					FlatTree currentTree = treesImporter
+							.parseTree(sampledTrees[slot]);
+					sampledTrees[slot] = null;
+
+					visitor.visit(currentTree);
+					visitedTrees++;
+				}
+			}
+		}
+
+		return visitedTrees;
+	}// END: visitTrees
+
+	/**
+	 * @return indices of the analyzed trees of treeCount trees, in order
+	 */
+	public int[] select(int treeCount) {
+
+		candidateCount = 0;
+
+		int[] selected = new int[Math.max(treeCount, 0)];
+		int selectedCount = 0;
+
+		for (int index = 0; index < treeCount; index++) {
+
+			if (!isCandidate(index)) {
+				continue;
+			}
+
+			if (!isSampling()) {
+				selected[selectedCount++] = index;
+			} else {
+
+				int slot = offer();
+				if (slot == selectedCount) {
+					selected[selectedCount++] = index;
+				} else if (slot >= 0) {
+					selected[slot] = index;
+				}
+			}
+		}
+
+		selected = Arrays.copyOf(selected, selectedCount);
+		Arrays.sort(selected);
+
+		return selected;
+	}// END: select
+
+}// END: class
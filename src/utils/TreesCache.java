@@ -0,0 +1,480 @@
+package utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jebl.evolution.io.ImportException;
+import structure.FlatTree;
+
+/**
+ * Binary columnar copy of a parsed posterior trees file, so that repeated
+ * analyses of the same file do not parse the Nexus text again.
+ *
+ * The cache is written next to the trees file the first time it is needed and
+ * is rebuilt whenever the size or modification time of the trees file, or the
+ * kept attributes, change. Every tree is stored as one record of primitive
+ * columns (parent indices, branch lengths, taxa, node attribute components
+ * and tree attributes), the records are read back through memory mapped
+ * regions.
+ *
+ * Layout, all numbers big-endian:
+ *
+ * <pre>
+ * header:  magic, version, source size, source modified,
+ *          node attribute names, tree attribute names, index offset
+ * records: node count, parents[], lengths[], taxa[],
+ *          per node attribute: dimension, columns[dimension][],
+ *          per tree attribute: length (-1 if missing), values[]
+ * index:   tree count, record offsets[], taxon names
+ * </pre>
+ */
+public class TreesCache {
+
+	public static final String EXTENSION = ".cache";
+
+	private static final long MAGIC = 0x5350524541445443L; // SPREADTC
+	private static final int VERSION = 1;
+	private static final long REGION_SIZE = 1L << 30;
+	private static final int NO_TAXON = -1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final String[] nodeAttributeNames;
+	private final String[] treeAttributeNames;
+	private final long[] offsets;
+	private final String[] taxonNames;
+
+	// records never span regions
+	private final MappedByteBuffer[] regions;
+	private final long[] regionStarts;
+
+	/**
+	 * @return cache of the trees file, written first if there is no valid one,
+	 *         or null if the cache can not be written and the trees file has
+	 *         to be read instead
+	 */
+	public static TreesCache getCache(String treesPath,
+			String[] nodeAttributeNames, String[] treeAttributeNames)
+			throws IOException, ImportException {
+
+		File source = new File(treesPath);
+		File cache = new File(treesPath + EXTENSION);
+
+		if (!isValid(cache, source, nodeAttributeNames, treeAttributeNames)) {
+
+			System.out.println("Writing trees cache " + cache + "...");
+
+			try {
+				writeCache(source, cache, nodeAttributeNames,
+						treeAttributeNames);
+			} catch (IOException e) {
+				System.out.println("Can not write trees cache " + cache + ": "
+						+ e.getMessage() + ". Reading the trees file instead.");
+				return null;
+			}
+
+		} else {
+			System.out.println("Reading trees cache " + cache + "...");
+		}
+
+		return new TreesCache(cache);
+	}// END: getCache
+
+	/**
+	 * Writes into a temporary file of its own in the directory of the cache
+	 * and renames it once complete, so neither an interrupted write nor another
+	 * run writing the same cache leaves a valid looking partial cache behind
+	 */
+	private static void writeCache(File source, File cache,
+			String[] nodeAttributeNames, String[] treeAttributeNames)
+			throws IOException, ImportException {
+
+		File partial = File.createTempFile(cache.getName() + ".", ".partial",
+				cache.getAbsoluteFile().getParentFile());
+		try {
+
+			write(source, partial, nodeAttributeNames, treeAttributeNames);
+
+			if (cache.exists() && !cache.delete()) {
+				throw new IOException("Can not replace " + cache);
+			}
+			if (!partial.renameTo(cache)) {
+				throw new IOException("Can not rename " + partial + " to "
+						+ cache);
+			}
+
+		} finally {
+			// gone after a successful rename
+			partial.delete();
+		}
+	}// END: writeCache
+
+	private TreesCache(File cache) throws IOException {
+
+		RandomAccessFile file = new RandomAccessFile(cache, "r");
+		try {
+
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(size, 1 << 16));
+			header.getLong(); // magic
+			header.getInt(); // version
+			header.getLong(); // source size
+			header.getLong(); // source modified
+			nodeAttributeNames = getStrings(header);
+			treeAttributeNames = getStrings(header);
+			long indexOffset = header.getLong();
+			long recordsOffset = header.position();
+
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY,
+					indexOffset, size - indexOffset);
+			offsets = new long[index.getInt()];
+			index.asLongBuffer().get(offsets);
+			index.position(index.position() + 8 * offsets.length);
+			taxonNames = getStrings(index);
+
+			// regions start at records
+			List<Long> starts = new ArrayList<Long>();
+			long start = recordsOffset;
+			starts.add(start);
+			for (int i = 0; i < offsets.length; i++) {
+				long recordEnd = i + 1 < offsets.length ? offsets[i + 1]
+						: indexOffset;
+				if (recordEnd - start > REGION_SIZE) {
+					start = offsets[i];
+					starts.add(start);
+				}
+			}
+
+			regions = new MappedByteBuffer[starts.size()];
+			regionStarts = new long[starts.size()];
+			for (int i = 0; i < regions.length; i++) {
+				regionStarts[i] = starts.get(i);
+				long regionEnd = i + 1 < regions.length ? starts.get(i + 1)
+						: indexOffset;
+				regions[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						regionStarts[i], regionEnd - regionStarts[i]);
+			}
+
+		} finally {
+			// the mapping stays valid after the file is closed
+			file.close();
+		}
+
+	}// END: TreesCache()
+
+	public int getTreeCount() {
+		return offsets.length;
+	}
+
+	/**
+	 * @return a reader for one thread
+	 */
+	public IndexedTreeReader getReader() {
+		return new CacheReader();
+	}
+
+	private class CacheReader implements IndexedTreeReader {
+
+		private final ByteBuffer[] buffers;
+
+		private CacheReader() {
+
+			// every reader has its own buffer positions
+			buffers = new ByteBuffer[regions.length];
+			for (int i = 0; i < regions.length; i++) {
+				buffers[i] = regions[i].duplicate();
+			}
+		}// END: CacheReader()
+
+		public FlatTree importTree(int index) throws ImportException {
+
+			long offset = offsets[index];
+
+			int region = Arrays.binarySearch(regionStarts, offset);
+			if (region < 0) {
+				region = -region - 2;
+			}
+
+			ByteBuffer buffer = buffers[region];
+			buffer.position((int) (offset - regionStarts[region]));
+
+			int nodeCount = buffer.getInt();
+
+			int[] parents = new int[nodeCount];
+			buffer.asIntBuffer().get(parents);
+			buffer.position(buffer.position() + 4 * nodeCount);
+
+			double[] lengths = getDoubles(buffer, nodeCount);
+
+			int[] taxa = new int[nodeCount];
+			buffer.asIntBuffer().get(taxa);
+			buffer.position(buffer.position() + 4 * nodeCount);
+
+			String[] taxonNamesOfNodes = new String[nodeCount];
+			for (int node = 0; node < nodeCount; node++) {
+				if (taxa[node] != NO_TAXON) {
+					taxonNamesOfNodes[node] = taxonNames[taxa[node]];
+				}
+			}
+
+			double[][][] nodeAttributes = new double[nodeAttributeNames.length][][];
+			for (int i = 0; i < nodeAttributes.length; i++) {
+				nodeAttributes[i] = new double[buffer.getInt()][];
+				for (int c = 0; c < nodeAttributes[i].length; c++) {
+					nodeAttributes[i][c] = getDoubles(buffer, nodeCount);
+				}
+			}
+
+			Map<String, double[]> treeAttributes = new HashMap<String, double[]>();
+			for (int i = 0; i < treeAttributeNames.length; i++) {
+				int length = buffer.getInt();
+				if (length >= 0) {
+					treeAttributes.put(treeAttributeNames[i], getDoubles(
+							buffer, length));
+				}
+			}
+
+			return new FlatTree(nodeCount, parents, lengths,
+					taxonNamesOfNodes, nodeAttributeNames, nodeAttributes,
+					treeAttributes);
+		}// END: importTree
+
+	}// END: CacheReader
+
+	private static boolean isValid(File cache, File source,
+			String[] nodeAttributeNames, String[] treeAttributeNames)
+			throws IOException {
+
+		if (!cache.isFile() || cache.lastModified() < source.lastModified()) {
+			return false;
+		}
+
+		RandomAccessFile file = new RandomAccessFile(cache, "r");
+		try {
+
+			ByteBuffer header = file.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(file.length(), 1 << 16));
+
+			return header.remaining() > 28 && header.getLong() == MAGIC
+					&& header.getInt() == VERSION
+					&& header.getLong() == source.length()
+					&& header.getLong() == source.lastModified()
+					&& Arrays.equals(getStrings(header), nodeAttributeNames)
+					&& Arrays.equals(getStrings(header), treeAttributeNames);
+
+		} catch (RuntimeException e) {
+			// truncated or foreign file
+			return false;
+		} finally {
+			file.close();
+		}
+	}// END: isValid
+
+	private static void write(File source, File cache,
+			String[] nodeAttributeNames, String[] treeAttributeNames)
+			throws IOException, ImportException {
+
+		InputStream in = new FileInputStream(source);
+		RandomAccessFile file = new RandomAccessFile(cache, "rw");
+		try {
+
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+
+			ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+			buffer.putLong(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putLong(source.length());
+			buffer.putLong(source.lastModified());
+			putStrings(buffer, nodeAttributeNames);
+			putStrings(buffer, treeAttributeNames);
+			int indexOffsetPosition = buffer.position();
+			buffer.putLong(0);
+			buffer.flip();
+			channel.write(buffer);
+
+			BeastTreesImporter importer = new BeastTreesImporter(in,
+					nodeAttributeNames, treeAttributeNames);
+
+			long[] recordOffsets = new long[1024];
+			int treeCount = 0;
+			Map<String, Integer> taxonIndices = new HashMap<String, Integer>();
+			List<String> taxonNames = new ArrayList<String>();
+
+			while (importer.hasTree()) {
+
+				FlatTree tree = importer.importNextTree();
+				int nodeCount = tree.getNodeCount();
+
+				if (treeCount == recordOffsets.length) {
+					recordOffsets = Arrays.copyOf(recordOffsets, 2 * treeCount);
+				}
+				recordOffsets[treeCount++] = channel.position();
+
+				int size = 4 + 16 * nodeCount;
+				for (String name : nodeAttributeNames) {
+					size += 4;
+					if (tree.hasNodeAttribute(name)) {
+						size += 8 * nodeCount
+								* tree.getNodeAttributeDimension(name);
+					}
+				}
+				for (String name : treeAttributeNames) {
+					size += 4;
+					if (tree.getTreeAttribute(name) != null) {
+						size += 8 * tree.getTreeAttribute(name).length;
+					}
+				}
+
+				if (buffer.capacity() < size) {
+					buffer = ByteBuffer.allocate(Math.max(size,
+							2 * buffer.capacity()));
+				}
+				buffer.clear();
+
+				buffer.putInt(nodeCount);
+				for (int node = 0; node < nodeCount; node++) {
+					buffer.putInt(tree.getParent(node));
+				}
+				for (int node = 0; node < nodeCount; node++) {
+					buffer.putDouble(tree.getLength(node));
+				}
+				for (int node = 0; node < nodeCount; node++) {
+
+					int taxon = NO_TAXON;
+					if (tree.isExternal(node)) {
+
+						Integer known = taxonIndices.get(tree.getTaxon(node));
+						if (known == null) {
+							known = taxonNames.size();
+							taxonIndices.put(tree.getTaxon(node), known);
+							taxonNames.add(tree.getTaxon(node));
+						}
+						taxon = known;
+					}
+
+					buffer.putInt(taxon);
+				}
+
+				for (String name : nodeAttributeNames) {
+
+					int dimension = tree.hasNodeAttribute(name) ? tree
+							.getNodeAttributeDimension(name) : 0;
+					buffer.putInt(dimension);
+
+					for (int c = 0; c < dimension; c++) {
+						double[] column = tree.getNodeAttributeColumn(name, c);
+						for (int node = 0; node < nodeCount; node++) {
+							buffer.putDouble(column[node]);
+						}
+					}
+				}
+
+				for (String name : treeAttributeNames) {
+
+					double[] values = tree.getTreeAttribute(name);
+					if (values == null) {
+						buffer.putInt(-1);
+					} else {
+						buffer.putInt(values.length);
+						for (double value : values) {
+							buffer.putDouble(value);
+						}
+					}
+				}
+
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}// END: trees loop
+
+			long indexOffset = channel.position();
+
+			ByteBuffer index = ByteBuffer.allocate(4 + 8 * treeCount);
+			index.putInt(treeCount);
+			for (int i = 0; i < treeCount; i++) {
+				index.putLong(recordOffsets[i]);
+			}
+			index.flip();
+			while (index.hasRemaining()) {
+				channel.write(index);
+			}
+
+			ByteBuffer names = ByteBuffer.allocate(getStringsSize(taxonNames
+					.toArray(new String[0])));
+			putStrings(names, taxonNames.toArray(new String[0]));
+			names.flip();
+			while (names.hasRemaining()) {
+				channel.write(names);
+			}
+
+			ByteBuffer offset = ByteBuffer.allocate(8);
+			offset.putLong(indexOffset);
+			offset.flip();
+			channel.write(offset, indexOffsetPosition);
+
+		} finally {
+			file.close();
+			in.close();
+		}
+
+	}// END: write
+
+	private static void putStrings(ByteBuffer buffer, String[] strings) {
+
+		buffer.putInt(strings.length);
+		for (String string : strings) {
+			byte[] bytes = string.getBytes(UTF8);
+			buffer.putInt(bytes.length);
+			buffer.put(bytes);
+		}
+	}// END: putStrings
+
+	private static int getStringsSize(String[] strings) {
+
+		int size = 4;
+		for (String string : strings) {
+			size += 4 + string.getBytes(UTF8).length;
+		}
+
+		return size;
+	}// END: getStringsSize
+
+	private static String[] getStrings(ByteBuffer buffer) {
+
+		String[] strings = new String[buffer.getInt()];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[buffer.getInt()];
+			buffer.get(bytes);
+			strings[i] = new String(bytes, UTF8);
+		}
+
+		return strings;
+	}// END: getStrings
+
+	private static double[] getDoubles(ByteBuffer buffer, int count) {
+
+		double[] values = new double[count];
+		buffer.asDoubleBuffer().get(values);
+		buffer.position(buffer.position() + 8 * count);
+
+		return values;
+	}// END: getDoubles
+
+}// END: class
@@ -7,6 +7,8 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import jebl.evolution.graphs.Node;
 import jebl.evolution.trees.RootedTree;
@@ -14,12 +16,33 @@ import jebl.evolution.trees.RootedTree;
 import org.boehn.kmlframework.kml.Point;
 
 import structure.Coordinates;
+import structure.FlatTree;
 
 public class Utils {
 
 	// Earths radius in km
 	static final double EarthRadius = 6371.0;
 
+	/**
+	 * Waits for the task and rethrows what it failed with, unchecked
+	 * exceptions and errors as they are
+	 */
+	public static <T> T waitFor(Future<T> future) throws InterruptedException {
+
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			} else if (e.getCause() instanceof Error) {
+				throw (Error) e.getCause();
+			}
+
+			throw new RuntimeException(e.getCause());
+		}
+	}// END: waitFor
+
 	public static String getKMLDate(double fractionalDate) {
 
 		int year = (int) fractionalDate;
@@ -119,7 +142,7 @@ public class Utils {
 		return externalNodeCount;
 	}
 
-	public static double getTreeHeightMin(RootedTree tree) {
+	public static double getTreeHeightMin(FlatTree tree) {
 		/**
 		 * Finds the min height for given tree.
 		 * 
@@ -127,7 +150,7 @@ public class Utils {
 		 * @return min height
 		 */
 		double m = Double.MAX_VALUE;
-		for (Node node : tree.getNodes()) {
+		for (int node = 0; node < tree.getNodeCount(); node++) {
 			if (tree.getHeight(node) < m) {
 				m = tree.getHeight(node);
 			}
@@ -135,7 +158,7 @@ public class Utils {
 		return m;
 	}// END: getTreeHeightMin
 
-	public static double getTreeHeightMax(RootedTree tree) {
+	public static double getTreeHeightMax(FlatTree tree) {
 		/**
 		 * Finds the max height for given tree.
 		 * 
@@ -143,7 +166,7 @@ public class Utils {
 		 * @return max height
 		 */
 		double m = -Double.MAX_VALUE;
-		for (Node node : tree.getNodes()) {
+		for (int node = 0; node < tree.getNodeCount(); node++) {
 			if (tree.getHeight(node) > m) {
 				m = tree.getHeight(node);
 			}